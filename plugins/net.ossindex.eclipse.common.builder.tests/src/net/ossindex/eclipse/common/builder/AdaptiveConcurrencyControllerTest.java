@@ -0,0 +1,127 @@
+/**
+ *	Copyright (c) 2015 Vr Security Inc.
+ *	All rights reserved.
+ *	
+ *	Redistribution and use in source and binary forms, with or without
+ *	modification, are permitted provided that the following conditions are met:
+ *	    * Redistributions of source code must retain the above copyright
+ *	      notice, this list of conditions and the following disclaimer.
+ *	    * Redistributions in binary form must reproduce the above copyright
+ *	      notice, this list of conditions and the following disclaimer in the
+ *	      documentation and/or other materials provided with the distribution.
+ *	    * Neither the name of the <organization> nor the
+ *	      names of its contributors may be used to endorse or promote products
+ *	      derived from this software without specific prior written permission.
+ *	
+ *	THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *	ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *	WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *	DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ *	DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *	(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *	LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *	ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *	(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *	SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ossindex.eclipse.common.builder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/** Drives the decisions directly with made up measurements.
+ * 
+ * @author Ken Duck
+ *
+ */
+public class AdaptiveConcurrencyControllerTest
+{
+	private static final double THROUGHPUT = 100;
+
+	private AdaptiveConcurrencyController controller;
+
+	@Before
+	public void setUp()
+	{
+		controller = new AdaptiveConcurrencyController("test.adaptive", 1, 64);
+		moveTo(16);
+	}
+
+	@Test
+	public void increasesWhileWorkIsWaiting()
+	{
+		assertTrue(controller.adjust(THROUGHPUT, 0.5, 0.5, true));
+		assertEquals(17, controller.getLimit());
+		assertFalse(controller.adjust(THROUGHPUT, 0.5, 0.5, false));
+		assertEquals(17, controller.getLimit());
+	}
+
+	@Test
+	public void halvesWhenTheHeapIsFull()
+	{
+		assertTrue(controller.adjust(THROUGHPUT, 0.5, 0.9, true));
+		assertEquals(8, controller.getLimit());
+	}
+
+	@Test
+	public void waitsForTheCpuLoadToRespond()
+	{
+		assertTrue(controller.adjust(THROUGHPUT, 1, 0.5, true));
+		assertEquals(12, controller.getLimit());
+
+		// The load has not come down yet, so no further cut
+		assertFalse(controller.adjust(THROUGHPUT, 1, 0.5, true));
+		assertEquals(12, controller.getLimit());
+
+		// It responded but is still too high
+		assertTrue(controller.adjust(THROUGHPUT, 0.98, 0.5, true));
+		assertEquals(9, controller.getLimit());
+	}
+
+	@Test
+	public void backsOffWhenThroughputDrops()
+	{
+		assertTrue(controller.adjust(THROUGHPUT, 0.5, 0.5, true));
+		assertTrue(controller.adjust(THROUGHPUT / 2, 0.5, 0.5, true));
+		assertEquals(16, controller.getLimit());
+	}
+
+	@Test
+	public void unknownCpuLoadIsIgnored()
+	{
+		assertTrue(controller.adjust(THROUGHPUT, -1, 0.5, true));
+		assertEquals(17, controller.getLimit());
+	}
+
+	@Test
+	public void staysWithinBounds()
+	{
+		moveTo(64);
+		assertFalse(controller.adjust(THROUGHPUT, 0.5, 0.5, true));
+		assertEquals(64, controller.getLimit());
+
+		for(int i = 0; i < 10; i++) controller.adjust(THROUGHPUT, 0.5, 0.9, false);
+		assertEquals(1, controller.getLimit());
+	}
+
+	@Test
+	public void cpuLoad()
+	{
+		double load = controller.getCpuLoad();
+		assertTrue(load == -1 || (load >= 0 && load <= 1));
+	}
+
+	/** Move the limit to the value
+	 * 
+	 * @param limit
+	 */
+	private void moveTo(int limit)
+	{
+		while(controller.getLimit() > limit) controller.adjust(THROUGHPUT, 0.5, 0.9, false);
+		while(controller.getLimit() < limit) controller.adjust(THROUGHPUT, 0.5, 0.5, true);
+	}
+}
@@ -0,0 +1,170 @@
+/**
+ *	Copyright (c) 2015 Vr Security Inc.
+ *	All rights reserved.
+ *	
+ *	Redistribution and use in source and binary forms, with or without
+ *	modification, are permitted provided that the following conditions are met:
+ *	    * Redistributions of source code must retain the above copyright
+ *	      notice, this list of conditions and the following disclaimer.
+ *	    * Redistributions in binary form must reproduce the above copyright
+ *	      notice, this list of conditions and the following disclaimer in the
+ *	      documentation and/or other materials provided with the distribution.
+ *	    * Neither the name of the <organization> nor the
+ *	      names of its contributors may be used to endorse or promote products
+ *	      derived from this software without specific prior written permission.
+ *	
+ *	THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *	ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *	WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *	DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ *	DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *	(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *	LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *	ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *	(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *	SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ossindex.eclipse.common.builder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import net.ossindex.eclipse.common.builder.state.BuildStateIndex;
+import net.ossindex.eclipse.common.builder.state.FileBuildStateStore;
+
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.resources.IProject;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * 
+ * @author Ken Duck
+ *
+ */
+public class BuildCostModelTest
+{
+	private static int builders = 0;
+
+	private String builderId;
+
+	private IProject project;
+
+	private TestVisitor visitor;
+
+	private BuildCostModel model;
+
+	private int files = 0;
+
+	@Before
+	public void setUp()
+	{
+		// A new builder for every test, the models are shared
+		builderId = "test.cost." + builders++;
+		BuildStateIndex.setStore(builderId, new FileBuildStateStore(null));
+		project = TestResources.project("p");
+		visitor = new TestVisitor(builderId);
+		model = BuildCostModel.getModel(builderId, project);
+	}
+
+	@Test
+	public void thresholdWithoutBatchCost()
+	{
+		BuildCostModel.Estimate estimate = new BuildCostModel.Estimate(model, visitor, 2);
+		assertFalse(estimate.add(file(10)));
+		assertFalse(estimate.add(file(10)));
+		assertTrue(estimate.add(file(10)));
+	}
+
+	@Test
+	public void thresholdWhenNoFileCostIsKnown()
+	{
+		model.recordBatchCost(100);
+		BuildCostModel.Estimate estimate = new BuildCostModel.Estimate(model, visitor, 2);
+		assertFalse(estimate.add(file(-1)));
+		assertFalse(estimate.add(file(-1)));
+		assertTrue(estimate.add(file(-1)));
+		assertEquals(0, estimate.getIncrementalCost());
+	}
+
+	@Test
+	public void comparesCosts()
+	{
+		model.recordBatchCost(100);
+		BuildCostModel.Estimate estimate = new BuildCostModel.Estimate(model, visitor, 1000);
+		assertFalse(estimate.add(file(60)));
+		// Batch must be cheaper by the hysteresis before it is chosen
+		assertFalse(estimate.add(file(60)));
+		assertTrue(estimate.add(file(60)));
+	}
+
+	@Test
+	public void unknownFilesCostTheAverage()
+	{
+		model.recordBatchCost(100);
+		BuildCostModel.Estimate estimate = new BuildCostModel.Estimate(model, visitor, 1000);
+		estimate.add(file(40));
+		estimate.add(file(-1));
+		estimate.add(file(-1));
+		assertEquals(120, estimate.getIncrementalCost());
+	}
+
+	@Test
+	public void spreadOverJobs()
+	{
+		visitor = new ConcurrentTestVisitor(builderId, 4);
+		BuildCostModel.Estimate estimate = new BuildCostModel.Estimate(model, visitor, 1000);
+		for(int i = 0; i < 8; i++) estimate.add(file(10));
+		assertEquals(20, estimate.getIncrementalCost());
+		// Never less than the most expensive file
+		estimate.add(file(50));
+		assertEquals(50, estimate.getIncrementalCost());
+	}
+
+	@Test
+	public void staysWithBatch()
+	{
+		model.recordBatchCost(100);
+		BuildCostModel.Estimate estimate = new BuildCostModel.Estimate(model, visitor, 1000);
+		estimate.add(file(90));
+		assertFalse(estimate.isBatch());
+		estimate.commit(true);
+
+		estimate = new BuildCostModel.Estimate(model, visitor, 1000);
+		estimate.add(file(90));
+		assertTrue(estimate.isBatch());
+	}
+
+	@Test
+	public void overrideIsRecorded()
+	{
+		BuildCostModel.Estimate estimate = new BuildCostModel.Estimate(model, visitor, 0)
+		{
+			@Override
+			protected boolean choose(boolean suggested)
+			{
+				return false;
+			}
+		};
+		assertFalse(estimate.add(file(10)));
+		assertTrue(estimate.isBatchSuggested());
+		estimate.commit(false);
+
+		BuildMetrics metrics = BuildMetrics.getMetrics(builderId);
+		assertEquals(1, metrics.get("strategy.decision.override"));
+		assertEquals(1, metrics.get("strategy.decision.threshold"));
+	}
+
+	/** Create a file with the expected cost
+	 * 
+	 * @param cost Cost in nanoseconds, -1 for unknown
+	 * @return
+	 */
+	private IFile file(long cost)
+	{
+		IFile file = TestResources.file(project, "f" + files++ + ".java");
+		if(cost >= 0) visitor.setCost(file, cost);
+		return file;
+	}
+}
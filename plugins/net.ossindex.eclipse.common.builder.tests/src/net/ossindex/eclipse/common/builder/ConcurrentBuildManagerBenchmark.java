@@ -0,0 +1,115 @@
+/**
+ *	Copyright (c) 2015 Vr Security Inc.
+ *	All rights reserved.
+ *	
+ *	Redistribution and use in source and binary forms, with or without
+ *	modification, are permitted provided that the following conditions are met:
+ *	    * Redistributions of source code must retain the above copyright
+ *	      notice, this list of conditions and the following disclaimer.
+ *	    * Redistributions in binary form must reproduce the above copyright
+ *	      notice, this list of conditions and the following disclaimer in the
+ *	      documentation and/or other materials provided with the distribution.
+ *	    * Neither the name of the <organization> nor the
+ *	      names of its contributors may be used to endorse or promote products
+ *	      derived from this software without specific prior written permission.
+ *	
+ *	THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *	ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *	WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *	DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ *	DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *	(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *	LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *	ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *	(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *	SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ossindex.eclipse.common.builder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.ossindex.eclipse.common.builder.state.BuildStateIndex;
+import net.ossindex.eclipse.common.builder.state.FileBuildStateStore;
+
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.resources.IProject;
+import org.junit.Test;
+
+/** Measures the per file overhead of scheduling through the concurrent build
+ * manager: admission, dispatch, completion and bookkeeping. The visitor does
+ * nothing, so the time is all overhead. It should stay flat as the number of
+ * files grows.
+ * 
+ * Not run as part of the build, run it explicitly with
+ * -Dtest=ConcurrentBuildManagerBenchmark. The largest batch can be set with
+ * -Dbenchmark.files.
+ * 
+ * @author Ken Duck
+ *
+ */
+public class ConcurrentBuildManagerBenchmark
+{
+	/**
+	 * Distinct file handles, reused for larger batches
+	 */
+	private static final int HANDLES = 10000;
+
+	@Test
+	public void benchmark() throws Exception
+	{
+		int max = Integer.getInteger("benchmark.files", 1000000);
+
+		IProject project = TestResources.project("p");
+		List<IFile> files = new ArrayList<IFile>();
+		for(int i = 0; i < Math.min(max, HANDLES); i++)
+		{
+			files.add(TestResources.file(project, "f" + i + ".java"));
+		}
+
+		// Warm up
+		run(files, Math.min(max, 100000));
+
+		double smallest = Double.MAX_VALUE;
+		double largest = 0;
+		for(int count = 1000; count <= max; count *= 10)
+		{
+			long nanos = run(files, count);
+			double perFile = (double)nanos / count;
+			smallest = Math.min(smallest, perFile);
+			largest = Math.max(largest, perFile);
+			System.out.println(count + " files: " + (long)perFile + " ns per file");
+		}
+		System.out.println("Slowest / fastest per file: " + String.format("%.2f", largest / smallest));
+	}
+
+	/** Schedule the files through a blocking manager and wait for them all
+	 * 
+	 * @param files
+	 * @param count Number of files to schedule
+	 * @return Nanoseconds from the first schedule to completion
+	 * @throws Exception
+	 */
+	private long run(List<IFile> files, int count) throws Exception
+	{
+		// A fresh builder each time, so the state store does not carry over
+		String builderId = "benchmark.manager." + System.nanoTime();
+		BuildStateIndex.setStore(builderId, new FileBuildStateStore(null));
+		TestVisitor visitor = new ConcurrentTestVisitor(builderId, 0);
+
+		long start = System.nanoTime();
+		ConcurrentBuildManager manager = new ConcurrentBuildManager(visitor, true);
+		for(int i = 0; i < count; i++)
+		{
+			manager.schedule(files.get(i % files.size()));
+		}
+		manager.shutdown(true);
+		long nanos = System.nanoTime() - start;
+
+		if(visitor.getVisits() != count)
+		{
+			throw new IllegalStateException("Visited " + visitor.getVisits() + " of " + count);
+		}
+		return nanos;
+	}
+}
@@ -0,0 +1,69 @@
+/**
+ *	Copyright (c) 2015 Vr Security Inc.
+ *	All rights reserved.
+ *	
+ *	Redistribution and use in source and binary forms, with or without
+ *	modification, are permitted provided that the following conditions are met:
+ *	    * Redistributions of source code must retain the above copyright
+ *	      notice, this list of conditions and the following disclaimer.
+ *	    * Redistributions in binary form must reproduce the above copyright
+ *	      notice, this list of conditions and the following disclaimer in the
+ *	      documentation and/or other materials provided with the distribution.
+ *	    * Neither the name of the <organization> nor the
+ *	      names of its contributors may be used to endorse or promote products
+ *	      derived from this software without specific prior written permission.
+ *	
+ *	THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *	ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *	WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *	DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ *	DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *	(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *	LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *	ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *	(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *	SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ossindex.eclipse.common.builder;
+
+import org.eclipse.core.resources.IProject;
+
+/** Test visitor whose files are built concurrently
+ * 
+ * @author Ken Duck
+ *
+ */
+public class ConcurrentTestVisitor extends TestVisitor implements IConcurrentBuildVisitor
+{
+	private int maxJobs;
+
+	/**
+	 * 
+	 * @param builderId
+	 * @param maxJobs Maximum number of files built at once, 0 for the default
+	 */
+	public ConcurrentTestVisitor(String builderId, int maxJobs)
+	{
+		super(builderId);
+		this.maxJobs = maxJobs;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see net.ossindex.eclipse.common.builder.CommonBuildVisitor#getMaxJobs()
+	 */
+	@Override
+	public int getMaxJobs()
+	{
+		return maxJobs;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see net.ossindex.eclipse.common.builder.IDelayedBuild#finish(org.eclipse.core.resources.IProject)
+	 */
+	@Override
+	public void finish(IProject project)
+	{
+	}
+}
@@ -0,0 +1,226 @@
+/**
+ *	Copyright (c) 2015 Vr Security Inc.
+ *	All rights reserved.
+ *	
+ *	Redistribution and use in source and binary forms, with or without
+ *	modification, are permitted provided that the following conditions are met:
+ *	    * Redistributions of source code must retain the above copyright
+ *	      notice, this list of conditions and the following disclaimer.
+ *	    * Redistributions in binary form must reproduce the above copyright
+ *	      notice, this list of conditions and the following disclaimer in the
+ *	      documentation and/or other materials provided with the distribution.
+ *	    * Neither the name of the <organization> nor the
+ *	      names of its contributors may be used to endorse or promote products
+ *	      derived from this software without specific prior written permission.
+ *	
+ *	THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *	ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *	WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *	DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ *	DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *	(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *	LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *	ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *	(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *	SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ossindex.eclipse.common.builder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.core.resources.IContainer;
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.resources.IResourceProxy;
+import org.eclipse.core.resources.IResourceProxyVisitor;
+import org.eclipse.core.resources.IResourceVisitor;
+import org.eclipse.core.resources.ResourcesPlugin;
+import org.eclipse.core.runtime.CoreException;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/** Compares enumerating the files to build with resource handles, as the
+ * builder used to, and with resource proxies, as it does now. Like a Java
+ * visitor in class mode only the class files in the output folder are
+ * built, the sources and other files next to them are rejected by name.
+ * 
+ * Needs a workspace, so it has to run inside the test runtime. Not run as
+ * part of the build, run it explicitly with
+ * -Dtest=ProxyEnumerationBenchmark. The number of resources can be set with
+ * -Dbenchmark.resources.
+ * 
+ * @author Ken Duck
+ *
+ */
+public class ProxyEnumerationBenchmark
+{
+	private static final int FILES_PER_FOLDER = 100;
+
+	private static final int ROUNDS = 5;
+
+	private static IProject project;
+
+	@BeforeClass
+	public static void setUp() throws CoreException, IOException
+	{
+		int resources = Integer.getInteger("benchmark.resources", 100000);
+
+		project = ResourcesPlugin.getWorkspace().getRoot().getProject("benchmark.enumeration");
+		if(project.exists()) project.delete(true, true, null);
+		project.create(null);
+		project.open(null);
+
+		// Write the files directly and refresh once, creating them through
+		// the workspace one by one takes far longer.
+		File root = project.getLocation().toFile();
+		int folders = Math.max(1, resources / FILES_PER_FOLDER / 2);
+		for(int i = 0; i < folders; i++)
+		{
+			File src = new File(root, "src/p" + i);
+			File bin = new File(root, "bin/p" + i);
+			src.mkdirs();
+			bin.mkdirs();
+			for(int j = 0; j < FILES_PER_FOLDER; j++)
+			{
+				write(new File(src, j % 4 == 0 ? "R" + j + ".txt" : "C" + j + ".java"));
+				write(new File(bin, "C" + j + ".class"));
+			}
+		}
+		project.refreshLocal(IResource.DEPTH_INFINITE, null);
+	}
+
+	@AfterClass
+	public static void tearDown() throws CoreException
+	{
+		if(project != null) project.delete(true, true, null);
+	}
+
+	@Test
+	public void benchmark() throws CoreException
+	{
+		long handleNanos = Long.MAX_VALUE;
+		long proxyNanos = Long.MAX_VALUE;
+		Counter handles = null;
+		Counter proxies = null;
+		for(int i = 0; i < ROUNDS; i++)
+		{
+			long start = System.nanoTime();
+			handles = enumerateHandles();
+			handleNanos = Math.min(handleNanos, System.nanoTime() - start);
+
+			start = System.nanoTime();
+			proxies = enumerateProxies();
+			proxyNanos = Math.min(proxyNanos, System.nanoTime() - start);
+		}
+
+		if(handles.files.size() != proxies.files.size())
+		{
+			throw new IllegalStateException("Found " + handles.files.size() + " files with handles and " + proxies.files.size() + " with proxies");
+		}
+		System.out.println("Files to build: " + proxies.files.size());
+		System.out.println("Handles: " + (handleNanos / 1000000) + " ms, " + handles.handles + " handles created");
+		System.out.println("Proxies: " + (proxyNanos / 1000000) + " ms, " + proxies.handles + " handles created");
+	}
+
+	/** Enumerate the way the builder used to, with a handle for every
+	 * resource.
+	 * 
+	 * @return
+	 * @throws CoreException
+	 */
+	private Counter enumerateHandles() throws CoreException
+	{
+		final Counter counter = new Counter();
+		project.accept(new IResourceVisitor()
+		{
+			@Override
+			public boolean visit(IResource resource) throws CoreException
+			{
+				counter.handles++;
+				if(resource instanceof IFile)
+				{
+					if(accepts(resource.getName())) counter.files.add((IFile)resource);
+					return false;
+				}
+				return true;
+			}
+		});
+		return counter;
+	}
+
+	/** Enumerate the way the builder does now, only creating handles for
+	 * containers, which the builder checks with acceptsContainer, and for
+	 * files whose name is accepted.
+	 * 
+	 * @return
+	 * @throws CoreException
+	 */
+	private Counter enumerateProxies() throws CoreException
+	{
+		final Counter counter = new Counter();
+		project.accept(new IResourceProxyVisitor()
+		{
+			@Override
+			public boolean visit(IResourceProxy proxy) throws CoreException
+			{
+				if(proxy.getType() == IResource.FILE)
+				{
+					if(accepts(proxy.getName()))
+					{
+						counter.handles++;
+						counter.files.add((IFile)proxy.requestResource());
+					}
+					return false;
+				}
+				counter.handles++;
+				proxy.requestResource();
+				return true;
+			}
+		}, IContainer.NONE);
+		return counter;
+	}
+
+	/**
+	 * 
+	 * @param name
+	 * @return
+	 */
+	private boolean accepts(String name)
+	{
+		return name.endsWith(".class");
+	}
+
+	/**
+	 * 
+	 * @param file
+	 * @throws IOException
+	 */
+	private static void write(File file) throws IOException
+	{
+		FileOutputStream out = new FileOutputStream(file);
+		try
+		{
+			out.write(new byte[] {'/', '/', '\n'});
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	/**
+	 * Result of an enumeration
+	 */
+	private static class Counter
+	{
+		private int handles = 0;
+
+		private List<IFile> files = new ArrayList<IFile>();
+	}
+}
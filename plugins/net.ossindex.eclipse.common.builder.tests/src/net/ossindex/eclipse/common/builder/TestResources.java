@@ -0,0 +1,122 @@
+/**
+ *	Copyright (c) 2015 Vr Security Inc.
+ *	All rights reserved.
+ *	
+ *	Redistribution and use in source and binary forms, with or without
+ *	modification, are permitted provided that the following conditions are met:
+ *	    * Redistributions of source code must retain the above copyright
+ *	      notice, this list of conditions and the following disclaimer.
+ *	    * Redistributions in binary form must reproduce the above copyright
+ *	      notice, this list of conditions and the following disclaimer in the
+ *	      documentation and/or other materials provided with the distribution.
+ *	    * Neither the name of the <organization> nor the
+ *	      names of its contributors may be used to endorse or promote products
+ *	      derived from this software without specific prior written permission.
+ *	
+ *	THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *	ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *	WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *	DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ *	DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *	(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *	LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *	ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *	(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *	SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ossindex.eclipse.common.builder;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.runtime.IPath;
+import org.eclipse.core.runtime.Path;
+
+/** Resource handles for tests that do not need a workspace. Only the path
+ * based methods are implemented, everything else throws.
+ * 
+ * @author Ken Duck
+ *
+ */
+public class TestResources
+{
+	/**
+	 * Use the static methods
+	 */
+	private TestResources()
+	{
+	}
+
+	/** Get a project handle
+	 * 
+	 * @param name
+	 * @return
+	 */
+	public static IProject project(String name)
+	{
+		return (IProject)create(IProject.class, IResource.PROJECT, new Path("/" + name), null, null);
+	}
+
+	/** Get a file handle without a location
+	 * 
+	 * @param project
+	 * @param path Project relative path
+	 * @return
+	 */
+	public static IFile file(IProject project, String path)
+	{
+		return file(project, path, null);
+	}
+
+	/** Get a file handle
+	 * 
+	 * @param project
+	 * @param path Project relative path
+	 * @param location File in the file system, may be null
+	 * @return
+	 */
+	public static IFile file(IProject project, String path, File location)
+	{
+		IPath fullPath = project.getFullPath().append(path);
+		IPath local = location != null ? new Path(location.getAbsolutePath()) : null;
+		return (IFile)create(IFile.class, IResource.FILE, fullPath, project, local);
+	}
+
+	/**
+	 * 
+	 * @param type
+	 * @param kind
+	 * @param fullPath
+	 * @param project
+	 * @param location
+	 * @return
+	 */
+	private static Object create(Class<?> type, final int kind, final IPath fullPath, final IProject project, final IPath location)
+	{
+		return Proxy.newProxyInstance(TestResources.class.getClassLoader(), new Class<?>[] {type}, new InvocationHandler()
+		{
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+			{
+				String name = method.getName();
+				if(name.equals("getFullPath")) return fullPath;
+				if(name.equals("getName")) return fullPath.lastSegment();
+				if(name.equals("getType")) return kind;
+				if(name.equals("getProject")) return project != null ? project : proxy;
+				if(name.equals("getLocation")) return location;
+				if(name.equals("hashCode")) return fullPath.hashCode();
+				if(name.equals("toString")) return fullPath.toString();
+				if(name.equals("equals"))
+				{
+					return args[0] instanceof IResource && fullPath.equals(((IResource)args[0]).getFullPath());
+				}
+				throw new UnsupportedOperationException(name);
+			}
+		});
+	}
+}
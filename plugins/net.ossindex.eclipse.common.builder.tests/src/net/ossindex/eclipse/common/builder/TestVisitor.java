@@ -0,0 +1,108 @@
+/**
+ *	Copyright (c) 2015 Vr Security Inc.
+ *	All rights reserved.
+ *	
+ *	Redistribution and use in source and binary forms, with or without
+ *	modification, are permitted provided that the following conditions are met:
+ *	    * Redistributions of source code must retain the above copyright
+ *	      notice, this list of conditions and the following disclaimer.
+ *	    * Redistributions in binary form must reproduce the above copyright
+ *	      notice, this list of conditions and the following disclaimer in the
+ *	      documentation and/or other materials provided with the distribution.
+ *	    * Neither the name of the <organization> nor the
+ *	      names of its contributors may be used to endorse or promote products
+ *	      derived from this software without specific prior written permission.
+ *	
+ *	THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *	ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *	WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *	DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ *	DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *	(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *	LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *	ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *	(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *	SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ossindex.eclipse.common.builder;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IProgressMonitor;
+
+/** Visitor that only counts its visits. Expected costs can be set per file,
+ * other files have an unknown cost.
+ * 
+ * @author Ken Duck
+ *
+ */
+public class TestVisitor extends CommonBuildVisitor
+{
+	private Map<IFile,Long> costs = new ConcurrentHashMap<IFile,Long>();
+
+	private AtomicInteger visits = new AtomicInteger();
+
+	/**
+	 * 
+	 * @param builderId
+	 */
+	public TestVisitor(String builderId)
+	{
+		super(builderId);
+	}
+
+	/** Set the expected cost of the file
+	 * 
+	 * @param file
+	 * @param nanos
+	 */
+	public void setCost(IFile file, long nanos)
+	{
+		costs.put(file, nanos);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see net.ossindex.eclipse.common.builder.CommonBuildVisitor#getExpectedCost(org.eclipse.core.resources.IFile)
+	 */
+	@Override
+	public long getExpectedCost(IFile file)
+	{
+		Long cost = costs.get(file);
+		return cost != null ? cost : -1;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.eclipse.core.resources.IResourceVisitor#visit(org.eclipse.core.resources.IResource)
+	 */
+	@Override
+	public boolean visit(IResource resource) throws CoreException
+	{
+		visits.incrementAndGet();
+		return false;
+	}
+
+	/** Number of resources visited
+	 * 
+	 * @return
+	 */
+	public int getVisits()
+	{
+		return visits.get();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see net.ossindex.eclipse.common.builder.CommonBuildVisitor#setProgressMonitor(org.eclipse.core.runtime.IProgressMonitor)
+	 */
+	@Override
+	public void setProgressMonitor(IProgressMonitor monitor)
+	{
+	}
+}
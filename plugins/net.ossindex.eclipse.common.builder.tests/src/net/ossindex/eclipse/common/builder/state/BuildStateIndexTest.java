@@ -0,0 +1,149 @@
+/**
+ *	Copyright (c) 2015 Vr Security Inc.
+ *	All rights reserved.
+ *	
+ *	Redistribution and use in source and binary forms, with or without
+ *	modification, are permitted provided that the following conditions are met:
+ *	    * Redistributions of source code must retain the above copyright
+ *	      notice, this list of conditions and the following disclaimer.
+ *	    * Redistributions in binary form must reproduce the above copyright
+ *	      notice, this list of conditions and the following disclaimer in the
+ *	      documentation and/or other materials provided with the distribution.
+ *	    * Neither the name of the <organization> nor the
+ *	      names of its contributors may be used to endorse or promote products
+ *	      derived from this software without specific prior written permission.
+ *	
+ *	THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *	ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *	WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *	DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ *	DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *	(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *	LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *	ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *	(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *	SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ossindex.eclipse.common.builder.state;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import net.ossindex.eclipse.common.builder.TestResources;
+
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.resources.IProject;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * 
+ * @author Ken Duck
+ *
+ */
+public class BuildStateIndexTest
+{
+	private static int builders = 0;
+
+	private BuildStateIndex index;
+
+	private IProject project;
+
+	@Before
+	public void setUp()
+	{
+		// A new builder for every test, the indexes are shared
+		String builderId = "test.index." + builders++;
+		BuildStateIndex.setStore(builderId, new FileBuildStateStore(null));
+		index = BuildStateIndex.getIndex(builderId);
+		project = TestResources.project("p");
+	}
+
+	@Test
+	public void unknownCost()
+	{
+		assertEquals(-1, index.getExpectedCost(TestResources.file(project, "a.java")));
+	}
+
+	@Test
+	public void recordedCost()
+	{
+		IFile file = TestResources.file(project, "a.java");
+		index.recordCost(file, 1000);
+		assertEquals(1000, index.getExpectedCost(file));
+	}
+
+	@Test
+	public void costFromSize() throws IOException
+	{
+		File measured = createFile(100);
+		File other = createFile(50);
+		try
+		{
+			index.recordCost(TestResources.file(project, "a.java", measured), 1000);
+			assertEquals(500, index.getExpectedCost(TestResources.file(project, "b.java", other)));
+			// Without a location the size is not known
+			assertEquals(-1, index.getExpectedCost(TestResources.file(project, "c.java")));
+		}
+		finally
+		{
+			measured.delete();
+			other.delete();
+		}
+	}
+
+	@Test
+	public void costsSurviveClean() throws IOException
+	{
+		File measured = createFile(100);
+		try
+		{
+			index.recordCost(TestResources.file(project, "a.java", measured), 1000);
+			index.recordBatchCost(project, 5000);
+			index.clean(project);
+
+			assertEquals(0, index.getBatchCost(project));
+			// The size ratio is kept, only the file's own cost is gone
+			assertEquals(1000, index.getExpectedCost(TestResources.file(project, "a.java", measured)));
+		}
+		finally
+		{
+			measured.delete();
+		}
+	}
+
+	@Test
+	public void timeouts()
+	{
+		IFile file = TestResources.file(project, "a.java");
+		index.recordTimeout(file);
+		index.recordTimeout(file);
+		assertEquals(2, index.getTimeouts(file));
+		index.recordCost(file, 1000);
+		assertEquals(2, index.getTimeouts(file));
+	}
+
+	/**
+	 * 
+	 * @param size
+	 * @return A temporary file of the size
+	 * @throws IOException
+	 */
+	private File createFile(int size) throws IOException
+	{
+		File file = File.createTempFile("cost", ".java");
+		FileOutputStream out = new FileOutputStream(file);
+		try
+		{
+			out.write(new byte[size]);
+		}
+		finally
+		{
+			out.close();
+		}
+		return file;
+	}
+}
@@ -0,0 +1,137 @@
+/**
+ *	Copyright (c) 2015 Vr Security Inc.
+ *	All rights reserved.
+ *	
+ *	Redistribution and use in source and binary forms, with or without
+ *	modification, are permitted provided that the following conditions are met:
+ *	    * Redistributions of source code must retain the above copyright
+ *	      notice, this list of conditions and the following disclaimer.
+ *	    * Redistributions in binary form must reproduce the above copyright
+ *	      notice, this list of conditions and the following disclaimer in the
+ *	      documentation and/or other materials provided with the distribution.
+ *	    * Neither the name of the <organization> nor the
+ *	      names of its contributors may be used to endorse or promote products
+ *	      derived from this software without specific prior written permission.
+ *	
+ *	THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *	ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *	WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *	DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ *	DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *	(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *	LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *	ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *	(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *	SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ossindex.eclipse.common.builder.state;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * 
+ * @author Ken Duck
+ *
+ */
+public class BuildStateTransactionTest
+{
+	private FileBuildStateStore store;
+
+	private BuildStateTransaction transaction;
+
+	@Before
+	public void setUp()
+	{
+		store = new FileBuildStateStore(null);
+		transaction = new BuildStateTransaction(store);
+	}
+
+	@Test
+	public void changesArePendingUntilCommit() throws IOException
+	{
+		BuildState state = new BuildState(1, 2, null);
+		transaction.put("/p/a.java", state);
+		assertSame(state, transaction.get("/p/a.java"));
+		assertNull(store.get("/p/a.java"));
+
+		transaction.commit();
+		assertFalse(transaction.isOpen());
+		assertSame(state, store.get("/p/a.java"));
+	}
+
+	@Test
+	public void rollbackDiscardsChanges()
+	{
+		store.put("/p/a.java", new BuildState(1, 2, null));
+		transaction.remove("/p/a.java");
+		transaction.put("/p/b.java", new BuildState(1, 2, null));
+		assertNull(transaction.get("/p/a.java"));
+
+		transaction.rollback();
+		assertNotNull(store.get("/p/a.java"));
+		assertNull(store.get("/p/b.java"));
+	}
+
+	@Test
+	public void removeAllHidesTheTree() throws IOException
+	{
+		store.put("/p/a/x.java", new BuildState(1, 2, null));
+		store.put("/p/ab.java", new BuildState(1, 2, null));
+		transaction.put("/p/a/y.java", new BuildState(1, 2, null));
+		transaction.removeAll("/p/a");
+		assertNull(transaction.get("/p/a/x.java"));
+		assertNull(transaction.get("/p/a/y.java"));
+		assertNotNull(transaction.get("/p/ab.java"));
+
+		// Marks made after the clean are kept
+		transaction.put("/p/a/z.java", new BuildState(1, 2, null));
+		transaction.commit();
+		assertNull(store.get("/p/a/x.java"));
+		assertNull(store.get("/p/a/y.java"));
+		assertNotNull(store.get("/p/a/z.java"));
+		assertNotNull(store.get("/p/ab.java"));
+	}
+
+	@Test
+	public void clearKeepsAttributes() throws IOException
+	{
+		store.put("/p/a.java", new BuildState(1, 2, null));
+		store.setAttribute("cost.nanos", 1000);
+		transaction.clear();
+		assertNull(transaction.get("/p/a.java"));
+		assertNotNull(store.get("/p/a.java"));
+
+		transaction.commit();
+		assertNull(store.get("/p/a.java"));
+		assertEquals(1000, store.getAttribute("cost.nanos"));
+	}
+
+	@Test
+	public void passesThroughOnceClosed() throws IOException
+	{
+		transaction.commit();
+		BuildState state = new BuildState(1, 2, null);
+		transaction.put("/p/a.java", state);
+		assertSame(state, store.get("/p/a.java"));
+		transaction.remove("/p/a.java");
+		assertNull(store.get("/p/a.java"));
+	}
+
+	@Test
+	public void attributesGoStraightToTheStore()
+	{
+		transaction.setAttribute("cost.nanos", 10);
+		assertEquals(10, store.getAttribute("cost.nanos"));
+		transaction.rollback();
+		assertEquals(10, store.getAttribute("cost.nanos"));
+	}
+}
@@ -0,0 +1,159 @@
+/**
+ *	Copyright (c) 2015 Vr Security Inc.
+ *	All rights reserved.
+ *	
+ *	Redistribution and use in source and binary forms, with or without
+ *	modification, are permitted provided that the following conditions are met:
+ *	    * Redistributions of source code must retain the above copyright
+ *	      notice, this list of conditions and the following disclaimer.
+ *	    * Redistributions in binary form must reproduce the above copyright
+ *	      notice, this list of conditions and the following disclaimer in the
+ *	      documentation and/or other materials provided with the distribution.
+ *	    * Neither the name of the <organization> nor the
+ *	      names of its contributors may be used to endorse or promote products
+ *	      derived from this software without specific prior written permission.
+ *	
+ *	THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *	ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *	WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *	DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ *	DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *	(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *	LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *	ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *	(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *	SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ossindex.eclipse.common.builder.state;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * 
+ * @author Ken Duck
+ *
+ */
+public class FileBuildStateStoreTest
+{
+	private File file;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		file = File.createTempFile("buildstate", ".state");
+		file.delete();
+	}
+
+	@After
+	public void tearDown()
+	{
+		file.delete();
+	}
+
+	@Test
+	public void roundTrip() throws IOException
+	{
+		FileBuildStateStore store = new FileBuildStateStore(file);
+		store.put("/p/a.java", new BuildState(10, 20, new byte[] {1, 2, 3}, 30, 2));
+		store.put("/p/b.java", new BuildState(11, 21, null));
+		store.setAttribute("cost.nanos", 1000);
+		store.setAttribute("cost.bytes", 50);
+		store.save();
+
+		FileBuildStateStore restored = new FileBuildStateStore(file);
+		assertTrue(restored.isRestored());
+		BuildState a = restored.get("/p/a.java");
+		assertNotNull(a);
+		assertEquals(10, a.getStamp());
+		assertEquals(20, a.getSize());
+		assertArrayEquals(new byte[] {1, 2, 3}, a.getHash());
+		assertEquals(30, a.getCost());
+		assertEquals(2, a.getTimeouts());
+		BuildState b = restored.get("/p/b.java");
+		assertNotNull(b);
+		assertNull(b.getHash());
+		assertEquals(0, b.getCost());
+		assertEquals(1000, restored.getAttribute("cost.nanos"));
+		assertEquals(50, restored.getAttribute("cost.bytes"));
+	}
+
+	@Test
+	public void missingFileIsNotRestored()
+	{
+		FileBuildStateStore store = new FileBuildStateStore(file);
+		assertFalse(store.isRestored());
+		assertNull(store.get("/p/a.java"));
+	}
+
+	@Test
+	public void truncatedFileIsNotRestored() throws IOException
+	{
+		FileBuildStateStore store = new FileBuildStateStore(file);
+		store.put("/p/a.java", new BuildState(10, 20, null));
+		store.setAttribute("cost.nanos", 1000);
+		store.save();
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try
+		{
+			raf.setLength(raf.length() - 4);
+		}
+		finally
+		{
+			raf.close();
+		}
+
+		FileBuildStateStore restored = new FileBuildStateStore(file);
+		assertFalse(restored.isRestored());
+		assertNull(restored.get("/p/a.java"));
+		assertEquals(0, restored.getAttribute("cost.nanos"));
+	}
+
+	@Test
+	public void clearKeepsAttributes()
+	{
+		FileBuildStateStore store = new FileBuildStateStore(null);
+		store.put("/p/a.java", new BuildState(10, 20, null));
+		store.setAttribute("cost.nanos", 1000);
+		store.clear();
+		assertNull(store.get("/p/a.java"));
+		assertEquals(1000, store.getAttribute("cost.nanos"));
+	}
+
+	@Test
+	public void attributes()
+	{
+		FileBuildStateStore store = new FileBuildStateStore(null);
+		assertEquals(0, store.getAttribute("count"));
+		assertEquals(5, store.addAttribute("count", 5));
+		assertEquals(7, store.addAttribute("count", 2));
+		store.setAttribute("count", 0);
+		assertEquals(0, store.getAttribute("count"));
+	}
+
+	@Test
+	public void removeAllRemovesTheTree()
+	{
+		FileBuildStateStore store = new FileBuildStateStore(null);
+		store.put("/p/a", new BuildState(1, 1, null));
+		store.put("/p/a/x.java", new BuildState(1, 1, null));
+		store.put("/p/ab.java", new BuildState(1, 1, null));
+		store.removeAll("/p/a");
+		assertNull(store.get("/p/a"));
+		assertNull(store.get("/p/a/x.java"));
+		assertNotNull(store.get("/p/ab.java"));
+	}
+}
@@ -0,0 +1,184 @@
+/**
+ *	Copyright (c) 2015 Vr Security Inc.
+ *	All rights reserved.
+ *	
+ *	Redistribution and use in source and binary forms, with or without
+ *	modification, are permitted provided that the following conditions are met:
+ *	    * Redistributions of source code must retain the above copyright
+ *	      notice, this list of conditions and the following disclaimer.
+ *	    * Redistributions in binary form must reproduce the above copyright
+ *	      notice, this list of conditions and the following disclaimer in the
+ *	      documentation and/or other materials provided with the distribution.
+ *	    * Neither the name of the <organization> nor the
+ *	      names of its contributors may be used to endorse or promote products
+ *	      derived from this software without specific prior written permission.
+ *	
+ *	THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *	ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *	WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *	DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ *	DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *	(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *	LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *	ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *	(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *	SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ossindex.eclipse.common.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/** Compares resolving class files to their sources through the SourceFile
+ * attribute with the old guess from the class file name. The class files of
+ * the builder itself are used as input, plus a secondary top level type the
+ * guess gets wrong. They are read into memory up front so only the parsing
+ * is measured.
+ * 
+ * Not run as part of the build, run it explicitly with
+ * -Dtest=ClassFileHeaderBenchmark. The number of resolutions can be set with
+ * -Dbenchmark.iterations.
+ * 
+ * @author Ken Duck
+ *
+ */
+public class ClassFileHeaderBenchmark
+{
+	private static final String[] CLASSES = {
+		"net.ossindex.eclipse.common.impl.JavaUtils",
+		"net.ossindex.eclipse.common.impl.ClassFileHeader",
+		"net.ossindex.eclipse.common.impl.ClassFileHeader$1",
+		"net.ossindex.eclipse.common.builder.CommonBuilder",
+		"net.ossindex.eclipse.common.builder.ConcurrentBuildManager",
+		"net.ossindex.eclipse.common.builder.ConcurrentBuildManager$AdmittedJob",
+		"net.ossindex.eclipse.common.builder.BuildCostModel$Estimate",
+		"net.ossindex.eclipse.common.builder.state.FileBuildStateStore",
+	};
+
+	@Test
+	public void benchmark() throws IOException
+	{
+		int iterations = Integer.getInteger("benchmark.iterations", 1000000);
+
+		List<String> paths = new ArrayList<String>();
+		List<byte[]> files = new ArrayList<byte[]>();
+		for(String name: CLASSES)
+		{
+			String path = name.replace('.', '/') + ".class";
+			paths.add(path);
+			files.add(read(path));
+		}
+		paths.add("a/b/Helper.class");
+		files.add(ClassFileHeaderTest.classFile("a/b/Helper", "Main.java"));
+
+		// Warm up both paths before measuring
+		resolve(files, iterations / 10);
+		guess(paths, iterations / 10);
+
+		long start = System.nanoTime();
+		long resolved = resolve(files, iterations);
+		long headerNanos = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		long guessed = guess(paths, iterations);
+		long guessNanos = System.nanoTime() - start;
+
+		int differ = 0;
+		for(int i = 0; i < files.size(); i++)
+		{
+			String source = ClassFileHeader.read(ByteBuffer.wrap(files.get(i))).getSourcePath();
+			if(!guess(paths.get(i)).equals(source)) differ++;
+		}
+
+		System.out.println("ClassFileHeader: " + (headerNanos / iterations) + " ns per class file (" + resolved + " chars)");
+		System.out.println("Name guess:      " + (guessNanos / iterations) + " ns per class file (" + guessed + " chars)");
+		System.out.println("Guesses that differ from the SourceFile attribute: " + differ + " of " + files.size());
+	}
+
+	/** Resolve the sources from the class file headers
+	 * 
+	 * @param files
+	 * @param iterations
+	 * @return Total length of the paths, so the work is not optimised away
+	 * @throws IOException
+	 */
+	private long resolve(List<byte[]> files, int iterations) throws IOException
+	{
+		long length = 0;
+		for(int i = 0; i < iterations; i++)
+		{
+			byte[] file = files.get(i % files.size());
+			length += ClassFileHeader.read(ByteBuffer.wrap(file)).getSourcePath().length();
+		}
+		return length;
+	}
+
+	/** Guess the sources from the class file names
+	 * 
+	 * @param paths
+	 * @param iterations
+	 * @return Total length of the paths, so the work is not optimised away
+	 */
+	private long guess(List<String> paths, int iterations)
+	{
+		long length = 0;
+		for(int i = 0; i < iterations; i++)
+		{
+			length += guess(paths.get(i % paths.size())).length();
+		}
+		return length;
+	}
+
+	/** The name munging JavaUtils used before the SourceFile attribute was
+	 * read.
+	 * 
+	 * @param path
+	 * @return
+	 */
+	private String guess(String path)
+	{
+		if(path.endsWith(".class"))
+		{
+			path = path.substring(0, path.length() - 6);
+		}
+		int index = path.lastIndexOf('$');
+		if(index > 0)
+		{
+			path = path.substring(0, index);
+		}
+		return path + ".java";
+	}
+
+	/**
+	 * 
+	 * @param path
+	 * @return
+	 * @throws IOException
+	 */
+	private byte[] read(String path) throws IOException
+	{
+		InputStream in = ClassFileHeader.class.getClassLoader().getResourceAsStream(path);
+		if(in == null) throw new IOException("Missing class file " + path);
+		try
+		{
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int count;
+			while((count = in.read(buffer)) > 0)
+			{
+				out.write(buffer, 0, count);
+			}
+			return out.toByteArray();
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+}
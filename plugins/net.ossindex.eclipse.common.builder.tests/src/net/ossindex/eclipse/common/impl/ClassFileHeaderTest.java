@@ -0,0 +1,205 @@
+/**
+ *	Copyright (c) 2015 Vr Security Inc.
+ *	All rights reserved.
+ *	
+ *	Redistribution and use in source and binary forms, with or without
+ *	modification, are permitted provided that the following conditions are met:
+ *	    * Redistributions of source code must retain the above copyright
+ *	      notice, this list of conditions and the following disclaimer.
+ *	    * Redistributions in binary form must reproduce the above copyright
+ *	      notice, this list of conditions and the following disclaimer in the
+ *	      documentation and/or other materials provided with the distribution.
+ *	    * Neither the name of the <organization> nor the
+ *	      names of its contributors may be used to endorse or promote products
+ *	      derived from this software without specific prior written permission.
+ *	
+ *	THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *	ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *	WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *	DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ *	DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *	(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *	LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *	ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *	(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *	SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ossindex.eclipse.common.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/** Reads hand built class files, so the tests do not depend on how the
+ * test classes themselves were compiled.
+ * 
+ * @author Ken Duck
+ *
+ */
+public class ClassFileHeaderTest
+{
+	@Test
+	public void readsNameAndSourceFile() throws IOException
+	{
+		ClassFileHeader header = ClassFileHeader.read(ByteBuffer.wrap(classFile("a/b/C$D", "Other.java")));
+		assertEquals("a/b/C$D", header.getClassName());
+		assertEquals("Other.java", header.getSourceFile());
+		assertEquals("a/b", header.getPackagePath());
+		assertEquals("a/b/Other.java", header.getSourcePath());
+	}
+
+	@Test
+	public void defaultPackage() throws IOException
+	{
+		ClassFileHeader header = ClassFileHeader.read(ByteBuffer.wrap(classFile("C", "C.java")));
+		assertEquals("", header.getPackagePath());
+		assertEquals("C.java", header.getSourcePath());
+	}
+
+	@Test
+	public void withoutSourceFile() throws IOException
+	{
+		ClassFileHeader header = ClassFileHeader.read(ByteBuffer.wrap(classFile("a/C", null)));
+		assertEquals("a/C", header.getClassName());
+		assertNull(header.getSourceFile());
+		assertNull(header.getSourcePath());
+	}
+
+	@Test
+	public void readsFile() throws IOException
+	{
+		File file = File.createTempFile("header", ".class");
+		try
+		{
+			FileOutputStream out = new FileOutputStream(file);
+			try
+			{
+				out.write(classFile("a/C", "C.java"));
+			}
+			finally
+			{
+				out.close();
+			}
+			assertEquals("a/C.java", ClassFileHeader.read(file).getSourcePath());
+		}
+		finally
+		{
+			file.delete();
+		}
+	}
+
+	@Test
+	public void rejectsOtherFiles()
+	{
+		try
+		{
+			ClassFileHeader.read(ByteBuffer.wrap(new byte[] {'P', 'K', 3, 4, 0, 0, 0, 0}));
+			fail("Not a class file");
+		}
+		catch (IOException e)
+		{
+		}
+	}
+
+	@Test
+	public void rejectsTruncatedFiles()
+	{
+		byte[] data = classFile("a/b/C", "C.java");
+		byte[] truncated = new byte[data.length - 4];
+		System.arraycopy(data, 0, truncated, 0, truncated.length);
+		try
+		{
+			ClassFileHeader.read(ByteBuffer.wrap(truncated));
+			fail("Truncated class file");
+		}
+		catch (IOException e)
+		{
+		}
+	}
+
+	/** Build a minimal class file with one field and one method, so the
+	 * members have to be skipped to reach the class attributes.
+	 * 
+	 * @param className Name in internal form
+	 * @param sourceFile Value of the SourceFile attribute, null for none
+	 * @return
+	 */
+	static byte[] classFile(String className, String sourceFile)
+	{
+		try
+		{
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(0xCAFEBABE);
+			out.writeShort(0);
+			out.writeShort(51);
+
+			// Constant pool. A long takes two slots.
+			out.writeShort(11);
+			out.writeByte(1);
+			out.writeUTF(className);
+			out.writeByte(7);
+			out.writeShort(1);
+			out.writeByte(1);
+			out.writeUTF("java/lang/Object");
+			out.writeByte(7);
+			out.writeShort(3);
+			out.writeByte(5);
+			out.writeLong(42);
+			out.writeByte(1);
+			out.writeUTF("x");
+			out.writeByte(1);
+			out.writeUTF("J");
+			out.writeByte(1);
+			out.writeUTF("SourceFile");
+			out.writeByte(1);
+			out.writeUTF(sourceFile != null ? sourceFile : "unused");
+
+			// Access flags, this class, super class, no interfaces
+			out.writeShort(0x21);
+			out.writeShort(2);
+			out.writeShort(4);
+			out.writeShort(0);
+
+			// One field and one method, each with an attribute to skip
+			for(int i = 0; i < 2; i++)
+			{
+				out.writeShort(1);
+				out.writeShort(1);
+				out.writeShort(7);
+				out.writeShort(8);
+				out.writeShort(1);
+				out.writeShort(9);
+				out.writeInt(3);
+				out.write(new byte[3]);
+			}
+
+			if(sourceFile != null)
+			{
+				out.writeShort(1);
+				out.writeShort(9);
+				out.writeInt(2);
+				out.writeShort(10);
+			}
+			else
+			{
+				out.writeShort(0);
+			}
+			out.close();
+			return bytes.toByteArray();
+		}
+		catch (IOException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+}
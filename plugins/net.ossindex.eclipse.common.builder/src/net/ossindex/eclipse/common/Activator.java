@@ -26,8 +26,19 @@
  */
 package net.ossindex.eclipse.common;
 
+import net.ossindex.eclipse.common.builder.BuildExecutor;
+import net.ossindex.eclipse.common.builder.DirtyTracker;
+import net.ossindex.eclipse.common.builder.state.BuildStateIndex;
+import net.ossindex.eclipse.common.impl.CSettingsCache;
+import net.ossindex.eclipse.common.impl.ClassFileIndex;
+import net.ossindex.eclipse.common.impl.JavaProjectModel;
+
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.Status;
 import org.eclipse.jface.resource.ImageDescriptor;
 import org.eclipse.ui.plugin.AbstractUIPlugin;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
 /**
  * The activator class controls the plug-in life cycle
  */
@@ -39,6 +50,79 @@ public class Activator extends AbstractUIPlugin
 	
 	private static Activator plugin;
 
+	/**
+	 * Shared by all builders
+	 */
+	private BuildExecutor buildExecutor;
+
+	/**
+	 * Registration of the utilities registry service
+	 */
+	private ServiceRegistration<IUtilsRegistry> utilsRegistration;
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.eclipse.ui.plugin.AbstractUIPlugin#start(org.osgi.framework.BundleContext)
+	 */
+	@Override
+	public void start(BundleContext context) throws Exception
+	{
+		super.start(context);
+		plugin = this;
+		buildExecutor = new BuildExecutor();
+		utilsRegistration = context.registerService(IUtilsRegistry.class, UtilsRegistry.getDefault(), null);
+		try
+		{
+			DirtyTracker.startup();
+		}
+		catch (CoreException e)
+		{
+			// Builders fall back to scanning the projects
+			e.printStackTrace();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.eclipse.ui.plugin.AbstractUIPlugin#stop(org.osgi.framework.BundleContext)
+	 */
+	@Override
+	public void stop(BundleContext context) throws Exception
+	{
+		if(utilsRegistration != null)
+		{
+			utilsRegistration.unregister();
+			utilsRegistration = null;
+		}
+		UtilsRegistry.getDefault().shutdown();
+		DirtyTracker.shutdown();
+		ClassFileIndex.shutdown();
+		try
+		{
+			JavaProjectModel.shutdown();
+		}
+		catch (NoClassDefFoundError e)
+		{
+			// JDT is not installed
+		}
+		try
+		{
+			CSettingsCache.shutdown();
+		}
+		catch (NoClassDefFoundError e)
+		{
+			// CDT is not installed
+		}
+		BuildStateIndex.saveAll();
+		if(buildExecutor != null)
+		{
+			buildExecutor.shutdown();
+			buildExecutor = null;
+		}
+		plugin = null;
+		super.stop(context);
+	}
+
 	/**
 	 * Returns the shared instance
 	 *
@@ -48,6 +132,34 @@ public class Activator extends AbstractUIPlugin
 		return plugin;
 	}
 
+	/** Write a message to the plugin log. When the plugin is not running the
+	 * message goes to standard error instead.
+	 * 
+	 * @param severity One of the IStatus severities
+	 * @param message
+	 * @param e May be null
+	 */
+	public static void log(int severity, String message, Throwable e)
+	{
+		Activator plugin = getDefault();
+		if(plugin == null)
+		{
+			System.err.println(message);
+			if(e != null) e.printStackTrace();
+			return;
+		}
+		plugin.getLog().log(new Status(severity, PLUGIN_ID, message, e));
+	}
+
+	/** Get the executor shared by all concurrent builds
+	 * 
+	 * @return
+	 */
+	public BuildExecutor getBuildExecutor()
+	{
+		return buildExecutor;
+	}
+
 	/**
 	 * Returns an image descriptor for the image file at the given
 	 * plug-in relative path
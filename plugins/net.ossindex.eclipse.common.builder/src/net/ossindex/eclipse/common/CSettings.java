@@ -0,0 +1,130 @@
+/**
+ *	Copyright (c) 2015 Vr Security Inc.
+ *	All rights reserved.
+ *	
+ *	Redistribution and use in source and binary forms, with or without
+ *	modification, are permitted provided that the following conditions are met:
+ *	    * Redistributions of source code must retain the above copyright
+ *	      notice, this list of conditions and the following disclaimer.
+ *	    * Redistributions in binary form must reproduce the above copyright
+ *	      notice, this list of conditions and the following disclaimer in the
+ *	      documentation and/or other materials provided with the distribution.
+ *	    * Neither the name of the <organization> nor the
+ *	      names of its contributors may be used to endorse or promote products
+ *	      derived from this software without specific prior written permission.
+ *	
+ *	THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *	ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *	WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *	DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ *	DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *	(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *	LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *	ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *	(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *	SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ossindex.eclipse.common;
+
+import java.util.Arrays;
+
+/** The include paths and macros a C/C++ translation unit is compiled with.
+ * 
+ * Instances are shared by all translation units with the same settings, so
+ * the arrays returned must not be modified. Translation units can be grouped
+ * by their fingerprint, which is equal exactly when the settings are.
+ * 
+ * @author Ken Duck
+ *
+ */
+public final class CSettings
+{
+	public static final CSettings EMPTY = new CSettings(new String[0], new String[0]);
+
+	private final String[] includePaths;
+	private final String[] macros;
+	private final String fingerprint;
+
+	/**
+	 * 
+	 * @param includePaths
+	 * @param macros Macros in NAME or NAME=VALUE form
+	 */
+	public CSettings(String[] includePaths, String[] macros)
+	{
+		this.includePaths = includePaths;
+		this.macros = macros;
+
+		StringBuilder sb = new StringBuilder();
+		for(String include: includePaths)
+		{
+			sb.append("-I").append(include).append('\n');
+		}
+		for(String macro: macros)
+		{
+			sb.append("-D").append(macro).append('\n');
+		}
+		fingerprint = sb.toString();
+	}
+
+	/** Get the include paths. The array is shared, do not modify it.
+	 * 
+	 * @return
+	 */
+	public String[] getIncludePaths()
+	{
+		return includePaths;
+	}
+
+	/** Get the macros in NAME or NAME=VALUE form. The array is shared, do not
+	 * modify it.
+	 * 
+	 * @return
+	 */
+	public String[] getMacros()
+	{
+		return macros;
+	}
+
+	/** Get a string that identifies the settings. Two settings have the same
+	 * fingerprint exactly when their include paths and macros are equal.
+	 * 
+	 * @return
+	 */
+	public String getFingerprint()
+	{
+		return fingerprint;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.lang.Object#equals(java.lang.Object)
+	 */
+	@Override
+	public boolean equals(Object o)
+	{
+		if(this == o) return true;
+		if(!(o instanceof CSettings)) return false;
+		return fingerprint.equals(((CSettings)o).fingerprint);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.lang.Object#hashCode()
+	 */
+	@Override
+	public int hashCode()
+	{
+		return fingerprint.hashCode();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString()
+	{
+		return "CSettings" + Arrays.toString(includePaths) + Arrays.toString(macros);
+	}
+}
@@ -37,7 +37,9 @@ import org.eclipse.core.resources.IResource;
  */
 public interface ICUtils
 {
-	/**
+	/** Bind the utilities to a project. The instances returned by
+	 * Utils.getCUtils(IProject) are shared by all builders and must not be
+	 * rebound, ask for the instance of the other project instead.
 	 * 
 	 * @param project
 	 */
@@ -49,6 +51,15 @@ public interface ICUtils
 	 * @return
 	 */
 	public boolean isCppCompilationUnit(IResource resource);
+
+	/** Return true if a file with the provided name in the project would be
+	 * a C/C++ compilation unit. This allows filtering without a resource handle.
+	 * 
+	 * @param project
+	 * @param name
+	 * @return
+	 */
+	public boolean isCppCompilationUnitName(IProject project, String name);
 	
 
 	/**
@@ -61,6 +72,14 @@ public interface ICUtils
 	 */
 	public String[] getMacros(IResource resource);
 
+	/** Get the include paths and macros for the provided resource. The
+	 * instance is shared by all resources with the same settings.
+	 * 
+	 * @param resource
+	 * @return
+	 */
+	public CSettings getSettings(IResource resource);
+
 	/** Returns true if the C utilities are available
 	 * 
 	 * @return
@@ -41,7 +41,9 @@ import org.eclipse.core.runtime.IPath;
  */
 public interface IJavaUtils
 {
-	/**
+	/** Bind the utilities to a project. The instances returned by
+	 * Utils.getJavaUtils(IProject) are shared by all builders and must not be
+	 * rebound, ask for the instance of the other project instead.
 	 * 
 	 * @param project
 	 */
@@ -72,7 +74,8 @@ public interface IJavaUtils
 	 */
 	public String[] getSourcePaths(IResource resource);
 
-	/** Get the class paths for the project
+	/** Get the class paths for the project: the absolute jar and folder
+	 * locations of its resolved classpath, including required projects.
 	 * 
 	 * @param javaProject
 	 */
@@ -101,7 +104,7 @@ public interface IJavaUtils
 	/** Given a class file, identify the source file that it corresponds to.
 	 * 
 	 * @param resource
-	 * @return
+	 * @return The source file, or null if it cannot be found
 	 */
 	public IFile getSourceFile(IFile classFile);
 
@@ -116,4 +119,13 @@ public interface IJavaUtils
 	 */
 	public IFile getClassFile(IFile sourceFile);
 
+	/** Get all class files built from the source file: the top level class,
+	 * its nested classes and any secondary top level types. The top level
+	 * class comes first.
+	 * 
+	 * @param sourceFile
+	 * @return
+	 */
+	public List<IFile> getClassFiles(IFile sourceFile);
+
 }
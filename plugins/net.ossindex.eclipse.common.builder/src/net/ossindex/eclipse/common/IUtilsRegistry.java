@@ -0,0 +1,63 @@
+/**
+ *	Copyright (c) 2015 Vr Security Inc.
+ *	All rights reserved.
+ *	
+ *	Redistribution and use in source and binary forms, with or without
+ *	modification, are permitted provided that the following conditions are met:
+ *	    * Redistributions of source code must retain the above copyright
+ *	      notice, this list of conditions and the following disclaimer.
+ *	    * Redistributions in binary form must reproduce the above copyright
+ *	      notice, this list of conditions and the following disclaimer in the
+ *	      documentation and/or other materials provided with the distribution.
+ *	    * Neither the name of the <organization> nor the
+ *	      names of its contributors may be used to endorse or promote products
+ *	      derived from this software without specific prior written permission.
+ *	
+ *	THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *	ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *	WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *	DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ *	DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *	(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *	LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *	ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *	(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *	SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ossindex.eclipse.common;
+
+import org.eclipse.core.resources.IProject;
+
+/** Plugin wide registry of the project specific Java and C utilities. Each
+ * project gets its own instances, bound to it when they are created and
+ * shared by all builders and visitors. The registry is available as an
+ * OSGi service.
+ * 
+ * @author Ken Duck
+ *
+ */
+public interface IUtilsRegistry
+{
+	/** Get the Java utilities for the project. If JDT is not installed a
+	 * stub is returned.
+	 * 
+	 * @param project
+	 * @return
+	 */
+	public IJavaUtils getJavaUtils(IProject project);
+
+	/** Get the C/C++ utilities for the project. If CDT is not installed a
+	 * stub is returned.
+	 * 
+	 * @param project
+	 * @return
+	 */
+	public ICUtils getCUtils(IProject project);
+
+	/** Forget the utilities of the project, they are created again on the
+	 * next request.
+	 * 
+	 * @param project
+	 */
+	public void invalidate(IProject project);
+}
@@ -26,14 +26,11 @@
  */
 package net.ossindex.eclipse.common;
 
-import net.ossindex.eclipse.common.impl.CUtilsStub;
-import net.ossindex.eclipse.common.impl.JavaUtilsStub;
+import net.ossindex.eclipse.common.builder.DirtyTracker;
+import net.ossindex.eclipse.common.builder.state.BuildStateIndex;
 
-import org.eclipse.core.resources.IContainer;
 import org.eclipse.core.resources.IProject;
 import org.eclipse.core.resources.IResource;
-import org.eclipse.core.runtime.CoreException;
-import org.eclipse.core.runtime.QualifiedName;
 
 /**
  * 
@@ -56,69 +53,45 @@ public class Utils
 		return jutils.getResource(cutils.getResource(object));
 	}
 
-	/** Get the JavaUtils if possible.
+	/** Get the shared JavaUtils for the project. The instance comes from the
+	 * UtilsRegistry and is already bound to the project, so it must not be
+	 * rebound. Use getJavaUtils() for a private instance.
 	 * 
 	 * @param project
 	 * @return
 	 */
 	public static IJavaUtils getJavaUtils(IProject project)
 	{
-		IJavaUtils utils = getJavaUtils();
-		if(utils != null)
-		{
-			utils.setProject(project);
-		}
-		return utils;
+		return UtilsRegistry.getDefault().getJavaUtils(project);
 	}
 
-	/** Get the JavaUtils if possible.
+	/** Get a new JavaUtils that is not bound to a project.
 	 * 
 	 * @return
 	 */
 	public static IJavaUtils getJavaUtils() {
-		try
-		{
-			Class<?> c = Class.forName("net.ossindex.eclipse.common.impl.JavaUtils");
-			IJavaUtils utils = (IJavaUtils)c.newInstance();
-			return utils;
-		}
-		catch (ClassNotFoundException | InstantiationException | IllegalAccessException | NoClassDefFoundError e)
-		{
-			return new JavaUtilsStub();
-		} 
+		return UtilsRegistry.createJavaUtils();
 	}
 
-	/** Get the CUtils if possible.
+	/** Get the shared CUtils for the project. The instance comes from the
+	 * UtilsRegistry and is already bound to the project, so it must not be
+	 * rebound. Use getCUtils() for a private instance.
 	 * 
 	 * @param project
 	 * @return
 	 */
 	public static ICUtils getCUtils(IProject project)
 	{
-		ICUtils utils = getCUtils();
-		if(utils != null)
-		{
-			utils.setProject(project);
-		}
-		return utils;
+		return UtilsRegistry.getDefault().getCUtils(project);
 	}
 
-	/** Get the CUtils if possible.
+	/** Get a new CUtils that is not bound to a project.
 	 * 
 	 * @return
 	 */
 	public static ICUtils getCUtils()
 	{
-		try
-		{
-			Class<?> c = Class.forName("net.ossindex.eclipse.common.impl.CUtils");
-			ICUtils utils = (ICUtils)c.newInstance();
-			return utils;
-		}
-		catch (ClassNotFoundException | InstantiationException | IllegalAccessException | NoClassDefFoundError e)
-		{
-			return new CUtilsStub();
-		} 
+		return UtilsRegistry.createCUtils();
 	}
 
 	/** Clear builder timestamps that are used to prevent re-build.
@@ -128,38 +101,9 @@ public class Utils
 	 */
 	public static void resetBuilderTimestamp(IResource resource, String builderId)
 	{
-		try
-		{
-			QualifiedName timestampQualifier = new QualifiedName(builderId, ".TIMESTAMP");
-			resetBuilderTimestamp(resource, timestampQualifier);
-		}
-		catch (CoreException e)
-		{
-			e.printStackTrace();
-		}
-	}
-
-	/** Clear builder timestamps that are used to prevent re-build.
-	 * 
-	 * @param resource
-	 * @param qname
-	 * @throws CoreException 
-	 */
-	private static void resetBuilderTimestamp(IResource resource, QualifiedName qname) throws CoreException
-	{
-		resource.setPersistentProperty(qname, null);
-
-		if(resource instanceof IContainer)
-		{
-			IResource[] resources = ((IContainer)resource).members();
-			if(resources != null)
-			{
-				for (IResource child : resources)
-				{
-					resetBuilderTimestamp(child, qname);
-				}
-			}
-		}
+		BuildStateIndex.getIndex(builderId).clean(resource);
+		if(resource.getProject() != null) DirtyTracker.getTracker(builderId).invalidate(resource.getProject());
+		else DirtyTracker.getTracker(builderId).invalidateAll();
 	}
 
 }
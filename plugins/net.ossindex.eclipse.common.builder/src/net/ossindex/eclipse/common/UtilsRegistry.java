@@ -0,0 +1,258 @@
+/**
+ *	Copyright (c) 2015 Vr Security Inc.
+ *	All rights reserved.
+ *	
+ *	Redistribution and use in source and binary forms, with or without
+ *	modification, are permitted provided that the following conditions are met:
+ *	    * Redistributions of source code must retain the above copyright
+ *	      notice, this list of conditions and the following disclaimer.
+ *	    * Redistributions in binary form must reproduce the above copyright
+ *	      notice, this list of conditions and the following disclaimer in the
+ *	      documentation and/or other materials provided with the distribution.
+ *	    * Neither the name of the <organization> nor the
+ *	      names of its contributors may be used to endorse or promote products
+ *	      derived from this software without specific prior written permission.
+ *	
+ *	THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *	ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *	WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *	DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ *	DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *	(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *	LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *	ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *	(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *	SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ossindex.eclipse.common;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.ossindex.eclipse.common.impl.CUtilsStub;
+import net.ossindex.eclipse.common.impl.JavaUtilsStub;
+
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.resources.IResourceChangeEvent;
+import org.eclipse.core.resources.IResourceChangeListener;
+import org.eclipse.core.resources.IResourceDelta;
+import org.eclipse.core.resources.ResourcesPlugin;
+
+/** Default utilities registry. Lookups do not lock: instances are created
+ * on first request and the first one stored wins.
+ * 
+ * Entries are dropped when their project is closed or deleted, when its
+ * natures change, or when its .classpath or .cproject file changes.
+ * 
+ * @author Ken Duck
+ *
+ */
+public class UtilsRegistry implements IUtilsRegistry
+{
+	private static final String JAVA_UTILS = "net.ossindex.eclipse.common.impl.JavaUtils";
+	private static final String C_UTILS = "net.ossindex.eclipse.common.impl.CUtils";
+
+	/**
+	 * Implementation classes, null if the platform support is not installed
+	 */
+	private static volatile Class<?> javaUtilsClass = loadClass(JAVA_UTILS);
+	private static volatile Class<?> cUtilsClass = loadClass(C_UTILS);
+
+	private static final UtilsRegistry INSTANCE = new UtilsRegistry();
+
+	private ConcurrentHashMap<String,IJavaUtils> javaUtils = new ConcurrentHashMap<String,IJavaUtils>();
+
+	private ConcurrentHashMap<String,ICUtils> cUtils = new ConcurrentHashMap<String,ICUtils>();
+
+	private IResourceChangeListener listener;
+
+	/**
+	 * Use getDefault
+	 */
+	private UtilsRegistry()
+	{
+	}
+
+	/** Get the shared registry
+	 * 
+	 * @return
+	 */
+	public static UtilsRegistry getDefault()
+	{
+		return INSTANCE;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see net.ossindex.eclipse.common.IUtilsRegistry#getJavaUtils(org.eclipse.core.resources.IProject)
+	 */
+	@Override
+	public IJavaUtils getJavaUtils(IProject project)
+	{
+		IJavaUtils utils = javaUtils.get(project.getName());
+		if(utils == null)
+		{
+			startup();
+			utils = createJavaUtils();
+			utils.setProject(project);
+			IJavaUtils existing = javaUtils.putIfAbsent(project.getName(), utils);
+			if(existing != null) utils = existing;
+		}
+		return utils;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see net.ossindex.eclipse.common.IUtilsRegistry#getCUtils(org.eclipse.core.resources.IProject)
+	 */
+	@Override
+	public ICUtils getCUtils(IProject project)
+	{
+		ICUtils utils = cUtils.get(project.getName());
+		if(utils == null)
+		{
+			startup();
+			utils = createCUtils();
+			utils.setProject(project);
+			ICUtils existing = cUtils.putIfAbsent(project.getName(), utils);
+			if(existing != null) utils = existing;
+		}
+		return utils;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see net.ossindex.eclipse.common.IUtilsRegistry#invalidate(org.eclipse.core.resources.IProject)
+	 */
+	@Override
+	public void invalidate(IProject project)
+	{
+		javaUtils.remove(project.getName());
+		cUtils.remove(project.getName());
+	}
+
+	/** Create Java utilities that are not bound to a project
+	 * 
+	 * @return
+	 */
+	public static IJavaUtils createJavaUtils()
+	{
+		Class<?> c = javaUtilsClass;
+		if(c != null)
+		{
+			try
+			{
+				return (IJavaUtils)c.getDeclaredConstructor().newInstance();
+			}
+			catch (ReflectiveOperationException | NoClassDefFoundError e)
+			{
+				javaUtilsClass = null;
+			}
+		}
+		return new JavaUtilsStub();
+	}
+
+	/** Create C/C++ utilities that are not bound to a project
+	 * 
+	 * @return
+	 */
+	public static ICUtils createCUtils()
+	{
+		Class<?> c = cUtilsClass;
+		if(c != null)
+		{
+			try
+			{
+				return (ICUtils)c.getDeclaredConstructor().newInstance();
+			}
+			catch (ReflectiveOperationException | NoClassDefFoundError e)
+			{
+				cUtilsClass = null;
+			}
+		}
+		return new CUtilsStub();
+	}
+
+	/**
+	 * 
+	 * @param name
+	 * @return The class, or null if it cannot be loaded
+	 */
+	private static Class<?> loadClass(String name)
+	{
+		try
+		{
+			return Class.forName(name);
+		}
+		catch (ClassNotFoundException | NoClassDefFoundError e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Start listening to the workspace, if we are not already.
+	 */
+	private synchronized void startup()
+	{
+		if(listener != null) return;
+		listener = new IResourceChangeListener()
+		{
+			@Override
+			public void resourceChanged(IResourceChangeEvent event)
+			{
+				if(event.getType() != IResourceChangeEvent.POST_CHANGE)
+				{
+					if(event.getResource() instanceof IProject) invalidate((IProject)event.getResource());
+					return;
+				}
+				IResourceDelta delta = event.getDelta();
+				if(delta == null) return;
+				for(IResourceDelta projectDelta: delta.getAffectedChildren())
+				{
+					if(isStale(projectDelta)) invalidate((IProject)projectDelta.getResource());
+				}
+			}
+		};
+		ResourcesPlugin.getWorkspace().addResourceChangeListener(listener,
+				IResourceChangeEvent.PRE_CLOSE | IResourceChangeEvent.PRE_DELETE | IResourceChangeEvent.POST_CHANGE);
+	}
+
+	/** Returns true if the project change means its utilities need to be
+	 * created again. Only the project and its top level files are looked at.
+	 * 
+	 * @param delta
+	 * @return
+	 */
+	private boolean isStale(IResourceDelta delta)
+	{
+		if(!(delta.getResource() instanceof IProject)) return false;
+		String name = delta.getResource().getName();
+		if(!javaUtils.containsKey(name) && !cUtils.containsKey(name)) return false;
+
+		if(delta.getKind() != IResourceDelta.CHANGED) return true;
+		if((delta.getFlags() & (IResourceDelta.OPEN | IResourceDelta.DESCRIPTION)) != 0) return true;
+		for(IResourceDelta child: delta.getAffectedChildren())
+		{
+			IResource resource = child.getResource();
+			if(resource.getType() != IResource.FILE) continue;
+			String file = resource.getName();
+			if(".classpath".equals(file) || ".cproject".equals(file)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Stop listening to the workspace and forget all utilities.
+	 */
+	public synchronized void shutdown()
+	{
+		if(listener != null)
+		{
+			ResourcesPlugin.getWorkspace().removeResourceChangeListener(listener);
+			listener = null;
+		}
+		javaUtils.clear();
+		cUtils.clear();
+	}
+}
@@ -0,0 +1,281 @@
+/**
+ *	Copyright (c) 2015 Vr Security Inc.
+ *	All rights reserved.
+ *	
+ *	Redistribution and use in source and binary forms, with or without
+ *	modification, are permitted provided that the following conditions are met:
+ *	    * Redistributions of source code must retain the above copyright
+ *	      notice, this list of conditions and the following disclaimer.
+ *	    * Redistributions in binary form must reproduce the above copyright
+ *	      notice, this list of conditions and the following disclaimer in the
+ *	      documentation and/or other materials provided with the distribution.
+ *	    * Neither the name of the <organization> nor the
+ *	      names of its contributors may be used to endorse or promote products
+ *	      derived from this software without specific prior written permission.
+ *	
+ *	THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *	ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *	WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *	DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ *	DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *	(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *	LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *	ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *	(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *	SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ossindex.eclipse.common.builder;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.lang.management.OperatingSystemMXBean;
+
+/** Adjusts the number of files a concurrent build runs at once while the
+ * build is running.
+ * 
+ * Every interval the controller looks at the throughput (files completed per
+ * second), the CPU load and the heap usage:
+ * 
+ *   1. If the heap is nearly full the limit is halved.
+ *   2. If the CPU is overloaded the limit is cut by a quarter. It is not
+ *      cut for the CPU again until the load has responded to the last cut.
+ *   3. If the last increase made throughput worse, the limit goes back down
+ *      by one.
+ *   4. Otherwise, if there is work waiting, the limit goes up by one.
+ * 
+ * The CPU load is the system load average per processor, scaled so that
+ * LOAD_SATURATED processes per processor count as fully loaded. It is
+ * damped over a minute, which is why the controller waits for it to respond
+ * to a cut. It is not available on all platforms, in which case it is
+ * ignored and the throughput alone drives the limit.
+ * 
+ * The bounds and interval can be set with system properties. Every decision
+ * is recorded in the builder's BuildMetrics.
+ * 
+ * @author Ken Duck
+ *
+ */
+public class AdaptiveConcurrencyController
+{
+	public static final String MIN_PROPERTY = "net.ossindex.eclipse.common.builder.adaptive.min";
+	public static final String MAX_PROPERTY = "net.ossindex.eclipse.common.builder.adaptive.max";
+	public static final String INTERVAL_PROPERTY = "net.ossindex.eclipse.common.builder.adaptive.interval";
+
+	/**
+	 * Heap usage above which we back off
+	 */
+	private static final double HEAP_HIGH = 0.85;
+
+	/**
+	 * CPU load above which we back off
+	 */
+	private static final double CPU_HIGH = 0.95;
+
+	/**
+	 * Load average per processor that counts as a CPU load of 1
+	 */
+	private static final double LOAD_SATURATED = 1.25;
+
+	/**
+	 * Windows to wait for the CPU load to respond to a cut before another
+	 * cut is allowed. At the default interval this is about as long as the
+	 * load average takes to follow a change.
+	 */
+	private static final int CPU_SETTLE_WINDOWS = 60;
+
+	/**
+	 * Throughput drop that counts as getting worse
+	 */
+	private static final double TOLERANCE = 0.1;
+
+	private int min;
+	private int max;
+	private volatile int limit;
+
+	/**
+	 * Milliseconds between decisions
+	 */
+	private long interval;
+
+	private long windowStart;
+	private int windowCompleted = 0;
+
+	/**
+	 * Throughput of the previous window, -1 if there is none
+	 */
+	private double lastThroughput = -1;
+
+	/**
+	 * Direction of the last change: 1 up, -1 down, 0 none
+	 */
+	private int lastDirection = 0;
+
+	/**
+	 * CPU load when the limit was last cut for the CPU, -1 once the load has
+	 * responded
+	 */
+	private double cpuAtCut = -1;
+
+	/**
+	 * Windows since the last cut for the CPU
+	 */
+	private int windowsSinceCut = 0;
+
+	private BuildMetrics metrics;
+
+	/**
+	 * 
+	 * @param builderId
+	 * @param min Lowest limit
+	 * @param max Highest limit
+	 */
+	public AdaptiveConcurrencyController(String builderId, int min, int max)
+	{
+		this.max = Math.max(1, Integer.getInteger(MAX_PROPERTY, max));
+		this.min = Math.max(1, Math.min(this.max, Integer.getInteger(MIN_PROPERTY, min)));
+		this.interval = Long.getLong(INTERVAL_PROPERTY, 1000);
+		// Start at one job per processor, which suits CPU bound visitors
+		this.limit = clamp(Runtime.getRuntime().availableProcessors());
+		this.windowStart = System.currentTimeMillis();
+		this.metrics = BuildMetrics.getMetrics(builderId);
+		metrics.set("concurrency.limit", limit);
+		metrics.set("concurrency.min", this.min);
+		metrics.set("concurrency.max", this.max);
+	}
+
+	/** Current limit
+	 * 
+	 * @return
+	 */
+	public int getLimit()
+	{
+		return limit;
+	}
+
+	/** Highest limit the controller may choose
+	 * 
+	 * @return
+	 */
+	public int getMax()
+	{
+		return max;
+	}
+
+	/** Called whenever a file completes.
+	 * 
+	 * @param saturated True if there is work waiting for a free slot
+	 * @return true if the limit changed
+	 */
+	public synchronized boolean completed(boolean saturated)
+	{
+		windowCompleted++;
+		long now = System.currentTimeMillis();
+		long elapsed = now - windowStart;
+		if(elapsed < interval) return false;
+
+		double throughput = windowCompleted * 1000.0 / elapsed;
+		windowStart = now;
+		windowCompleted = 0;
+		return adjust(throughput, getCpuLoad(), getHeapUsage(), saturated);
+	}
+
+	/** Make a decision for one window
+	 * 
+	 * @param throughput Files per second
+	 * @param cpu CPU load between 0 and 1, negative if unknown
+	 * @param heap Fraction of the heap in use
+	 * @param saturated
+	 * @return true if the limit changed
+	 */
+	protected boolean adjust(double throughput, double cpu, double heap, boolean saturated)
+	{
+		int next = limit;
+		String reason = null;
+
+		// Wait for the CPU load to show the effect of the last cut
+		boolean settling = false;
+		if(cpuAtCut >= 0)
+		{
+			windowsSinceCut++;
+			if(cpu < cpuAtCut || windowsSinceCut >= CPU_SETTLE_WINDOWS) cpuAtCut = -1;
+			else settling = true;
+		}
+
+		if(heap > HEAP_HIGH)
+		{
+			next = limit / 2;
+			reason = "heap";
+		}
+		else if(cpu > CPU_HIGH)
+		{
+			if(!settling)
+			{
+				next = limit * 3 / 4;
+				reason = "cpu";
+				cpuAtCut = cpu;
+				windowsSinceCut = 0;
+			}
+		}
+		else if(lastDirection > 0 && throughput < lastThroughput * (1 - TOLERANCE))
+		{
+			next = limit - 1;
+			reason = "throughput";
+		}
+		else if(saturated)
+		{
+			next = limit + 1;
+			reason = "increase";
+		}
+		lastThroughput = throughput;
+		next = clamp(next);
+
+		metrics.set("concurrency.throughput", (long)(throughput * 1000));
+		if(cpu >= 0) metrics.set("concurrency.cpu", (long)(cpu * 1000));
+		metrics.set("concurrency.heap", (long)(heap * 1000));
+
+		if(next == limit)
+		{
+			lastDirection = 0;
+			return false;
+		}
+		lastDirection = next > limit ? 1 : -1;
+		limit = next;
+		metrics.set("concurrency.limit", limit);
+		metrics.increment("concurrency.decision." + reason);
+		return true;
+	}
+
+	/**
+	 * 
+	 * @param value
+	 * @return
+	 */
+	private int clamp(int value)
+	{
+		return Math.max(min, Math.min(max, value));
+	}
+
+	/** Recent CPU load between 0 and 1, or -1 if unknown
+	 * 
+	 * @return
+	 */
+	protected double getCpuLoad()
+	{
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		double load = os.getSystemLoadAverage();
+		if(load < 0) return -1;
+		return Math.min(1, load / os.getAvailableProcessors() / LOAD_SATURATED);
+	}
+
+	/** Fraction of the maximum heap in use
+	 * 
+	 * @return
+	 */
+	protected double getHeapUsage()
+	{
+		MemoryUsage usage = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+		long max = usage.getMax();
+		if(max <= 0) return 0;
+		return (double)usage.getUsed() / max;
+	}
+}
@@ -0,0 +1,309 @@
+/**
+ *	Copyright (c) 2015 Vr Security Inc.
+ *	All rights reserved.
+ *	
+ *	Redistribution and use in source and binary forms, with or without
+ *	modification, are permitted provided that the following conditions are met:
+ *	    * Redistributions of source code must retain the above copyright
+ *	      notice, this list of conditions and the following disclaimer.
+ *	    * Redistributions in binary form must reproduce the above copyright
+ *	      notice, this list of conditions and the following disclaimer in the
+ *	      documentation and/or other materials provided with the distribution.
+ *	    * Neither the name of the <organization> nor the
+ *	      names of its contributors may be used to endorse or promote products
+ *	      derived from this software without specific prior written permission.
+ *	
+ *	THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *	ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *	WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *	DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ *	DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *	(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *	LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *	ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *	(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *	SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ossindex.eclipse.common.builder;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.ossindex.eclipse.common.builder.state.BuildStateIndex;
+
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.resources.IProject;
+
+/** Decides whether an incremental build of the changed files or a batch
+ * build of the whole project is cheaper, per builder and project.
+ * 
+ * The incremental cost is predicted from the recorded cost of each changed
+ * file (see BuildStateIndex.getExpectedCost), spread over the number of
+ * files that can be built at once. Files of unknown cost are assumed to
+ * cost the average of the known ones. If no cost is known at all the
+ * model cannot compare the strategies and falls back to the threshold. The batch cost is the measured time of
+ * the last batch build of the project. Until a batch build has been
+ * measured the builder's file count threshold is used instead.
+ * 
+ * To avoid flip-flopping between the two when the predictions are close,
+ * the model only switches away from the strategy it used last time if the
+ * other one is predicted to be at least HYSTERESIS cheaper.
+ * 
+ * The decisions and the predictions they were based on are recorded in the
+ * builder's BuildMetrics.
+ * 
+ * @author Ken Duck
+ *
+ */
+public class BuildCostModel
+{
+	/**
+	 * Fraction by which the other strategy must be cheaper before we switch
+	 */
+	private static final double HYSTERESIS = 0.25;
+
+	private static Map<String,BuildCostModel> models = new ConcurrentHashMap<String,BuildCostModel>();
+
+	private BuildStateIndex index;
+
+	private BuildMetrics metrics;
+
+	private IProject project;
+
+	/**
+	 * Strategy chosen by the last build
+	 */
+	private volatile boolean lastBatch = false;
+
+	/**
+	 * 
+	 * @param builderId
+	 * @param project
+	 */
+	private BuildCostModel(String builderId, IProject project)
+	{
+		this.index = BuildStateIndex.getIndex(builderId);
+		this.metrics = BuildMetrics.getMetrics(builderId);
+		this.project = project;
+	}
+
+	/** Get the model for the specified builder and project
+	 * 
+	 * @param builderId
+	 * @param project
+	 * @return
+	 */
+	public static BuildCostModel getModel(String builderId, IProject project)
+	{
+		String key = builderId + BuildStateIndex.getKey(project);
+		BuildCostModel model = models.get(key);
+		if(model == null)
+		{
+			synchronized(models)
+			{
+				model = models.get(key);
+				if(model == null)
+				{
+					model = new BuildCostModel(builderId, project);
+					models.put(key, model);
+				}
+			}
+		}
+		return model;
+	}
+
+	/** Measured time of the last batch build of the project, in nanoseconds.
+	 * 
+	 * @return The time, or 0 if no batch build was measured
+	 */
+	public long getBatchCost()
+	{
+		return index.getBatchCost(project);
+	}
+
+	/** Record how long a batch build of the project took
+	 * 
+	 * @param nanos
+	 */
+	public void recordBatchCost(long nanos)
+	{
+		index.recordBatchCost(project, nanos);
+		metrics.set("strategy.cost.batch.measured", nanos);
+	}
+
+	/** Returns true if the batch cost beats the incremental cost, taking the
+	 * previous decision into account.
+	 * 
+	 * @param incremental
+	 * @param batch
+	 * @return
+	 */
+	private boolean isBatchCheaper(long incremental, long batch)
+	{
+		if(lastBatch)
+		{
+			// Stay with batch builds unless incremental is clearly cheaper
+			return incremental >= batch * (1 - HYSTERESIS);
+		}
+		return batch < incremental * (1 - HYSTERESIS);
+	}
+
+	/** Running prediction for a set of changed files. Files are added as they
+	 * are found, the decision can be checked after every file.
+	 * 
+	 * Subclasses may override choose to replace the model's decision.
+	 * 
+	 * @author Ken Duck
+	 *
+	 */
+	public static class Estimate
+	{
+		private BuildCostModel model;
+
+		private CommonBuildVisitor visitor;
+
+		/**
+		 * File count used while no batch build has been measured
+		 */
+		private int threshold;
+
+		/**
+		 * Number of files that can be built at once
+		 */
+		private int parallelism;
+
+		private long batchCost;
+
+		private int count = 0;
+
+		/**
+		 * Files whose cost is unknown
+		 */
+		private int unknown = 0;
+
+		private long total = 0;
+		private long largest = 0;
+
+		/**
+		 * 
+		 * @param model
+		 * @param visitor Visitor used to look up the cost of the files
+		 * @param threshold File count above which a batch build is done
+		 *                  while no batch build has been measured
+		 */
+		public Estimate(BuildCostModel model, CommonBuildVisitor visitor, int threshold)
+		{
+			this.model = model;
+			this.visitor = visitor;
+			this.threshold = threshold;
+			this.batchCost = model.getBatchCost();
+			this.parallelism = 1;
+			if(visitor instanceof IConcurrentBuildVisitor)
+			{
+				int max = visitor.getMaxJobs();
+				parallelism = max > 0 ? max : BuildExecutor.getDefault().getPool().getParallelism();
+			}
+		}
+
+		/** Add a changed file to the prediction.
+		 * 
+		 * @param file
+		 * @return true if a batch build should now be done instead
+		 */
+		public boolean add(IFile file)
+		{
+			long cost = visitor.getExpectedCost(file);
+			count++;
+			if(cost < 0)
+			{
+				unknown++;
+			}
+			else
+			{
+				total += cost;
+				if(cost > largest) largest = cost;
+			}
+			return isBatch();
+		}
+
+		/** Predicted time to build the files added so far, in nanoseconds
+		 * 
+		 * @return The cost, or 0 if no file cost is known
+		 */
+		public long getIncrementalCost()
+		{
+			int known = count - unknown;
+			if(known == 0) return 0;
+			long estimated = total + total / known * unknown;
+			return Math.max(estimated / parallelism, largest);
+		}
+
+		/** Predicted time of a batch build, or 0 if unknown
+		 * 
+		 * @return
+		 */
+		public long getBatchCost()
+		{
+			return batchCost;
+		}
+
+		/** Number of files added
+		 * 
+		 * @return
+		 */
+		public int getCount()
+		{
+			return count;
+		}
+
+		/** Returns true if the model prefers a batch build
+		 * 
+		 * @return
+		 */
+		public boolean isBatchSuggested()
+		{
+			if(count == 0) return false;
+			if(batchCost <= 0 || count == unknown) return count > threshold;
+			return model.isBatchCheaper(getIncrementalCost(), batchCost);
+		}
+
+		/** Returns true if a batch build should be done
+		 * 
+		 * @return
+		 */
+		public boolean isBatch()
+		{
+			return choose(isBatchSuggested());
+		}
+
+		/** Override hook for the decision. This may be called several times
+		 * while files are being added.
+		 * 
+		 * @param suggested The model's decision
+		 * @return true for a batch build
+		 */
+		protected boolean choose(boolean suggested)
+		{
+			return suggested;
+		}
+
+		/** Record the strategy that was actually used. This is remembered
+		 * for the hysteresis and written to the metrics.
+		 * 
+		 * @param batch
+		 */
+		public void commit(boolean batch)
+		{
+			model.lastBatch = batch;
+
+			BuildMetrics metrics = model.metrics;
+			metrics.set("strategy.files", count);
+			metrics.set("strategy.cost.incremental", getIncrementalCost());
+			metrics.set("strategy.cost.batch", batchCost);
+			metrics.increment(batch ? "strategy.decision.batch" : "strategy.decision.incremental");
+			if(batchCost <= 0 || count == unknown) metrics.increment("strategy.decision.threshold");
+			metrics.set("strategy.files.unknown", unknown);
+			if(batch != isBatchSuggested()) metrics.increment("strategy.decision.override");
+		}
+	}
+}
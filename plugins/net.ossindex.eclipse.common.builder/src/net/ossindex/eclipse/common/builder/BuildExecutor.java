@@ -0,0 +1,517 @@
+/**
+ *	Copyright (c) 2015 Vr Security Inc.
+ *	All rights reserved.
+ *	
+ *	Redistribution and use in source and binary forms, with or without
+ *	modification, are permitted provided that the following conditions are met:
+ *	    * Redistributions of source code must retain the above copyright
+ *	      notice, this list of conditions and the following disclaimer.
+ *	    * Redistributions in binary form must reproduce the above copyright
+ *	      notice, this list of conditions and the following disclaimer in the
+ *	      documentation and/or other materials provided with the distribution.
+ *	    * Neither the name of the <organization> nor the
+ *	      names of its contributors may be used to endorse or promote products
+ *	      derived from this software without specific prior written permission.
+ *	
+ *	THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *	ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *	WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *	DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ *	DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *	(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *	LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *	ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *	(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *	SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ossindex.eclipse.common.builder;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import net.ossindex.eclipse.common.Activator;
+
+/** Plugin wide executor for concurrent builds and tree walks. There is one
+ * long lived work-stealing pool shared by all builders instead of a new
+ * thread pool per build.
+ * 
+ * Builds run in lanes, one per concurrent build. The executor has a global
+ * budget of build jobs that may run at once, which is shared fairly between
+ * the active lanes. A lane never runs more than its own limit, which comes
+ * from CommonBuildVisitor.getMaxJobs().
+ * 
+ * Build jobs may block (on I/O or external tools), so they are run as
+ * managed blockers. This lets the pool add threads for tree walks while
+ * build jobs are waiting.
+ * 
+ * @author Ken Duck
+ *
+ */
+public class BuildExecutor
+{
+	/**
+	 * System property that overrides the global budget
+	 */
+	public static final String BUDGET_PROPERTY = "net.ossindex.eclipse.common.builder.maxJobs";
+
+	/**
+	 * Used when the plugin is not running (for example outside of OSGi)
+	 */
+	private static BuildExecutor fallback;
+
+	private ForkJoinPool pool;
+
+	/**
+	 * Single thread used to watch for stuck build jobs
+	 */
+	private ScheduledExecutorService watchdog;
+
+	/**
+	 * Maximum number of build jobs running at once over all lanes
+	 */
+	private int budget;
+
+	/**
+	 * Number of build jobs currently running over all lanes
+	 */
+	private int running = 0;
+
+	private List<Lane> lanes = new CopyOnWriteArrayList<Lane>();
+
+	/**
+	 * Lane to look at first on the next dispatch, so lanes take turns
+	 */
+	private int next = 0;
+
+	/**
+	 * 
+	 * @param budget Maximum number of concurrent build jobs
+	 */
+	public BuildExecutor(int budget)
+	{
+		this.budget = Math.max(1, budget);
+		pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+		watchdog = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, "Build watchdog");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Use the default budget, which is twice the number of processors unless
+	 * overridden by a system property. Lanes are adaptive and start at one
+	 * job per processor, the headroom is for builds that mostly wait.
+	 */
+	public BuildExecutor()
+	{
+		this(Integer.getInteger(BUDGET_PROPERTY, Runtime.getRuntime().availableProcessors() * 2));
+	}
+
+	/** Get the executor owned by the plugin.
+	 * 
+	 * @return
+	 */
+	public static BuildExecutor getDefault()
+	{
+		Activator plugin = Activator.getDefault();
+		if(plugin != null)
+		{
+			BuildExecutor executor = plugin.getBuildExecutor();
+			if(executor != null) return executor;
+		}
+		synchronized(BuildExecutor.class)
+		{
+			if(fallback == null) fallback = new BuildExecutor();
+			return fallback;
+		}
+	}
+
+	/** Get the shared pool. Used for tree walks.
+	 * 
+	 * @return
+	 */
+	public ForkJoinPool getPool()
+	{
+		return pool;
+	}
+
+	/** Get the scheduler used to check on running builds. Tasks run on it
+	 * must be short.
+	 * 
+	 * @return
+	 */
+	public ScheduledExecutorService getWatchdog()
+	{
+		return watchdog;
+	}
+
+	/** Get the global budget
+	 * 
+	 * @return
+	 */
+	public int getBudget()
+	{
+		return budget;
+	}
+
+	/** Open a new lane for a build.
+	 * 
+	 * @param name Used for debugging
+	 * @param maxJobs Limit for the lane, or 0 for no limit beyond the budget
+	 * @return
+	 */
+	public Lane openLane(String name, int maxJobs)
+	{
+		Lane lane = new Lane(name, maxJobs > 0 ? maxJobs : budget);
+		lanes.add(lane);
+		return lane;
+	}
+
+	/**
+	 * Stop the pool. Jobs that have not started are dropped, and told so if
+	 * they are Droppable.
+	 */
+	public void shutdown()
+	{
+		List<Runnable> dropped = new ArrayList<Runnable>();
+		synchronized(this)
+		{
+			for(Lane lane: lanes)
+			{
+				lane.closed = true;
+				dropped.addAll(lane.pending);
+				lane.pending.clear();
+			}
+			notifyAll();
+		}
+		// Outside the lock, since dropping may complete futures whose
+		// listeners call back into the executor
+		for(Runnable task: dropped)
+		{
+			if(task instanceof Droppable) ((Droppable)task).drop();
+		}
+		pool.shutdown();
+		watchdog.shutdownNow();
+	}
+
+	/** Number of lanes that have work queued or running
+	 * 
+	 * @return
+	 */
+	private int getActiveLanes()
+	{
+		int count = 0;
+		for(Lane lane: lanes)
+		{
+			if(lane.running > 0 || !lane.pending.isEmpty()) count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Start as many queued jobs as the budget and lane limits allow, taking
+	 * one from each lane in turn.
+	 */
+	private synchronized void dispatch()
+	{
+		if(pool.isShutdown()) return;
+
+		int share = Math.max(1, budget / Math.max(1, getActiveLanes()));
+		boolean started = true;
+		while(running < budget && started)
+		{
+			started = false;
+			int size = lanes.size();
+			for(int i = 0; i < size && running < budget; i++)
+			{
+				Lane lane = lanes.get((next + i) % size);
+				if(lane.pending.isEmpty()) continue;
+				if(lane.running >= Math.min(lane.limit, share)) continue;
+
+				Runnable task = lane.pending.poll();
+				running++;
+				lane.running++;
+				LaneTask laneTask = new LaneTask(lane, task);
+				lane.active.put(task, laneTask);
+				pool.execute(laneTask);
+				started = true;
+				next = (next + i + 1) % size;
+				break;
+			}
+		}
+	}
+
+	/** Called by a lane task when it is done, or when it is abandoned
+	 * 
+	 * @param task
+	 */
+	private synchronized void completed(LaneTask task)
+	{
+		if(task.finished) return;
+		task.finished = true;
+		running--;
+		task.lane.running--;
+		task.lane.active.remove(task.task);
+		dispatch();
+		notifyAll();
+	}
+
+	/** A job that holds something, such as a permit or a future, that has to
+	 * be given back if the job is dropped without running.
+	 */
+	public interface Droppable
+	{
+		/**
+		 * The job will never run
+		 */
+		void drop();
+	}
+
+	/** A queue of build jobs belonging to a single build.
+	 */
+	public class Lane
+	{
+		private String name;
+
+		/**
+		 * Most jobs this lane may run at once. Guarded by the executor.
+		 */
+		private int limit;
+
+		/**
+		 * Jobs that are waiting for a free slot. Guarded by the executor.
+		 */
+		private Queue<Runnable> pending = new LinkedList<Runnable>();
+
+		/**
+		 * Number of running jobs. Guarded by the executor.
+		 */
+		private int running = 0;
+
+		/**
+		 * True once the lane no longer accepts jobs. Guarded by the executor.
+		 */
+		private boolean closed = false;
+
+		/**
+		 * Running jobs, so they can be abandoned
+		 */
+		private Map<Runnable,LaneTask> active = new ConcurrentHashMap<Runnable,LaneTask>();
+
+		/**
+		 * 
+		 * @param name
+		 * @param limit
+		 */
+		private Lane(String name, int limit)
+		{
+			this.name = name;
+			this.limit = limit;
+		}
+
+		/** Queue a job. It will run as soon as there is room.
+		 * 
+		 * @param task
+		 * @return false if the lane is closed and the job was not queued
+		 */
+		public boolean submit(Runnable task)
+		{
+			synchronized(BuildExecutor.this)
+			{
+				if(closed) return false;
+				pending.add(task);
+				dispatch();
+				return true;
+			}
+		}
+
+		/** Change the number of jobs the lane may run at once
+		 * 
+		 * @param limit
+		 */
+		public void setLimit(int limit)
+		{
+			synchronized(BuildExecutor.this)
+			{
+				this.limit = Math.max(1, limit);
+				dispatch();
+			}
+		}
+
+		/** Give up on a running job that is stuck. Its slot is handed to the
+		 * next job, even though the job's thread may still be busy.
+		 * 
+		 * @param task
+		 */
+		public void abandon(Runnable task)
+		{
+			LaneTask laneTask = active.get(task);
+			if(laneTask != null) completed(laneTask);
+		}
+
+		/** Returns true if there are jobs waiting for a free slot
+		 * 
+		 * @return
+		 */
+		public boolean isSaturated()
+		{
+			synchronized(BuildExecutor.this)
+			{
+				return !pending.isEmpty();
+			}
+		}
+
+		/** Wait for all queued and running jobs to finish.
+		 * 
+		 * @param timeout
+		 * @param unit
+		 * @return true if the lane is idle, false if the timeout expired
+		 * @throws InterruptedException
+		 */
+		public boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException
+		{
+			long deadline = System.nanoTime() + unit.toNanos(timeout);
+			synchronized(BuildExecutor.this)
+			{
+				while(running > 0 || !pending.isEmpty())
+				{
+					long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+					if(remaining <= 0) return false;
+					BuildExecutor.this.wait(remaining);
+				}
+				return true;
+			}
+		}
+
+		/** Drop any jobs that have not started yet.
+		 * 
+		 * @return The jobs that were dropped
+		 */
+		public List<Runnable> cancel()
+		{
+			synchronized(BuildExecutor.this)
+			{
+				List<Runnable> dropped = new ArrayList<Runnable>(pending);
+				pending.clear();
+				BuildExecutor.this.notifyAll();
+				return dropped;
+			}
+		}
+
+		/** Remove the lane from the executor. Queued jobs are dropped.
+		 * 
+		 * @return The jobs that were dropped
+		 */
+		public List<Runnable> close()
+		{
+			synchronized(BuildExecutor.this)
+			{
+				closed = true;
+			}
+			List<Runnable> dropped = cancel();
+			lanes.remove(this);
+			return dropped;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString()
+		{
+			return name;
+		}
+	}
+
+	/** Runs a lane's job as a managed blocker, and hands the slot to the next
+	 * job when done.
+	 */
+	private class LaneTask implements Runnable, ForkJoinPool.ManagedBlocker
+	{
+		private Lane lane;
+		private Runnable task;
+		private boolean done = false;
+
+		/**
+		 * True once the slot has been given back. Guarded by the executor.
+		 */
+		private boolean finished = false;
+
+		/**
+		 * 
+		 * @param lane
+		 * @param task
+		 */
+		public LaneTask(Lane lane, Runnable task)
+		{
+			this.lane = lane;
+			this.task = task;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * @see java.lang.Runnable#run()
+		 */
+		@Override
+		public void run()
+		{
+			try
+			{
+				ForkJoinPool.managedBlock(this);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+			finally
+			{
+				completed(this);
+			}
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * @see java.util.concurrent.ForkJoinPool.ManagedBlocker#block()
+		 */
+		@Override
+		public boolean block() throws InterruptedException
+		{
+			try
+			{
+				task.run();
+			}
+			finally
+			{
+				done = true;
+			}
+			return true;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * @see java.util.concurrent.ForkJoinPool.ManagedBlocker#isReleasable()
+		 */
+		@Override
+		public boolean isReleasable()
+		{
+			return done;
+		}
+	}
+}
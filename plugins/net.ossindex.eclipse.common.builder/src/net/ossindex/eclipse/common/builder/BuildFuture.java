@@ -0,0 +1,212 @@
+/**
+ *	Copyright (c) 2015 Vr Security Inc.
+ *	All rights reserved.
+ *	
+ *	Redistribution and use in source and binary forms, with or without
+ *	modification, are permitted provided that the following conditions are met:
+ *	    * Redistributions of source code must retain the above copyright
+ *	      notice, this list of conditions and the following disclaimer.
+ *	    * Redistributions in binary form must reproduce the above copyright
+ *	      notice, this list of conditions and the following disclaimer in the
+ *	      documentation and/or other materials provided with the distribution.
+ *	    * Neither the name of the <organization> nor the
+ *	      names of its contributors may be used to endorse or promote products
+ *	      derived from this software without specific prior written permission.
+ *	
+ *	THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *	ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *	WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *	DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ *	DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *	(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *	LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *	ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *	(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *	SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ossindex.eclipse.common.builder;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/** A future that is completed explicitly by the build code, with listeners
+ * that are run on completion. Used to wait for concurrent builds without
+ * polling.
+ * 
+ * Listeners run on the thread that completes the future, or immediately on
+ * the calling thread if the future is already done, so they should be short.
+ * 
+ * @author Ken Duck
+ *
+ */
+public class BuildFuture<T> implements Future<T>
+{
+	private CountDownLatch latch = new CountDownLatch(1);
+
+	/**
+	 * Guarded by this
+	 */
+	private boolean done = false;
+
+	private volatile T value;
+	private volatile Throwable failure;
+	private volatile boolean cancelled = false;
+
+	/**
+	 * Run on completion. Guarded by this.
+	 */
+	private List<Runnable> listeners = new LinkedList<Runnable>();
+
+	/** Complete the future with a value.
+	 * 
+	 * @param value
+	 * @return false if the future was already done
+	 */
+	public boolean complete(T value)
+	{
+		synchronized(this)
+		{
+			if(done) return false;
+			this.value = value;
+			done = true;
+		}
+		fireCompleted();
+		return true;
+	}
+
+	/** Complete the future with an exception.
+	 * 
+	 * @param failure
+	 * @return false if the future was already done
+	 */
+	public boolean fail(Throwable failure)
+	{
+		synchronized(this)
+		{
+			if(done) return false;
+			this.failure = failure;
+			done = true;
+		}
+		fireCompleted();
+		return true;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.util.concurrent.Future#cancel(boolean)
+	 */
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning)
+	{
+		synchronized(this)
+		{
+			if(done) return false;
+			cancelled = true;
+			done = true;
+		}
+		fireCompleted();
+		return true;
+	}
+
+	/** Run the listener when the future is done.
+	 * 
+	 * @param listener
+	 */
+	public void addListener(Runnable listener)
+	{
+		synchronized(this)
+		{
+			if(!done)
+			{
+				listeners.add(listener);
+				return;
+			}
+		}
+		listener.run();
+	}
+
+	/**
+	 * Release any waiters and run the listeners
+	 */
+	private void fireCompleted()
+	{
+		latch.countDown();
+		List<Runnable> copy;
+		synchronized(this)
+		{
+			copy = listeners;
+			listeners = new LinkedList<Runnable>();
+		}
+		for(Runnable listener: copy)
+		{
+			try
+			{
+				listener.run();
+			}
+			catch (RuntimeException e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.util.concurrent.Future#isCancelled()
+	 */
+	@Override
+	public boolean isCancelled()
+	{
+		return cancelled;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.util.concurrent.Future#isDone()
+	 */
+	@Override
+	public boolean isDone()
+	{
+		return latch.getCount() == 0;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.util.concurrent.Future#get()
+	 */
+	@Override
+	public T get() throws InterruptedException, ExecutionException
+	{
+		latch.await();
+		return getResult();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.util.concurrent.Future#get(long, java.util.concurrent.TimeUnit)
+	 */
+	@Override
+	public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException
+	{
+		if(!latch.await(timeout, unit)) throw new TimeoutException();
+		return getResult();
+	}
+
+	/**
+	 * 
+	 * @return
+	 * @throws ExecutionException
+	 */
+	private T getResult() throws ExecutionException
+	{
+		if(cancelled) throw new CancellationException();
+		if(failure != null) throw new ExecutionException(failure);
+		return value;
+	}
+}
@@ -0,0 +1,167 @@
+/**
+ *	Copyright (c) 2015 Vr Security Inc.
+ *	All rights reserved.
+ *	
+ *	Redistribution and use in source and binary forms, with or without
+ *	modification, are permitted provided that the following conditions are met:
+ *	    * Redistributions of source code must retain the above copyright
+ *	      notice, this list of conditions and the following disclaimer.
+ *	    * Redistributions in binary form must reproduce the above copyright
+ *	      notice, this list of conditions and the following disclaimer in the
+ *	      documentation and/or other materials provided with the distribution.
+ *	    * Neither the name of the <organization> nor the
+ *	      names of its contributors may be used to endorse or promote products
+ *	      derived from this software without specific prior written permission.
+ *	
+ *	THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *	ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *	WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *	DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ *	DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *	(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *	LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *	ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *	(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *	SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ossindex.eclipse.common.builder;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Named counters and gauges describing what the build engine decided and
+ * why. There is one set of metrics per builder ID. Values are longs;
+ * fractions are stored in thousandths.
+ * 
+ * @author Ken Duck
+ *
+ */
+public class BuildMetrics
+{
+	private static Map<String,BuildMetrics> metrics = new ConcurrentHashMap<String,BuildMetrics>();
+
+	private String builderId;
+
+	private Map<String,AtomicLong> values = new ConcurrentHashMap<String,AtomicLong>();
+
+	/**
+	 * 
+	 * @param builderId
+	 */
+	private BuildMetrics(String builderId)
+	{
+		this.builderId = builderId;
+	}
+
+	/** Get the metrics for the specified builder
+	 * 
+	 * @param builderId
+	 * @return
+	 */
+	public static BuildMetrics getMetrics(String builderId)
+	{
+		BuildMetrics result = metrics.get(builderId);
+		if(result == null)
+		{
+			synchronized(metrics)
+			{
+				result = metrics.get(builderId);
+				if(result == null)
+				{
+					result = new BuildMetrics(builderId);
+					metrics.put(builderId, result);
+				}
+			}
+		}
+		return result;
+	}
+
+	/** Set a gauge
+	 * 
+	 * @param name
+	 * @param value
+	 */
+	public void set(String name, long value)
+	{
+		getValue(name).set(value);
+	}
+
+	/** Add one to a counter
+	 * 
+	 * @param name
+	 */
+	public void increment(String name)
+	{
+		getValue(name).incrementAndGet();
+	}
+
+	/** Add to a counter
+	 * 
+	 * @param name
+	 * @param delta
+	 */
+	public void add(String name, long delta)
+	{
+		getValue(name).addAndGet(delta);
+	}
+
+	/** Get a value, 0 if it was never set
+	 * 
+	 * @param name
+	 * @return
+	 */
+	public long get(String name)
+	{
+		AtomicLong value = values.get(name);
+		return value != null ? value.get() : 0;
+	}
+
+	/** Get a copy of all values, sorted by name
+	 * 
+	 * @return
+	 */
+	public Map<String,Long> getValues()
+	{
+		Map<String,Long> results = new TreeMap<String,Long>();
+		for(Map.Entry<String,AtomicLong> entry: values.entrySet())
+		{
+			results.put(entry.getKey(), entry.getValue().get());
+		}
+		return results;
+	}
+
+	/**
+	 * 
+	 * @param name
+	 * @return
+	 */
+	private AtomicLong getValue(String name)
+	{
+		AtomicLong value = values.get(name);
+		if(value == null)
+		{
+			synchronized(values)
+			{
+				value = values.get(name);
+				if(value == null)
+				{
+					value = new AtomicLong();
+					values.put(name, value);
+				}
+			}
+		}
+		return value;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString()
+	{
+		return builderId + " " + getValues();
+	}
+}
@@ -26,12 +26,21 @@
  */
 package net.ossindex.eclipse.common.builder;
 
-import net.ossindex.eclipse.common.ICUtils;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.ossindex.eclipse.common.CSettings;
 import net.ossindex.eclipse.common.Utils;
 
+import org.eclipse.core.resources.IContainer;
 import org.eclipse.core.resources.IFile;
+import org.eclipse.core.resources.IProject;
 import org.eclipse.core.resources.IResource;
 import org.eclipse.core.resources.IResourceDeltaVisitor;
+import org.eclipse.core.resources.IResourceProxy;
 import org.eclipse.core.resources.IResourceVisitor;
 import org.eclipse.core.runtime.CoreException;
 import org.eclipse.core.runtime.IProgressMonitor;
@@ -52,8 +61,6 @@ public abstract class CBuildVisitor extends CommonBuildVisitor implements IResou
 	 */
 	private SubMonitor progress;
 
-	private ICUtils cutils = Utils.getCUtils();
-
 	public CBuildVisitor(String builderId, IProgressMonitor monitor)
 	{
 		super(builderId);
@@ -69,6 +76,16 @@ public abstract class CBuildVisitor extends CommonBuildVisitor implements IResou
 		progress = SubMonitor.convert(monitor);
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * @see net.ossindex.eclipse.common.builder.CommonBuildVisitor#getProgressMonitor()
+	 */
+	@Override
+	protected IProgressMonitor getProgressMonitor()
+	{
+		return progress;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * @see org.eclipse.core.resources.IResourceVisitor#visit(org.eclipse.core.resources.IResource)
@@ -79,7 +96,10 @@ public abstract class CBuildVisitor extends CommonBuildVisitor implements IResou
 		// Handle cancellation
 		if(progress.isCanceled()) return false;
 
-		if(cutils.isCppCompilationUnit(resource))
+		// Do not descend into folders the builder is not interested in
+		if(resource instanceof IContainer) return acceptsContainer((IContainer)resource);
+
+		if(accepts((IFile)resource))
 		{
 			if(isDirty((IFile)resource))
 			{
@@ -97,7 +117,7 @@ public abstract class CBuildVisitor extends CommonBuildVisitor implements IResou
 	 */
 	protected String[] getIncludePaths(IResource resource)
 	{
-		return cutils.getIncludePaths(resource);
+		return Utils.getCUtils(resource.getProject()).getIncludePaths(resource);
 	}
 
 	/**
@@ -105,7 +125,42 @@ public abstract class CBuildVisitor extends CommonBuildVisitor implements IResou
 	 */
 	protected String[] getMacros(IResource resource)
 	{
-		return cutils.getMacros(resource);
+		return Utils.getCUtils(resource.getProject()).getMacros(resource);
+	}
+
+	/** Get the include paths and macros for the provided resource. The
+	 * instance is shared, so the arrays must not be modified.
+	 * 
+	 * @param resource
+	 * @return
+	 */
+	protected CSettings getSettings(IResource resource)
+	{
+		return Utils.getCUtils(resource.getProject()).getSettings(resource);
+	}
+
+	/** Group the files by their settings, so files that are compiled the
+	 * same way can be handled together. The groups are keyed by the settings
+	 * fingerprint and keep the order of the files.
+	 * 
+	 * @param files
+	 * @return
+	 */
+	protected Map<String,List<IFile>> groupBySettings(Collection<IFile> files)
+	{
+		Map<String,List<IFile>> groups = new LinkedHashMap<String,List<IFile>>();
+		for(IFile file: files)
+		{
+			String fingerprint = getSettings(file).getFingerprint();
+			List<IFile> group = groups.get(fingerprint);
+			if(group == null)
+			{
+				group = new ArrayList<IFile>();
+				groups.put(fingerprint, group);
+			}
+			group.add(file);
+		}
+		return groups;
 	}
 
 	/** Override the task name for the progress monitor
@@ -124,6 +179,16 @@ public abstract class CBuildVisitor extends CommonBuildVisitor implements IResou
 	@Override
 	protected boolean accepts(IFile resource)
 	{
-		return cutils.isCppCompilationUnit(resource);
+		return Utils.getCUtils(resource.getProject()).isCppCompilationUnit(resource) && isIncluded(resource);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see net.ossindex.eclipse.common.builder.CommonBuildVisitor#acceptsProxy(org.eclipse.core.resources.IProject, org.eclipse.core.resources.IResourceProxy)
+	 */
+	@Override
+	protected boolean acceptsProxy(IProject project, IResourceProxy proxy)
+	{
+		return Utils.getCUtils(project).isCppCompilationUnitName(project, proxy.getName()) && super.acceptsProxy(project, proxy);
 	}
 }
@@ -26,17 +26,33 @@
  */
 package net.ossindex.eclipse.common.builder;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import net.ossindex.eclipse.common.builder.state.BuildStateIndex;
+import net.ossindex.eclipse.common.builder.state.BuildStateTransaction;
+
 import org.eclipse.core.resources.IContainer;
 import org.eclipse.core.resources.IFile;
+import org.eclipse.core.resources.IProject;
 import org.eclipse.core.resources.IResource;
 import org.eclipse.core.resources.IResourceDelta;
 import org.eclipse.core.resources.IResourceDeltaVisitor;
+import org.eclipse.core.resources.IResourceProxy;
 import org.eclipse.core.resources.IResourceVisitor;
 import org.eclipse.core.runtime.CoreException;
 import org.eclipse.core.runtime.IProgressMonitor;
-import org.eclipse.core.runtime.QualifiedName;
 
 /** Common code for the build visitors.
+ * 
+ * Project walks are done in parallel, so acceptsContainer, accepts,
+ * acceptsSource and isDirty may be called from several pool threads at
+ * once during clean, markAllBuilt and areFilesDirty. Overrides must be
+ * thread safe.
  * 
  * @author Ken Duck
  *
@@ -46,7 +62,25 @@ public abstract class CommonBuildVisitor implements IResourceVisitor, IResourceD
 	/**
 	 * Used to determine whether the builder has run on specific files or not.
 	 */
-	private QualifiedName timestampQualifier;
+	private BuildStateIndex index;
+
+	/**
+	 * Where build state changes are recorded. This is either the index itself
+	 * or a view on the current build's transaction.
+	 */
+	private BuildStateIndex buildState;
+
+	/**
+	 * Live dirty candidates for this visitor's builder
+	 */
+	private DirtyTracker tracker;
+
+	private String builderId;
+
+	/**
+	 * Optional declarative rules for the files and folders to look at
+	 */
+	private ResourceFilter filter;
 
 	/** Every builder should have a unique ID. This is used to determine whether the builder
 	 * has run on specific files or not.
@@ -55,37 +89,91 @@ public abstract class CommonBuildVisitor implements IResourceVisitor, IResourceD
 	 */
 	public CommonBuildVisitor(String builderId)
 	{
-		timestampQualifier = new QualifiedName(builderId, ".TIMESTAMP");
+		this.builderId = builderId;
+		index = BuildStateIndex.getIndex(builderId);
+		buildState = index;
+		tracker = DirtyTracker.getTracker(builderId);
+	}
+
+	/** Get the ID of the builder this visitor belongs to.
+	 * 
+	 * @return
+	 */
+	public String getBuilderId()
+	{
+		return builderId;
+	}
+
+	/** Get the build state index for this visitor's builder.
+	 * 
+	 * @return
+	 */
+	public BuildStateIndex getBuildStateIndex()
+	{
+		return index;
 	}
 
-	/** Only rebuild dirty resources
+	/** Set the rules used by the default accepts and acceptsContainer. This
+	 * should be done before the visitor is first used.
+	 * 
+	 * @param filter The filter, or null to accept everything
+	 */
+	public void setFilter(ResourceFilter filter)
+	{
+		this.filter = filter;
+	}
+
+	/** Get the rules used by the default accepts and acceptsContainer.
+	 * 
+	 * @return The filter, or null if none was set
+	 */
+	public ResourceFilter getFilter()
+	{
+		return filter;
+	}
+
+	/** Returns true if the resource passes the visitor's filter. Resources
+	 * always pass if there is no filter.
 	 * 
 	 * @param resource
 	 * @return
 	 */
-	protected boolean isDirty(IFile file)
+	protected boolean isIncluded(IResource resource)
+	{
+		if(filter == null) return true;
+		if(resource instanceof IFile) return filter.accepts((IFile)resource);
+		if(resource instanceof IContainer) return filter.acceptsContainer((IContainer)resource);
+		return true;
+	}
+
+	/** Record build state changes in the provided transaction instead of
+	 * writing them directly. Passing null reverts to direct writes.
+	 * 
+	 * @param transaction
+	 */
+	public void setTransaction(BuildStateTransaction transaction)
 	{
-		try
+		if(transaction != null)
 		{
-			if(useTimestamp())
-			{
-				String timeString = file.getPersistentProperty(timestampQualifier);
-				if(timeString != null)
-				{
-					long timestamp = Long.parseLong(timeString);
-					long modified = file.getLocation().toFile().lastModified();
-					if(timestamp > modified)
-					{
-						return false;
-					}
-				}
-			}
+			buildState = index.forTransaction(transaction);
 		}
-		catch (CoreException | NumberFormatException e)
+		else
+		{
+			buildState = index;
+		}
+	}
+
+	/** Only rebuild dirty resources. Must be thread safe.
+	 * 
+	 * @param resource
+	 * @return
+	 */
+	protected boolean isDirty(IFile file)
+	{
+		if(useTimestamp())
 		{
-			e.printStackTrace();
+			return buildState.isDirty(file);
 		}
-		// If there is an exception, try and do the build
 		return true;
 	}
 
@@ -99,24 +187,59 @@ public abstract class CommonBuildVisitor implements IResourceVisitor, IResourceD
 		return true;
 	}
 
-	/** Mark the resource as "built" which means give it a timestamp. This allows
-	 * us to identify dirty files.
+	/** Mark the resource as "built" which means record its current state. This
+	 * allows us to identify dirty files.
 	 * 
 	 * @param resource
 	 */
 	protected void markBuilt(IFile resource)
 	{
-		try
-		{
-			resource.setPersistentProperty(timestampQualifier, Long.toString(System.currentTimeMillis()));
-		}
-		catch (CoreException e)
-		{
-			e.printStackTrace();
-		}
+		buildState.markBuilt(resource);
 	}
 	
+	/** Record how long the visit of the file took
+	 * 
+	 * @param file
+	 * @param nanos
+	 */
+	public void recordCost(IFile file, long nanos)
+	{
+		buildState.recordCost(file, nanos);
+	}
+
+	/** Record that the visit of the file timed out
+	 * 
+	 * @param file
+	 */
+	public void recordTimeout(IFile file)
+	{
+		buildState.recordTimeout(file);
+	}
+
+	/** Get the number of builds in a row that timed out on the file
+	 * 
+	 * @param file
+	 * @return
+	 */
+	public int getTimeouts(IFile file)
+	{
+		return buildState.getTimeouts(file);
+	}
+
+	/** Estimate how long a visit of the file will take
+	 * 
+	 * @param file
+	 * @return The cost in nanoseconds, or -1 if unknown
+	 */
+	public long getExpectedCost(IFile file)
+	{
+		return buildState.getExpectedCost(file);
+	}
+
 	/** Un-mark the files as being built.
+	 * 
+	 * The tree is walked in parallel to find the files, but the files are
+	 * cleaned on the calling thread since doClean may need the workspace lock.
 	 * 
 	 * @param project
 	 */
@@ -126,36 +249,33 @@ public abstract class CommonBuildVisitor implements IResourceVisitor, IResourceD
 		{
 			if(acceptsSource((IFile)resource))
 			{
-				try
-				{
-					doClean(resource);
-					resource.setPersistentProperty(timestampQualifier, null);
-				}
-				catch (CoreException e)
-				{
-					e.printStackTrace();
-				}
+				doClean(resource);
+				buildState.clean(resource);
+				tracker.dirty((IFile)resource);
 			}
 		}
 		else if(resource instanceof IContainer)
 		{
-			if(acceptsContainer((IContainer)resource))
+			final Queue<IFile> files = new ConcurrentLinkedQueue<IFile>();
+			ResourceTreeWalker.walk(resource, new IResourceWalkVisitor()
 			{
-				try
+				@Override
+				public boolean visitContainer(IContainer container)
 				{
-					IResource[] members = ((IContainer)resource).members();
-					if(members != null)
-					{
-						for (IResource member : members)
-						{
-							clean(member);
-						}
-					}
+					return acceptsContainer(container);
 				}
-				catch (CoreException e)
+
+				@Override
+				public boolean visitFile(IFile file)
 				{
-					e.printStackTrace();
+					if(acceptsSource(file)) files.add(file);
+					return true;
 				}
+			}, getProgressMonitor());
+
+			for (IFile file : files)
+			{
+				clean(file);
 			}
 		}
 	}
@@ -164,107 +284,148 @@ public abstract class CommonBuildVisitor implements IResourceVisitor, IResourceD
 	 * This is generally used in conjunction with batch builds to ensure
 	 * files are appropriately marked as being built so we don't waste time.
 	 * 
+	 * Subtrees are marked in parallel.
+	 * 
 	 * @param resource
 	 */
 	public void markAllBuilt(IResource resource)
 	{
-		if(resource instanceof IFile)
+		ResourceTreeWalker.walk(resource, new IResourceWalkVisitor()
 		{
-			if(acceptsSource((IFile)resource))
+			@Override
+			public boolean visitContainer(IContainer container)
 			{
-				try
-				{
-					resource.setPersistentProperty(timestampQualifier, Long.toString(System.currentTimeMillis()));
-				}
-				catch (CoreException e)
-				{
-					e.printStackTrace();
-				}
+				return acceptsContainer(container);
 			}
-		}
-		else if(resource instanceof IContainer)
-		{
-			if(acceptsContainer((IContainer)resource))
+
+			@Override
+			public boolean visitFile(IFile file)
 			{
-				try
-				{
-					IResource[] members = ((IContainer)resource).members();
-					if(members != null)
-					{
-						for (IResource member : members)
-						{
-							markAllBuilt(member);
-						}
-					}
-				}
-				catch (CoreException e)
-				{
-					e.printStackTrace();
-				}
+				if(acceptsSource(file)) buildState.markBuilt(file);
+				return true;
 			}
-		}
+		}, getProgressMonitor());
 	}
 
 	/** Recursively look through files, identifying those that can be marked.
 	 * This is generally used in conjunction with batch builds to ensure
 	 * files are appropriately marked as being built so we don't waste time.
 	 * 
+	 * Subtrees are checked in parallel, the walk stops as soon as any dirty
+	 * file is found. For projects the dirty tracker is used, which only needs
+	 * to walk the project the first time. A cancelled walk reports the files
+	 * as dirty.
+	 * 
 	 * @param resource
 	 */
 	public boolean areFilesDirty(IResource resource)
 	{
-		if(resource instanceof IFile)
+		if(resource instanceof IProject && useTimestamp())
 		{
-			if(acceptsSource((IFile)resource))
-			{
-				if(isDirty((IFile)resource))
-				{
-					return true;
-				}
-			}
+			return tracker.areFilesDirty((IProject)resource, this);
 		}
-		else if(resource instanceof IContainer)
+
+		boolean clean = ResourceTreeWalker.walk(resource, new IResourceWalkVisitor()
 		{
-			if(acceptsContainer((IContainer)resource))
+			@Override
+			public boolean visitContainer(IContainer container)
 			{
-				try
-				{
-					IResource[] members = ((IContainer)resource).members();
-					if(members != null)
-					{
-						for (IResource member : members)
-						{
-							boolean dirty = areFilesDirty(member);
-							if(dirty) return true;
-						}
-					}
-				}
-				catch (CoreException e)
-				{
-					e.printStackTrace();
-				}
+				return acceptsContainer(container);
+			}
+
+			@Override
+			public boolean visitFile(IFile file)
+			{
+				// Stop the walk when we find a dirty file
+				return !(acceptsSource(file) && isDirty(file));
 			}
+		}, getProgressMonitor());
+		return !clean;
+	}
+
+	/** Get the files that need to be visited in order to build the dirty
+	 * files of the project, without walking the project.
+	 * 
+	 * @param project
+	 * @return The files, or null if the visitor does not track dirty files
+	 */
+	public List<IFile> getDirtyFiles(IProject project)
+	{
+		if(!useTimestamp()) return null;
+
+		List<IFile> results = new LinkedList<IFile>();
+		for(IFile source: tracker.getDirtyFiles(project, this))
+		{
+			results.addAll(getFilesFor(source));
 		}
-		return false;
+		return results;
+	}
+
+	/** Get the files the visitor should be run on to build the provided
+	 * dirty source file. By default this is the source file itself, visitors
+	 * that build artifacts should return the artifacts instead.
+	 * 
+	 * @param source
+	 * @return
+	 */
+	protected Collection<IFile> getFilesFor(IFile source)
+	{
+		if(accepts(source)) return Collections.singletonList(source);
+		return Collections.emptyList();
 	}
 
 	/** Indicates whether the provided folder should be explored by the builder.
+	 * Folders that are not accepted are never descended. By default the
+	 * filter decides. Must be thread safe.
 	 * 
 	 * @param resource
 	 * @return
 	 */
-	protected abstract boolean acceptsContainer(IContainer resource);
+	protected boolean acceptsContainer(IContainer resource)
+	{
+		return isIncluded(resource);
+	}
 
 	/** Indicates whether the provided file is the type of file that will
-	 * be built by the builder.
+	 * be built by the builder. By default the filter decides. Must be thread
+	 * safe.
 	 * 
 	 * @param resource
 	 * @return
 	 */
-	protected abstract boolean accepts(IFile resource);
+	protected boolean accepts(IFile resource)
+	{
+		return isIncluded(resource);
+	}
+
+	/** Cheap check made while enumerating the project, before a handle is
+	 * created for the file. Only the name and other proxy information should
+	 * be used. Returning false must mean accepts would also return false,
+	 * files that pass are still checked with accepts.
+	 * 
+	 * @param project
+	 * @param proxy
+	 * @return
+	 */
+	protected boolean acceptsProxy(IProject project, IResourceProxy proxy)
+	{
+		return filter == null || filter.acceptsName(proxy.getName());
+	}
+
+	/** The acceptsProxy check for source files. Returning false must mean
+	 * acceptsSource would also return false.
+	 * 
+	 * @param project
+	 * @param proxy
+	 * @return
+	 */
+	protected boolean acceptsSourceProxy(IProject project, IResourceProxy proxy)
+	{
+		return acceptsProxy(project, proxy);
+	}
 
 	/** Similar to accepts, but is intended specifically ask about the source
-	 * files, as opposed to possibly build artifacts.
+	 * files, as opposed to possibly build artifacts. Must be thread safe.
 	 * 
 	 * @param resource
 	 * @return
@@ -291,6 +452,16 @@ public abstract class CommonBuildVisitor implements IResourceVisitor, IResourceD
 	 */
 	public abstract void setProgressMonitor(IProgressMonitor monitor);
 
+	/** Get the monitor last provided to setProgressMonitor, so that long
+	 * walks can be cancelled.
+	 * 
+	 * @return The monitor, or null if there is none
+	 */
+	protected IProgressMonitor getProgressMonitor()
+	{
+		return null;
+	}
+
 	/** Extra steps to perform when performing a clean.
 	 * 
 	 * @param resource
@@ -299,6 +470,36 @@ public abstract class CommonBuildVisitor implements IResourceVisitor, IResourceD
 	{
 	}
 
+	/** Identify the build unit the file belongs to. All files of a unit are
+	 * built by a single visit, so builders only schedule the first file they
+	 * find for each unit. By default every file is its own unit.
+	 * 
+	 * @param file
+	 * @return An object that is equal for the files of one unit
+	 */
+	protected Object getBuildUnit(IFile file)
+	{
+		return file;
+	}
+
+	/** Called by the builder at the start of every build that uses the
+	 * visitor. Visitors may be reused for several builds, so state kept for
+	 * the length of one build should be reset here.
+	 */
+	protected void startBuild()
+	{
+	}
+
+	/** Called by concurrent builds on the scheduling thread, before the file
+	 * is handed to the thread pool. Visitors that use APIs which are not
+	 * thread safe can resolve what they need for the file here.
+	 * 
+	 * @param file
+	 */
+	protected void prepare(IFile file)
+	{
+	}
+
 	/** Maximum number of jobs in a concurrent build situation
 	 * 
 	 * @return
@@ -308,4 +509,35 @@ public abstract class CommonBuildVisitor implements IResourceVisitor, IResourceD
 		return 0;
 	}
 
+	/** Concurrent visitors may return true to start building files while the
+	 * builder is still looking for them. The files are then built in the
+	 * order they are found rather than the most expensive first.
+	 * 
+	 * @return
+	 */
+	public boolean isStreaming()
+	{
+		return false;
+	}
+
+	/** Milliseconds a concurrent visit of a single file may take before it
+	 * is interrupted. 0 means no limit.
+	 * 
+	 * @return
+	 */
+	public long getFileTimeout()
+	{
+		return 120000;
+	}
+
+	/** Number of builds in a row that may time out on a file before
+	 * concurrent builds skip it. 0 means never skip.
+	 * 
+	 * @return
+	 */
+	public int getMaxTimeouts()
+	{
+		return 0;
+	}
+
 }
@@ -26,21 +26,37 @@
  */
 package net.ossindex.eclipse.common.builder;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import net.ossindex.eclipse.common.Activator;
+import net.ossindex.eclipse.common.builder.state.BuildStateTransaction;
 
 import org.eclipse.core.resources.IContainer;
 import org.eclipse.core.resources.IFile;
+import org.eclipse.core.resources.IFolder;
 import org.eclipse.core.resources.IProject;
 import org.eclipse.core.resources.IResource;
 import org.eclipse.core.resources.IResourceDelta;
 import org.eclipse.core.resources.IResourceDeltaVisitor;
+import org.eclipse.core.resources.IResourceProxy;
+import org.eclipse.core.resources.IResourceProxyVisitor;
 import org.eclipse.core.resources.IResourceVisitor;
 import org.eclipse.core.resources.IncrementalProjectBuilder;
 import org.eclipse.core.runtime.CoreException;
 import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
 import org.eclipse.core.runtime.SubMonitor;
 import org.eclipse.core.runtime.jobs.Job;
 
@@ -61,6 +77,29 @@ public abstract class CommonBuilder extends IncrementalProjectBuilder
 	 */
 	private static final boolean CONCURRENT_BLOCKING = true;
 
+	/**
+	 * Receives the files found by a traversal
+	 */
+	private interface FileSink
+	{
+		/**
+		 * 
+		 * @param file
+		 * @return false to stop the traversal
+		 */
+		boolean add(IFile file);
+	}
+
+	/**
+	 * Build state changes for the build in progress
+	 */
+	private BuildStateTransaction transaction;
+
+	/**
+	 * Dirty tracker for the builder that owns the current transaction
+	 */
+	private DirtyTracker tracker;
+
 	public CommonBuilder()
 	{
 	}
@@ -75,38 +114,103 @@ public abstract class CommonBuilder extends IncrementalProjectBuilder
 		// get the project to build  
 		getProject();  
 
-		if(args != null)
+		try
 		{
-			// On a manual build all, force a full clean
-			if(ManualBuildJob.MANUAL_BUILD_ALL.equals(args.get("type")))
+			if(args != null)
 			{
-				CommonBuildVisitor visitor = (CommonBuildVisitor)getBuildVisitor(null);
-
-				if(visitor != null)
+				// On a manual build all, force a full clean
+				if(ManualBuildJob.MANUAL_BUILD_ALL.equals(args.get("type")))
 				{
-					visitor.setProgressMonitor(monitor);
+					CommonBuildVisitor visitor = attach(getBuildVisitor(null));
 
-					visitor.clean(getProject());
+					if(visitor != null)
+					{
+						visitor.setProgressMonitor(monitor);
+
+						visitor.clean(getProject());
+					}
 				}
+				// On a manual build, force a special incremental build
+				if(ManualBuildJob.MANUAL_BUILD.equals(args.get("type")))
+				{
+					manualIncrementalBuild(args, monitor);
+					return null;
+				}
+			}
+
+			if(kind == FULL_BUILD)
+			{
+				fullBuild(monitor);
 			}
-			// On a manual build, force a special incremental build
-			if(ManualBuildJob.MANUAL_BUILD.equals(args.get("type")))
+			else
 			{
-				manualIncrementalBuild(args, monitor);
-				return null;
+				IResourceDelta delta = getDelta(getProject());
+				incrementalBuild(delta, monitor);
 			}
 		}
+		finally
+		{
+			endTransaction(monitor);
+		}
+		return null;
+	}
 
-		if(kind == FULL_BUILD)
+	/** Prepare a visitor for use in this build. All visitors used in a single
+	 * build share one build state transaction, so the state changes they make
+	 * are written in a single flush at the end of the build.
+	 * 
+	 * @param visitor
+	 * @return
+	 */
+	private CommonBuildVisitor attach(Object visitor)
+	{
+		CommonBuildVisitor cvisitor = (CommonBuildVisitor)visitor;
+		if(cvisitor != null)
 		{
-			fullBuild(monitor);
+			if(transaction == null)
+			{
+				transaction = cvisitor.getBuildStateIndex().begin();
+				tracker = DirtyTracker.getTracker(cvisitor.getBuilderId());
+			}
+			cvisitor.setTransaction(transaction);
+			cvisitor.startBuild();
 		}
-		else
+		return cvisitor;
+	}
+
+	/** Commit the build state changes made during the build, or discard them
+	 * if the build was cancelled.
+	 * 
+	 * @param monitor
+	 */
+	private void endTransaction(IProgressMonitor monitor)
+	{
+		if(transaction != null)
 		{
-			IResourceDelta delta = getDelta(getProject());
-			incrementalBuild(delta, monitor);
+			try
+			{
+				if(monitor != null && monitor.isCanceled())
+				{
+					transaction.rollback();
+					// The tracker may have dropped files whose state was
+					// discarded, so it has to rescan.
+					tracker.invalidate(getProject());
+				}
+				else
+				{
+					transaction.commit();
+				}
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+			finally
+			{
+				transaction = null;
+				tracker = null;
+			}
 		}
-		return null;
 	}
 
 	/*
@@ -129,15 +233,12 @@ public abstract class CommonBuilder extends IncrementalProjectBuilder
 	{
 		try
 		{
-			CommonBuildVisitor visitor = (CommonBuildVisitor)getBuildVisitor(null);
+			CommonBuildVisitor visitor = attach(getBuildVisitor(null));
 			if(!IGNORE_BATCH && (visitor instanceof IBatchBuildVisitor))
 			{
 				if(((IBatchBuildVisitor)visitor).areFilesDirty(getProject()))
 				{
-					visitor.setProgressMonitor(monitor);
-
-					((IBatchBuildVisitor)visitor).buildAll(getProject());
-					((IBatchBuildVisitor)visitor).markAllBuilt(getProject());
+					batchBuild(visitor, monitor);
 				}
 			}
 			else
@@ -145,7 +246,25 @@ public abstract class CommonBuilder extends IncrementalProjectBuilder
 				if(visitor != null)
 				{
 					visitor.setProgressMonitor(monitor);
-					List<IFile> changed = getFilesToBuild(getProject(), visitor);
+					// Use the dirty tracker where possible, it avoids
+					// walking the whole project.
+					List<IFile> changed = visitor.getDirtyFiles(getProject());
+					if(changed == null && isStreaming(visitor))
+					{
+						final StreamingBuild stream = new StreamingBuild(visitor, null, CONCURRENT_BLOCKING, monitor);
+						collectFilesToBuild(getProject(), visitor, new FileSink()
+						{
+							@Override
+							public boolean add(IFile file)
+							{
+								return stream.add(file);
+							}
+						});
+						finishBuild(visitor, stream.finish());
+						return;
+					}
+					if(changed == null) changed = getFilesToBuild(getProject(), visitor);
+					else changed = reduceToUnits(changed, visitor);
 					buildFiles(changed, monitor);
 				}
 			}
@@ -171,14 +290,26 @@ public abstract class CommonBuilder extends IncrementalProjectBuilder
 	 */
 	private void manualIncrementalBuild(Map<String, String> args, IProgressMonitor monitor)
 	{
-		final CommonBuildVisitor visitor = (CommonBuildVisitor)getDeltaVisitor(null);
+		final CommonBuildVisitor visitor = attach(getDeltaVisitor(null));
 
 		if(visitor != null)
 		{
-			IProject project = getProject();
-			// Get a full list of requested files
-			final List<IFile> changed = getChangedFiles(project, args, visitor);
+			// Get a full list of requested files. Requests registered by the
+			// manual build job are resolved directly, a map of file locations
+			// requires a search of the project.
+			ManualBuildRequest request = ManualBuildRequest.get(args.get(ManualBuildRequest.REQUEST_ID));
+			List<IFile> changed;
+			if(request != null)
+			{
+				changed = getRequestedFiles(request, visitor);
+			}
+			else
+			{
+				changed = getChangedFiles(getProject(), args, visitor);
+			}
 			
+			changed = reduceToUnits(changed, visitor);
+
 			// Clean the files
 			for (IFile file : changed)
 			{
@@ -188,6 +319,75 @@ public abstract class CommonBuilder extends IncrementalProjectBuilder
 		}
 	}
 
+	/** Get the files to visit for the resources selected in a manual build.
+	 * Only the selected resources are looked at, containers are searched but
+	 * the rest of the project is not.
+	 * 
+	 * @param request
+	 * @param visitor
+	 * @return
+	 */
+	private List<IFile> getRequestedFiles(ManualBuildRequest request, final CommonBuildVisitor visitor)
+	{
+		final IProject project = getProject();
+		final Set<IFile> files = new LinkedHashSet<IFile>();
+		for(IResource resource: request.getResources())
+		{
+			if(!project.equals(resource.getProject()) || !resource.exists()) continue;
+			if(resource instanceof IFile)
+			{
+				addRequestedFile(files, (IFile)resource, visitor);
+			}
+			else if(resource instanceof IContainer)
+			{
+				try
+				{
+					resource.accept(new IResourceProxyVisitor()
+					{
+						@Override
+						public boolean visit(IResourceProxy proxy) throws CoreException
+						{
+							if(proxy.getType() == IResource.FILE)
+							{
+								// Only create handles for files the visitor may want
+								if(visitor.acceptsProxy(project, proxy) || visitor.acceptsSourceProxy(project, proxy))
+								{
+									addRequestedFile(files, (IFile)proxy.requestResource(), visitor);
+								}
+								return false;
+							}
+							return visitor.acceptsContainer((IContainer)proxy.requestResource());
+						}
+					}, IContainer.NONE);
+				}
+				catch (CoreException e)
+				{
+					e.printStackTrace();
+				}
+			}
+		}
+		return new ArrayList<IFile>(files);
+	}
+
+	/** Add the file if the visitor builds it directly, otherwise add the files
+	 * the visitor builds for it (such as a source file's class file).
+	 * 
+	 * @param files
+	 * @param file
+	 * @param visitor
+	 */
+	private void addRequestedFile(Set<IFile> files, IFile file, CommonBuildVisitor visitor)
+	{
+		if(visitor.accepts(file))
+		{
+			files.add(file);
+		}
+		else if(visitor.acceptsSource(file))
+		{
+			files.addAll(visitor.getFilesFor(file));
+		}
+	}
+
 	/** Get a list of files from a project that were requested for a manual build
 	 * 
 	 * @param resource
@@ -233,9 +433,13 @@ public abstract class CommonBuilder extends IncrementalProjectBuilder
 	{
 		try
 		{
-			final CommonBuildVisitor visitor = (CommonBuildVisitor)getDeltaVisitor(null);
+			final CommonBuildVisitor visitor = attach(getDeltaVisitor(null));
 
-			if(visitor != null)
+			if(visitor != null && isStreaming(visitor))
+			{
+				streamingIncrementalBuild(delta, visitor, monitor);
+			}
+			else if(visitor != null)
 			{
 				// Get a full list of changed files. We want to do this instead of the
 				// visitor so we know exactly how many files there are. This will be
@@ -248,11 +452,21 @@ public abstract class CommonBuilder extends IncrementalProjectBuilder
 				{
 					if(!IGNORE_BATCH && (visitor instanceof IBatchBuildVisitor))
 					{
-						if(changed.size() > getFullBuildThreshold())
+						BuildCostModel.Estimate estimate = estimate(visitor);
+						for(IFile file: changed)
 						{
-							visitor.setProgressMonitor(monitor);
-							((IBatchBuildVisitor)visitor).buildAll(getProject());
-							((IBatchBuildVisitor)visitor).markAllBuilt(getProject());
+							estimate.add(file);
+						}
+						boolean batch = estimate.isBatch();
+						estimate.commit(batch);
+						if(batch)
+						{
+							// Prefer building just the folders the changes
+							// are concentrated in over the whole project
+							if(!directoryBuild(visitor, changed, monitor))
+							{
+								batchBuild(visitor, monitor);
+							}
 							return;
 						}
 					}
@@ -279,32 +493,95 @@ public abstract class CommonBuilder extends IncrementalProjectBuilder
 	private List<IFile> getChangedFiles(IResourceDelta delta, final CommonBuildVisitor visitor) throws CoreException
 	{
 		final List<IFile> changed = new LinkedList<IFile>();
+		collectChangedFiles(delta, visitor, new FileSink()
+		{
+			@Override
+			public boolean add(IFile file)
+			{
+				return changed.add(file);
+			}
+		});
+		return changed;
+	}
+
+	/** Given a delta, pass each changed file to the sink. The traversal stops
+	 * once the sink returns false.
+	 * 
+	 * @param delta
+	 * @param visitor
+	 * @param sink
+	 * @throws CoreException
+	 */
+	private void collectChangedFiles(IResourceDelta delta, final CommonBuildVisitor visitor, FileSink files) throws CoreException
+	{
+		final FileSink sink = unitSink(visitor, files);
 		IResourceDeltaVisitor deltaVisitor = new IResourceDeltaVisitor()
 		{
+			private boolean stopped = false;
+
 			public boolean visit(IResourceDelta delta)
 			{
+				if(stopped) return false;
+
+				// Prune subtrees the visitor is not interested in
+				IResource resource = delta.getResource();
+				if(resource instanceof IContainer)
+				{
+					return visitor.acceptsContainer((IContainer)resource);
+				}
+
 				//only interested in content changes and added files
 				if ((delta.getFlags() & IResourceDelta.CONTENT) == 0 &&
-						(delta.getKind() & IResourceDelta.ADDED) == 0) return true;
+						(delta.getKind() & IResourceDelta.ADDED) == 0) return false;
 
-				IResource resource = delta.getResource();
-				if (resource instanceof IFile)
+				if (resource instanceof IFile && visitor.accepts((IFile)resource))
 				{
-					if(visitor.accepts((IFile)resource))
-					{
-						changed.add((IFile)resource);
-					}
-					else if(resource instanceof IContainer)
-					{
-						return visitor.acceptsContainer((IContainer)resource);
-					}
+					stopped = !sink.add((IFile)resource);
 				}
-				return true;
+				return false;
 			}
 		};
 
 		delta.accept(deltaVisitor);
-		return changed;
+	}
+
+	/** Wrap the sink so that only the first file of each build unit reaches
+	 * it. The other files of the unit are built by the same visit, so
+	 * scheduling them would only take up build slots.
+	 * 
+	 * @param visitor
+	 * @param sink
+	 * @return
+	 */
+	private FileSink unitSink(final CommonBuildVisitor visitor, final FileSink sink)
+	{
+		final Set<Object> units = new HashSet<Object>();
+		return new FileSink()
+		{
+			@Override
+			public boolean add(IFile file)
+			{
+				if(!units.add(visitor.getBuildUnit(file))) return true;
+				return sink.add(file);
+			}
+		};
+	}
+
+	/** Keep only the first file of each build unit
+	 * 
+	 * @param files
+	 * @param visitor
+	 * @return
+	 */
+	private List<IFile> reduceToUnits(List<IFile> files, CommonBuildVisitor visitor)
+	{
+		Set<Object> units = new HashSet<Object>();
+		List<IFile> results = new ArrayList<IFile>(files.size());
+		for(IFile file: files)
+		{
+			if(units.add(visitor.getBuildUnit(file))) results.add(file);
+		}
+		return results;
 	}
 
 	/** Find all files in the project that we are interested in building.
@@ -316,37 +593,114 @@ public abstract class CommonBuilder extends IncrementalProjectBuilder
 	private List<IFile> getFilesToBuild(IProject project, final CommonBuildVisitor visitor) throws CoreException
 	{
 		final List<IFile> changed = new LinkedList<IFile>();
+		collectFilesToBuild(project, visitor, new FileSink()
+		{
+			@Override
+			public boolean add(IFile file)
+			{
+				return changed.add(file);
+			}
+		});
+		return changed;
+	}
 
-		IResourceVisitor deltaVisitor = new IResourceVisitor ()
+	/** Pass all files in the project that we are interested in building to
+	 * the sink. The traversal stops once the sink returns false.
+	 * 
+	 * The project is walked using resource proxies so that handles are only
+	 * created for containers and for files that pass the visitor's name check.
+	 * 
+	 * @param project
+	 * @param visitor
+	 * @param sink
+	 * @throws CoreException
+	 */
+	private void collectFilesToBuild(final IProject project, final CommonBuildVisitor visitor, FileSink files) throws CoreException
+	{
+		final FileSink sink = unitSink(visitor, files);
+		IResourceProxyVisitor proxyVisitor = new IResourceProxyVisitor ()
 		{
+			private boolean stopped = false;
+
 			/*
 			 * (non-Javadoc)
-			 * @see org.eclipse.core.resources.IResourceVisitor#visit(org.eclipse.core.resources.IResource)
+			 * @see org.eclipse.core.resources.IResourceProxyVisitor#visit(org.eclipse.core.resources.IResourceProxy)
 			 */
 			@Override
-			public boolean visit(IResource resource) throws CoreException
+			public boolean visit(IResourceProxy proxy) throws CoreException
 			{
-				if (resource instanceof IFile)
+				if(stopped) return false;
+				if(proxy.getType() == IResource.FILE)
 				{
-					if(visitor.accepts((IFile)resource))
+					// Only create handles for files that pass the name check
+					if(visitor.acceptsProxy(project, proxy))
 					{
-						changed.add((IFile)resource);
+						IFile file = (IFile)proxy.requestResource();
+						if(visitor.accepts(file))
+						{
+							stopped = !sink.add(file);
+						}
 					}
+					return false;
 				}
-				else if(resource instanceof IContainer)
-				{
-					return visitor.acceptsContainer((IContainer)resource);
-				}
-				return true;
+				return visitor.acceptsContainer((IContainer)proxy.requestResource());
 			}
 
 		};
 
-		project.accept(deltaVisitor);
-		return changed;
+		project.accept(proxyVisitor, IContainer.NONE);
+	}
+
+	/** Returns true if files should be built while they are still being
+	 * found. This is only possible for concurrent visitors.
+	 * 
+	 * @param visitor
+	 * @return
+	 */
+	private boolean isStreaming(CommonBuildVisitor visitor)
+	{
+		return visitor.isStreaming() && (visitor instanceof IConcurrentBuildVisitor);
+	}
+
+	/** Incremental build that starts building the changed files while the
+	 * delta is still being walked. For batch visitors the running estimate of
+	 * the changed files decides whether a batch build is done instead.
+	 * 
+	 * @param delta
+	 * @param visitor
+	 * @param monitor
+	 * @throws CoreException
+	 */
+	private void streamingIncrementalBuild(IResourceDelta delta, CommonBuildVisitor visitor, IProgressMonitor monitor) throws CoreException
+	{
+		CommonBuildVisitor builder = attach(getBuildVisitor(null));
+		builder.setProgressMonitor(monitor);
+
+		BuildCostModel.Estimate estimate = null;
+		if(!IGNORE_BATCH && (visitor instanceof IBatchBuildVisitor)) estimate = estimate(visitor);
+
+		final StreamingBuild stream = new StreamingBuild(builder, estimate, CONCURRENT_BLOCKING, monitor);
+		collectChangedFiles(delta, visitor, new FileSink()
+		{
+			@Override
+			public boolean add(IFile file)
+			{
+				return stream.add(file);
+			}
+		});
+
+		if(estimate != null) estimate.commit(stream.isBatch());
+		if(stream.isBatch())
+		{
+			batchBuild(visitor, monitor);
+			return;
+		}
+		finishBuild(builder, stream.finish());
 	}
 
 	/** Number of individual files we are willing to build before forcing a full build.
+	 * This is only used until a batch build of the project has been measured,
+	 * after that the cost model decides.
 	 * 
 	 * @return
 	 */
@@ -355,6 +709,352 @@ public abstract class CommonBuilder extends IncrementalProjectBuilder
 		return 10;
 	}
 
+	/** Fraction of a folder's files that must have changed before the folder
+	 * is batch built instead of visiting the changed files one by one. This
+	 * only applies once the cost model prefers a batch build.
+	 * 
+	 * @return
+	 */
+	protected double getDirectoryDensity()
+	{
+		return 0.5;
+	}
+
+	/** Override hook for the choice between an incremental and a batch build.
+	 * The estimate provides the predicted costs the suggestion is based on.
+	 * This may be called several times while changed files are being found.
+	 * 
+	 * @param estimate
+	 * @param suggested The cost model's decision
+	 * @return true to do a batch build
+	 */
+	protected boolean useBatchBuild(BuildCostModel.Estimate estimate, boolean suggested)
+	{
+		return suggested;
+	}
+
+	/** Start a cost estimate for the changed files of this project
+	 * 
+	 * @param visitor
+	 * @return
+	 */
+	private BuildCostModel.Estimate estimate(CommonBuildVisitor visitor)
+	{
+		BuildCostModel model = BuildCostModel.getModel(visitor.getBuilderId(), getProject());
+		return new BuildCostModel.Estimate(model, visitor, getFullBuildThreshold())
+		{
+			@Override
+			protected boolean choose(boolean suggested)
+			{
+				return useBatchBuild(this, suggested);
+			}
+		};
+	}
+
+	/** Run buildDir on each shard concurrently, blocking until they are done.
+	 * The monitor is only used on the calling thread since it is not thread
+	 * safe. While the shards run the visitor gets a thread safe view of it,
+	 * and the original monitor is restored afterwards.
+	 * 
+	 * @param visitor
+	 * @param shards
+	 * @param monitor
+	 * @return The shards that were built successfully
+	 */
+	private List<IFolder> buildShards(CommonBuildVisitor visitor, List<IFolder> shards, IProgressMonitor monitor)
+	{
+		final IShardedBatchBuildVisitor sharded = (IShardedBatchBuildVisitor)visitor;
+		final List<IFolder> built = Collections.synchronizedList(new ArrayList<IFolder>());
+		SubMonitor progress = SubMonitor.convert(monitor, shards.size());
+		final ProgressAggregator aggregator = new ProgressAggregator(progress, true);
+		visitor.setProgressMonitor(aggregator.asMonitor());
+
+		BuildExecutor.Lane lane = BuildExecutor.getDefault().openLane(visitor.getBuilderId() + " shards", visitor.getMaxJobs());
+		for(final IFolder shard: shards)
+		{
+			aggregator.scheduled();
+			boolean submitted = lane.submit(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						if(aggregator.isCanceled()) return;
+						sharded.buildDir(shard);
+						built.add(shard);
+					}
+					catch(RuntimeException e)
+					{
+						Activator.log(IStatus.ERROR, "Exception building " + shard, e);
+					}
+					finally
+					{
+						aggregator.completed(shard);
+					}
+				}
+			});
+			// The executor is shutting down
+			if(!submitted) aggregator.completed(shard);
+		}
+
+		boolean interrupted = false;
+		int reported = 0;
+		try
+		{
+			while(true)
+			{
+				try
+				{
+					if(lane.awaitIdle(100, TimeUnit.MILLISECONDS)) break;
+				}
+				catch (InterruptedException e)
+				{
+					interrupted = true;
+					lane.cancel();
+				}
+				aggregator.flush();
+				if(aggregator.isCanceled()) lane.cancel();
+
+				int count = aggregator.getCompleted();
+				progress.worked(count - reported);
+				reported = count;
+			}
+		}
+		finally
+		{
+			lane.close();
+			visitor.setProgressMonitor(monitor);
+			if(interrupted) Thread.currentThread().interrupt();
+		}
+		aggregator.flush();
+		progress.worked(aggregator.getCompleted() - reported);
+
+		BuildMetrics.getMetrics(visitor.getBuilderId()).set("strategy.shards", shards.size());
+		return new ArrayList<IFolder>(built);
+	}
+
+	/** Batch build only the folders with dense changes using buildDir, and
+	 * visit the remaining changed files individually. Folders are batch built
+	 * recursively, so the densest outermost folders are picked.
+	 * 
+	 * @param visitor
+	 * @param changed
+	 * @param monitor
+	 * @return false if no folder is dense enough, in which case nothing was
+	 *         built and the whole project should be built instead
+	 */
+	private boolean directoryBuild(CommonBuildVisitor visitor, List<IFile> changed, IProgressMonitor monitor)
+	{
+		// Count the changed files beneath every folder above a changed file
+		Map<IFolder,Integer> counts = new HashMap<IFolder,Integer>();
+		Set<IFolder> direct = new HashSet<IFolder>();
+		for(IFile file: changed)
+		{
+			if(file.getParent() instanceof IFolder) direct.add((IFolder)file.getParent());
+			for(IContainer parent = file.getParent(); parent instanceof IFolder; parent = parent.getParent())
+			{
+				Integer count = counts.get(parent);
+				counts.put((IFolder)parent, count == null ? 1 : count + 1);
+			}
+		}
+
+		// A folder whose changes all come from one sub-folder is never denser
+		// than that sub-folder, so only folders that contain changed files
+		// themselves or join the changes of several sub-folders are counted.
+		Map<IFolder,Integer> branches = new HashMap<IFolder,Integer>();
+		for(IFolder folder: counts.keySet())
+		{
+			if(folder.getParent() instanceof IFolder)
+			{
+				Integer count = branches.get(folder.getParent());
+				branches.put((IFolder)folder.getParent(), count == null ? 1 : count + 1);
+			}
+		}
+		List<IFolder> candidates = new ArrayList<IFolder>();
+		for(IFolder folder: counts.keySet())
+		{
+			Integer count = branches.get(folder);
+			if(direct.contains(folder) || (count != null && count > 1)) candidates.add(folder);
+		}
+
+		// Outermost folders first, so nested folders are skipped once an
+		// ancestor is selected.
+
+		Collections.sort(candidates, new Comparator<IFolder>()
+		{
+			@Override
+			public int compare(IFolder f1, IFolder f2)
+			{
+				return f1.getFullPath().segmentCount() - f2.getFullPath().segmentCount();
+			}
+		});
+
+		Map<IFolder,Integer> sizes = countFiles(candidates, visitor, monitor);
+		double density = getDirectoryDensity();
+		Set<IFolder> dense = new LinkedHashSet<IFolder>();
+		for(IFolder folder: candidates)
+		{
+			if(isBeneath(folder, dense)) continue;
+			int count = counts.get(folder);
+			if(count < 2) continue;
+			Integer size = sizes.get(folder);
+			if(size != null && count >= size * density) dense.add(folder);
+		}
+		if(dense.isEmpty()) return false;
+
+		List<IFile> sparse = new ArrayList<IFile>();
+		for(IFile file: changed)
+		{
+			if(!isBeneath(file, dense)) sparse.add(file);
+		}
+
+		visitor.setProgressMonitor(monitor);
+		for(IFolder folder: dense)
+		{
+			if(monitor != null && monitor.isCanceled()) return true;
+			((IBatchBuildVisitor)visitor).buildDir(folder);
+			((IBatchBuildVisitor)visitor).markAllBuilt(folder);
+		}
+		if(!sparse.isEmpty()) buildFiles(sparse, monitor);
+
+		BuildMetrics metrics = BuildMetrics.getMetrics(visitor.getBuilderId());
+		metrics.increment("strategy.decision.directory");
+		metrics.set("strategy.directories", dense.size());
+		metrics.set("strategy.directories.sparse", sparse.size());
+		return true;
+	}
+
+	/** Returns true if the resource is beneath one of the folders
+	 * 
+	 * @param resource
+	 * @param folders
+	 * @return
+	 */
+	private boolean isBeneath(IResource resource, Set<IFolder> folders)
+	{
+		for(IContainer parent = resource.getParent(); parent instanceof IFolder; parent = parent.getParent())
+		{
+			if(folders.contains(parent)) return true;
+		}
+		return false;
+	}
+
+	/** Count the files the visitor builds beneath each of the folders. Each
+	 * outermost folder is walked once, counting the files in the folder
+	 * that directly holds them, and the counts are then rolled up to the
+	 * enclosing folders.
+	 * 
+	 * @param folders Folders sorted outermost first
+	 * @param visitor
+	 * @param monitor
+	 * @return Number of built files beneath each folder, folders without
+	 *         any are missing
+	 */
+	private Map<IFolder,Integer> countFiles(List<IFolder> folders, final CommonBuildVisitor visitor, IProgressMonitor monitor)
+	{
+		final Map<IContainer,Integer> direct = new HashMap<IContainer,Integer>();
+		Set<IFolder> roots = new LinkedHashSet<IFolder>();
+		for(IFolder folder: folders)
+		{
+			if(!isBeneath(folder, roots)) roots.add(folder);
+		}
+		for(IFolder root: roots)
+		{
+			ResourceTreeWalker.walk(root, new IResourceWalkVisitor()
+			{
+				@Override
+				public boolean visitContainer(IContainer container)
+				{
+					return visitor.acceptsContainer(container);
+				}
+
+				@Override
+				public boolean visitFile(IFile file)
+				{
+					if(visitor.accepts(file))
+					{
+						Integer count = direct.get(file.getParent());
+						direct.put(file.getParent(), count == null ? 1 : count + 1);
+					}
+					return true;
+				}
+			}, monitor);
+		}
+
+		Set<IFolder> wanted = new HashSet<IFolder>(folders);
+		Map<IFolder,Integer> sizes = new HashMap<IFolder,Integer>();
+		for(Map.Entry<IContainer,Integer> entry: direct.entrySet())
+		{
+			for(IContainer parent = entry.getKey(); parent instanceof IFolder; parent = parent.getParent())
+			{
+				if(!wanted.contains(parent)) continue;
+				Integer size = sizes.get(parent);
+				sizes.put((IFolder)parent, size == null ? entry.getValue() : size + entry.getValue());
+			}
+		}
+		return sizes;
+	}
+
+	/** Run a batch build of the whole project, measuring how long it takes
+	 * for the cost model. Sharded visitors have their shards built
+	 * concurrently.
+	 * 
+	 * @param visitor
+	 * @param monitor
+	 */
+	private void batchBuild(CommonBuildVisitor visitor, IProgressMonitor monitor)
+	{
+		IProject project = getProject();
+		List<IFolder> shards = null;
+		if(visitor instanceof IShardedBatchBuildVisitor)
+		{
+			shards = ((IShardedBatchBuildVisitor)visitor).getShards(project);
+		}
+
+		long start = System.nanoTime();
+		List<IFolder> built = null;
+		if(shards != null)
+		{
+			built = buildShards(visitor, shards, monitor);
+		}
+		else
+		{
+			visitor.setProgressMonitor(monitor);
+			((IBatchBuildVisitor)visitor).buildAll(project);
+		}
+		long elapsed = System.nanoTime() - start;
+		boolean canceled = monitor != null && monitor.isCanceled();
+
+		if(built != null && (canceled || built.size() < shards.size()))
+		{
+			// Shards that failed or were cancelled stay dirty. The rest of
+			// the project is not marked, so the next build tries again.
+			for(IFolder shard: built)
+			{
+				((IBatchBuildVisitor)visitor).markAllBuilt(shard);
+			}
+		}
+		else
+		{
+			// Files outside of every shard are not built by a sharded
+			// build, but must not keep the project dirty.
+			((IBatchBuildVisitor)visitor).markAllBuilt(project);
+		}
+
+		// Merging the results of a cancelled build is pointless
+		if(built != null && !canceled)
+		{
+			((IShardedBatchBuildVisitor)visitor).finish(project);
+		}
+
+		// A cancelled build says nothing about the cost
+		if(!canceled)
+		{
+			BuildCostModel.getModel(visitor.getBuilderId(), getProject()).recordBatchCost(elapsed);
+		}
+	}
+
 	/** Build a list of files
 	 * 
 	 * @param changed
@@ -362,23 +1062,54 @@ public abstract class CommonBuilder extends IncrementalProjectBuilder
 	 */
 	private void buildFiles(List<IFile> changed, IProgressMonitor monitor)
 	{
-		IResourceVisitor visitor = getBuildVisitor(null);
-		((CommonBuildVisitor)visitor).setProgressMonitor(monitor);
+		final CommonBuildVisitor visitor = attach(getBuildVisitor(null));
+		visitor.setProgressMonitor(monitor);
+		BuildFuture<Void> pending = null;
 		if(visitor instanceof IConcurrentBuildVisitor)
 		{
-			buildConcurrent(visitor, changed, monitor);
+			pending = buildConcurrent(visitor, changed, monitor);
 		}
 		else
 		{
 			buildSequential(visitor, changed, monitor);
 		}
+		finishBuild(visitor, pending);
+	}
 
-		// Tell the visitor that the project is complete. This allows it
-		// to perform post-build actions. This happens for DelayedBuilds
-		// and ConcurrentBuilds.
-		if(visitor instanceof IDelayedBuild)
+	/** Tell the visitor that the project is complete. This allows it to
+	 * perform post-build actions. This happens for DelayedBuilds and
+	 * ConcurrentBuilds.
+	 * 
+	 * @param visitor
+	 * @param pending Completion of files still being built, or null
+	 */
+	private void finishBuild(final CommonBuildVisitor visitor, BuildFuture<Void> pending)
+	{
+		if(pending == null)
 		{
-			((IDelayedBuild)visitor).finish(getProject());
+			if(visitor instanceof IDelayedBuild)
+			{
+				((IDelayedBuild)visitor).finish(getProject());
+			}
+		}
+		else
+		{
+			// The files are still being built after this build returns, so
+			// finish up once they are done. Their build state is written
+			// after our transaction is committed, so save it again.
+			final IProject project = getProject();
+			pending.addListener(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					if(visitor instanceof IDelayedBuild)
+					{
+						((IDelayedBuild)visitor).finish(project);
+					}
+					visitor.getBuildStateIndex().save();
+				}
+			});
 		}
 	}
 
@@ -388,7 +1119,7 @@ public abstract class CommonBuilder extends IncrementalProjectBuilder
 	 * @param changed
 	 * @param monitor
 	 */
-	private void buildSequential(IResourceVisitor visitor, List<IFile> changed, IProgressMonitor monitor)
+	private void buildSequential(CommonBuildVisitor visitor, List<IFile> changed, IProgressMonitor monitor)
 	{
 		SubMonitor progress = SubMonitor.convert(monitor);
 		progress.setWorkRemaining(changed.size());
@@ -402,7 +1133,9 @@ public abstract class CommonBuilder extends IncrementalProjectBuilder
 			progress.setTaskName("Processing [" + index + "/" + size + "] " + file.getName() + " {" + getName() + "}");
 			try
 			{
+				long start = System.nanoTime();
 				visitor.visit(file);
+				visitor.recordCost(file, System.nanoTime() - start);
 			}
 			catch (CoreException e)
 			{
@@ -412,6 +1145,70 @@ public abstract class CommonBuilder extends IncrementalProjectBuilder
 		}
 	}
 
+	/** Order the files so the most expensive ones come first (longest
+	 * processing time first). This keeps one large file scheduled late from
+	 * stretching the end of a concurrent build.
+	 * 
+	 * Files whose cost is unknown are never compared with measured costs.
+	 * They are started first, in their original order, since any of them may
+	 * turn out to be expensive. Files that timed out in an earlier build go
+	 * last, fewest timeouts first, so they do not hold up the rest of the
+	 * build.
+	 * 
+	 * @param visitor
+	 * @param files
+	 * @return
+	 */
+	private List<IFile> sortByExpectedCost(CommonBuildVisitor visitor, List<IFile> files)
+	{
+		// Work out the costs once, since they may need a file system call
+		final Map<IFile,Long> costs = new HashMap<IFile,Long>();
+		final Map<IFile,Integer> timeouts = new HashMap<IFile,Integer>();
+		List<IFile> unknown = new ArrayList<IFile>();
+		List<IFile> measured = new ArrayList<IFile>();
+		List<IFile> timedOut = new ArrayList<IFile>();
+		for (IFile file : files)
+		{
+			int count = visitor.getTimeouts(file);
+			if(count > 0)
+			{
+				timeouts.put(file, count);
+				timedOut.add(file);
+				continue;
+			}
+			long cost = visitor.getExpectedCost(file);
+			if(cost < 0)
+			{
+				unknown.add(file);
+				continue;
+			}
+			costs.put(file, cost);
+			measured.add(file);
+		}
+		Collections.sort(measured, new Comparator<IFile>()
+		{
+			@Override
+			public int compare(IFile f1, IFile f2)
+			{
+				return Long.compare(costs.get(f2), costs.get(f1));
+			}
+		});
+		Collections.sort(timedOut, new Comparator<IFile>()
+		{
+			@Override
+			public int compare(IFile f1, IFile f2)
+			{
+				return timeouts.get(f1) - timeouts.get(f2);
+			}
+		});
+
+		List<IFile> sorted = new ArrayList<IFile>(files.size());
+		sorted.addAll(unknown);
+		sorted.addAll(measured);
+		sorted.addAll(timedOut);
+		return sorted;
+	}
+
 	/** Get a name for this builder. Used in progress messages.
 	 * 
 	 * @return
@@ -424,18 +1221,28 @@ public abstract class CommonBuilder extends IncrementalProjectBuilder
 	 * @param visitor
 	 * @param changed
 	 * @param monitor
+	 * @return In non-blocking mode the completion of the files, which are
+	 *         still being built. Otherwise null.
 	 */
-	private void buildConcurrent(IResourceVisitor visitor, List<IFile> changed, IProgressMonitor monitor)
+	private BuildFuture<Void> buildConcurrent(CommonBuildVisitor visitor, List<IFile> changed, IProgressMonitor monitor)
 	{
+		changed = sortByExpectedCost(visitor, changed);
 		SubMonitor progress = SubMonitor.convert(monitor);
 		int size = changed.size();
 		progress.setWorkRemaining(size);
 
 		ConcurrentBuildManager manager = new ConcurrentBuildManager(visitor, CONCURRENT_BLOCKING);
+		if(CONCURRENT_BLOCKING) manager.setProgressMonitor(monitor);
 
 		int index = 0;
 		for (IFile file : changed)
 		{
+			// Handle cancellation
+			if(progress.isCanceled())
+			{
+				manager.shutdownNow();
+				break;
+			}
 			index++;
 			progress.setTaskName("Scheduling [" + index + "/" + size + "] " + file.getName() + " {" + getName() + "}");
 			try
@@ -460,17 +1267,17 @@ public abstract class CommonBuilder extends IncrementalProjectBuilder
 			job.setPriority(Job.BUILD);
 			job.schedule();
 
-			// Blocking mode
-			//		// Wait for all jobs to complete
-			//		try
-			//		{
-			//			progress.setTaskName("Finalizing concurrent build");
-			//			manager.shutdown();
-			//		}
-			//		catch (InterruptedException | ExecutionException e)
-			//		{
-			//			e.printStackTrace();
-			//		}
+			// No more files will be added, the batch completes when the
+			// scheduled files are done.
+			try
+			{
+				manager.shutdown(false);
+			}
+			catch (InterruptedException | ExecutionException e)
+			{
+				e.printStackTrace();
+			}
+			return manager.getCompletion();
 		}
 		else
 		{
@@ -483,6 +1290,7 @@ public abstract class CommonBuilder extends IncrementalProjectBuilder
 				e.printStackTrace();
 			}
 		}
+		return null;
 	}
 
 	protected abstract IResourceDeltaVisitor getDeltaVisitor(IProgressMonitor monitor);
@@ -26,61 +26,139 @@
  */
 package net.ossindex.eclipse.common.builder;
 
-import java.util.Collection;
-import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.Callable;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.eclipse.core.resources.IFile;
 import org.eclipse.core.resources.IResourceVisitor;
+import net.ossindex.eclipse.common.Activator;
+
 import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
 
 /** This class manages the running of build visitors concurrently. It can run
- * in two modes (*):
+ * in two modes:
  * 
  *   1. Blocking: This blocks the build process until completion
  *   2. Non-blocking: Runs these builders as a separate non-blocking job
  * 
- *   (*) eventually. Currently only non-blocking is supported.
+ * The jobs run in a lane of the shared BuildExecutor, so concurrent builds
+ * of different builders share one pool and one concurrency budget.
+ * 
+ * In blocking mode admission is controlled by a semaphore with one permit
+ * per job slot, so scheduling costs the same no matter how many files are
+ * in the build.
+ * 
+ * The number of files run at once is adjusted during the build by an
+ * AdaptiveConcurrencyController, bounded by getMaxJobs() of the visitor
+ * and the executor budget.
+ * 
+ * Completion is reported through futures, one for each file and one for
+ * the whole batch. The batch completes once shutdown has been called and
+ * every scheduled job has finished or been dropped.
+ * 
+ * A watchdog checks on the running files. A file that runs longer than the
+ * visitor's getFileTimeout() has its stack dumped, is recorded as timed out
+ * in the build state and its thread is interrupted. If it still has not
+ * returned after a second timeout period it is abandoned so the batch can
+ * complete. The watchdog also stops dispatch as soon as the progress
+ * monitor is cancelled.
  * 
  * @author Ken Duck
  *
  */
-public class ConcurrentBuildManager implements IBuildJobListener
+public class ConcurrentBuildManager
 {
 	/**
-	 * Assume that jobs should last no longer than 2 minutes each for now.
+	 * Longest time between watchdog checks, in milliseconds
 	 */
-	private static final long MAX_TIMEOUT = 120;
+	private static final long WATCHDOG_PERIOD = 1000;
+
+	private IResourceVisitor visitor;
 
 	/**
-	 * Maximum number of jobs to run on the machine. This version constrains
-	 * by the number of processors.
+	 * Our share of the build executor
 	 */
-	private int MAX_JOBS = Runtime.getRuntime().availableProcessors() * 2;
-	// private int MAX_JOBS = 2;
+	private BuildExecutor.Lane lane;
 
-	private IResourceVisitor visitor;
-	private ExecutorService executor;
+	/**
+	 * Decides how many jobs the lane runs at once
+	 */
+	private AdaptiveConcurrencyController controller;
+
+	/**
+	 * Permits for jobs that may be outstanding at once. Null when not
+	 * blocking.
+	 */
+	private Semaphore permits;
+
+	/**
+	 * Number of jobs scheduled that have not completed
+	 */
+	private AtomicInteger outstanding = new AtomicInteger();
+
+	/**
+	 * True while more jobs may be scheduled
+	 */
+	private volatile boolean isRunning = true;
+
+	/**
+	 * Ensures the batch is completed exactly once
+	 */
+	private AtomicBoolean finished = new AtomicBoolean(false);
+
+	/**
+	 * Completed when all jobs are done
+	 */
+	private BuildFuture<Void> completion = new BuildFuture<Void>();
 
 	/**
-	 * Current set of jobs to execute
+	 * Completion of the individual files
 	 */
-	private Collection<IFile> jobs;
+	private Map<IFile,BuildFuture<IFile>> futures = new ConcurrentHashMap<IFile,BuildFuture<IFile>>();
 
 	/**
-	 * True while the executor has not been shut down
+	 * Jobs currently being visited
 	 */
-	private boolean isRunning = true;
+	private Set<AdmittedJob> running = Collections.newSetFromMap(new ConcurrentHashMap<AdmittedJob,Boolean>());
 
-	private List<IBuildJobListener> listeners = new LinkedList<IBuildJobListener>();
+	/**
+	 * Milliseconds a single file may take, 0 for no limit
+	 */
+	private long timeout;
+
+	/**
+	 * Files that timed out this many builds in a row are skipped, 0 to never
+	 * skip
+	 */
+	private int maxTimeouts;
+
+	/**
+	 * Cancelling it stops dispatch. May be null.
+	 */
+	private volatile IProgressMonitor monitor;
+
+	private ScheduledFuture<?> watchdog;
+
+	private BuildMetrics metrics;
+
+	/**
+	 * Listeners are called from the worker threads, so the list must be safe
+	 * to iterate while listeners are added.
+	 */
+	private List<IBuildJobListener> listeners = new CopyOnWriteArrayList<IBuildJobListener>();
 
 	/** Start a concurrent build manager.
 	 * 
@@ -92,66 +170,202 @@ public class ConcurrentBuildManager implements IBuildJobListener
 	public ConcurrentBuildManager(IResourceVisitor visitor, boolean blocking)
 	{
 		this.visitor = visitor;
-		int jobCount = MAX_JOBS;
-		
-		if(((CommonBuildVisitor)visitor).getMaxJobs() > 0)
+		CommonBuildVisitor cvisitor = (CommonBuildVisitor)visitor;
+		BuildExecutor executor = BuildExecutor.getDefault();
+		int jobCount = executor.getBudget();
+		int maxJobs = cvisitor.getMaxJobs();
+		if(maxJobs > 0)
 		{
-			jobCount = ((CommonBuildVisitor)visitor).getMaxJobs();
+			jobCount = Math.min(jobCount, maxJobs);
 		}
-		
-		executor = Executors.newFixedThreadPool(jobCount);
+		String builderId = cvisitor.getBuilderId();
+		controller = new AdaptiveConcurrencyController(builderId, 1, jobCount);
+		lane = executor.openLane(builderId, controller.getLimit());
+		metrics = BuildMetrics.getMetrics(builderId);
+		timeout = cvisitor.getFileTimeout();
+		maxTimeouts = cvisitor.getMaxTimeouts();
 		
 		if(blocking)
 		{
-			jobs = new ArrayBlockingQueue<IFile>(jobCount);
+			// Enough permits to keep the lane busy at its highest limit
+			permits = new Semaphore(controller.getMax());
 		}
-		else
+
+		long period = WATCHDOG_PERIOD;
+		if(timeout > 0) period = Math.max(1, Math.min(period, timeout / 4));
+		watchdog = executor.getWatchdog().scheduleWithFixedDelay(new Runnable()
 		{
-			jobs = new HashSet<IFile>();
-		}
+			@Override
+			public void run()
+			{
+				checkRunning();
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
 
-		// We need to track completion for the sake of the blocking queue
-		listeners.add(this);
+	/** Cancelling the monitor stops the dispatch of files that have not
+	 * started yet.
+	 * 
+	 * @param monitor
+	 */
+	public void setProgressMonitor(IProgressMonitor monitor)
+	{
+		this.monitor = monitor;
 	}
 
 	/** Request a new file be visited. This may block depending on the status of
 	 * the job pool and whether we are running in blocking mode or not.
 	 * 
 	 * @param file
+	 * @return Completed when the file has been visited, cancelled if the
+	 *         thread was interrupted while waiting or the manager is shut down
 	 * @throws CoreException 
 	 */
-	public void schedule(IFile file) throws CoreException
+	public BuildFuture<IFile> schedule(IFile file) throws CoreException
 	{
 		// This will block once enough jobs are already submitted
-		if(jobs instanceof BlockingQueue)
+		boolean admitted = false;
+		if(permits != null)
 		{
 			try
 			{
-				((BlockingQueue<IFile>)jobs).put(file);
+				permits.acquire();
+				admitted = true;
 			}
 			catch (InterruptedException e)
 			{
-				e.printStackTrace();
+				Thread.currentThread().interrupt();
+				return rejected();
 			}
 		}
-		else
+		return submit(file, admitted);
+	}
+
+	/**
+	 * 
+	 * @param file
+	 * @return Completed when the file has been visited, cancelled if the
+	 *         manager is shut down
+	 */
+	public BuildFuture<IFile> build(IFile file)
+	{
+		return submit(file, false);
+	}
+
+	/** Hand the file to the executor. Once shutdown has been called, or the
+	 * lane has been closed, the file is rejected.
+	 * 
+	 * @param file
+	 * @param admitted True if a permit was taken for the job
+	 * @return
+	 */
+	private BuildFuture<IFile> submit(IFile file, boolean admitted)
+	{
+		// Count the job before looking at isRunning, so a concurrent shutdown
+		// either sees the job or we see the shutdown.
+		outstanding.incrementAndGet();
+		if(!isRunning)
 		{
-			jobs.add(file);
+			if(admitted) permits.release();
+			if(outstanding.decrementAndGet() == 0) checkCompletion();
+			return rejected();
 		}
-		Callable<ConcurrentBuildJob> worker = new ConcurrentBuildJob(visitor, file, listeners);
-		executor.submit(worker);
+
+		((CommonBuildVisitor)visitor).prepare(file);
+		BuildFuture<IFile> future = new BuildFuture<IFile>();
+		futures.put(file, future);
+		AdmittedJob job = new AdmittedJob(file, future, admitted);
+		if(!lane.submit(job)) job.drop();
+		return future;
 	}
 
-	/**
+	/** Future for a file that will not be built
+	 * 
+	 * @return
+	 */
+	private BuildFuture<IFile> rejected()
+	{
+		BuildFuture<IFile> future = new BuildFuture<IFile>();
+		future.cancel(false);
+		return future;
+	}
+
+	/** Get the future for a scheduled file
 	 * 
 	 * @param file
+	 * @return The future, or null if the file was not scheduled
+	 */
+	public BuildFuture<IFile> getFuture(IFile file)
+	{
+		return futures.get(file);
+	}
+
+	/** Get the future for the whole batch. It completes once shutdown has
+	 * been called and all jobs are done.
+	 * 
+	 * @return
+	 */
+	public BuildFuture<Void> getCompletion()
+	{
+		return completion;
+	}
+
+	/** Give back the slots of jobs that were dropped without running
+	 * 
+	 * @param dropped
+	 */
+	private void discard(List<Runnable> dropped)
+	{
+		for(Runnable job: dropped)
+		{
+			((BuildExecutor.Droppable)job).drop();
+		}
+	}
+
+	/**
+	 * Complete the batch if no more jobs can arrive and none are left.
 	 */
-	public void build(IFile file)
+	private void checkCompletion()
 	{
-		executor.execute(new ConcurrentBuildJob(visitor, file, listeners));
+		if(!isRunning && outstanding.get() == 0 && finished.compareAndSet(false, true))
+		{
+			watchdog.cancel(false);
+			lane.close();
+			completion.complete(null);
+		}
 	}
 
-	/** Shut down the executor and optionally wait for completion
+	/**
+	 * Run by the watchdog. Stops dispatch on cancellation and deals with
+	 * files that are taking too long.
+	 */
+	private void checkRunning()
+	{
+		IProgressMonitor monitor = this.monitor;
+		if(monitor != null && monitor.isCanceled() && isRunning)
+		{
+			shutdownNow();
+		}
+
+		if(timeout <= 0) return;
+		long now = System.currentTimeMillis();
+		for(AdmittedJob job: running)
+		{
+			long elapsed = now - job.started;
+			if(elapsed > 2 * timeout)
+			{
+				job.abandon();
+			}
+			else if(elapsed > timeout)
+			{
+				job.timeout(elapsed);
+			}
+		}
+	}
+
+	/** Stop accepting jobs and optionally wait for completion. Files that
+	 * take too long are dealt with by the watchdog, so the wait ends once
+	 * they are interrupted or abandoned.
 	 * 
 	 * @throws InterruptedException
 	 * @throws ExecutionException
@@ -161,34 +375,32 @@ public class ConcurrentBuildManager implements IBuildJobListener
 		if(isRunning)
 		{
 			isRunning = false;
-			executor.shutdown();
-			if(wait)
-			{
-				if(!executor.awaitTermination(MAX_TIMEOUT, TimeUnit.SECONDS))
-				{
-					// Failed to shutdown in time. Force the issue.
-					executor.shutdownNow();
-				}
-			}
+			checkCompletion();
+		}
+		if(wait)
+		{
+			completion.get();
 		}
 	}
 
-	/** Get the number of jobs
+	/** Get the number of jobs that have not completed
 	 * 
 	 * @return
 	 */
 	public int getSize()
 	{
-		return jobs.size();
+		return outstanding.get();
 	}
 
+	/**
+	 * Stop accepting jobs and drop any that have not started. The batch
+	 * completes when the running jobs are done.
+	 */
 	public void shutdownNow()
 	{
-		if(isRunning)
-		{
-			isRunning = false;
-			executor.shutdownNow();
-		}
+		isRunning = false;
+		discard(lane.cancel());
+		checkCompletion();
 	}
 
 	public boolean isRunning()
@@ -202,44 +414,185 @@ public class ConcurrentBuildManager implements IBuildJobListener
 	 */
 	public void addBuildJobListener(IBuildJobListener listener)
 	{
-		this.listeners .add(listener);
+		this.listeners.add(listener);
 	}
 
-	/** Return true if the jobs are all complete
+	/** Return true if the jobs are all complete. This does not block.
 	 * 
 	 * @return
 	 */
 	public boolean done()
 	{
-		try
+		return completion.isDone();
+	}
+
+	/** Runs a build job and frees its slot afterwards
+	 */
+	private class AdmittedJob implements Runnable, BuildExecutor.Droppable
+	{
+		private static final int RUNNING = 0;
+		private static final int DONE = 1;
+		private static final int TIMED_OUT = 2;
+
+		private IFile file;
+
+		private BuildFuture<IFile> future;
+
+		/**
+		 * True if the job holds a permit
+		 */
+		private boolean admitted;
+
+		/**
+		 * Ensures the slot is only given back once
+		 */
+		private AtomicBoolean released = new AtomicBoolean(false);
+
+		/**
+		 * Thread visiting the file. Guarded by this.
+		 */
+		private Thread thread;
+
+		private volatile long started;
+
+		/**
+		 * Decided once, either by the visit finishing or by the watchdog
+		 * timing it out. Only the winner reports the outcome.
+		 */
+		private AtomicInteger state = new AtomicInteger(RUNNING);
+
+		/**
+		 * 
+		 * @param file
+		 * @param future
+		 * @param admitted
+		 */
+		public AdmittedJob(IFile file, BuildFuture<IFile> future, boolean admitted)
+		{
+			this.file = file;
+			this.future = future;
+			this.admitted = admitted;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * @see java.lang.Runnable#run()
+		 */
+		@Override
+		public void run()
+		{
+			CommonBuildVisitor cvisitor = (CommonBuildVisitor)visitor;
+			try
+			{
+				// The file may have been cancelled while it was queued
+				if(future.isCancelled()) return;
+				IProgressMonitor monitor = ConcurrentBuildManager.this.monitor;
+				if(monitor != null && monitor.isCanceled())
+				{
+					future.cancel(false);
+					return;
+				}
+				if(maxTimeouts > 0 && cvisitor.getTimeouts(file) >= maxTimeouts)
+				{
+					Activator.log(IStatus.WARNING, "Skipping " + file.getFullPath() + ", it timed out in " + maxTimeouts + " builds in a row", null);
+					metrics.increment("timeouts.skipped");
+					future.cancel(false);
+					return;
+				}
+
+				synchronized(this)
+				{
+					thread = Thread.currentThread();
+				}
+				started = System.currentTimeMillis();
+				running.add(this);
+				long start = System.nanoTime();
+				new ConcurrentBuildJob(visitor, file, listeners).call();
+				// A file that timed out has already been reported
+				if(!state.compareAndSet(RUNNING, DONE)) return;
+				cvisitor.recordCost(file, System.nanoTime() - start);
+				future.complete(file);
+				if(controller.completed(lane.isSaturated()))
+				{
+					lane.setLimit(controller.getLimit());
+				}
+			}
+			catch (Exception e)
+			{
+				if(!state.compareAndSet(RUNNING, DONE)) return;
+				if(!(e instanceof InterruptedException)) e.printStackTrace();
+				future.fail(e);
+			}
+			finally
+			{
+				running.remove(this);
+				synchronized(this)
+				{
+					thread = null;
+					// Don't leave an interrupt behind for the next job on
+					// this pool thread
+					Thread.interrupted();
+				}
+				release();
+			}
+		}
+
+		/** Called by the watchdog when the file takes too long. Nothing is
+		 * recorded if the visit finished first.
+		 * 
+		 * @param elapsed
+		 */
+		public synchronized void timeout(long elapsed)
 		{
-			return executor.awaitTermination(500, TimeUnit.MILLISECONDS);
+			if(thread == null || !state.compareAndSet(RUNNING, TIMED_OUT)) return;
+
+			TimeoutException e = new TimeoutException("Build of " + file.getFullPath() + " timed out after " + elapsed + "ms in thread " + thread.getName());
+			e.setStackTrace(thread.getStackTrace());
+			Activator.log(IStatus.WARNING, e.getMessage(), e);
+
+			((CommonBuildVisitor)visitor).recordTimeout(file);
+			metrics.increment("timeouts");
+			future.fail(e);
+			thread.interrupt();
 		}
-		catch (InterruptedException e)
+
+		/**
+		 * The visit ignored the interrupt. Give up on it so the batch can
+		 * complete, the thread is left to finish on its own.
+		 */
+		public void abandon()
 		{
-			e.printStackTrace();
+			timeout(System.currentTimeMillis() - started);
+			// The visit returned in time after all
+			if(state.get() != TIMED_OUT) return;
+			if(running.remove(this))
+			{
+				Activator.log(IStatus.WARNING, "Abandoning build of " + file.getFullPath(), null);
+				metrics.increment("timeouts.abandoned");
+				lane.abandon(this);
+				release();
+			}
 		}
-		return false;
-	}
 
-	/*
-	 * (non-Javadoc)
-	 * @see net.ossindex.eclipse.common.builder.IBuildJobListener#buildStarted(org.eclipse.core.resources.IFile)
-	 */
-	@Override
-	public void buildStarted(IFile file)
-	{
-	}
+		/*
+		 * (non-Javadoc)
+		 * @see net.ossindex.eclipse.common.builder.BuildExecutor.Droppable#drop()
+		 */
+		@Override
+		public void drop()
+		{
+			future.cancel(false);
+			release();
+		}
 
-	/*
-	 * (non-Javadoc)
-	 * @see net.ossindex.eclipse.common.builder.IBuildJobListener#buildCompleted(org.eclipse.core.resources.IFile)
-	 */
-	@Override
-	public void buildCompleted(IFile file)
-	{
-		// A completed job should be removed from the blocking queue
-		jobs.remove(file);
+		/**
+		 * Free the slot held by this job
+		 */
+		private void release()
+		{
+			if(!released.compareAndSet(false, true)) return;
+			if(admitted) permits.release();
+			if(outstanding.decrementAndGet() == 0) checkCompletion();
+		}
 	}
-
 }
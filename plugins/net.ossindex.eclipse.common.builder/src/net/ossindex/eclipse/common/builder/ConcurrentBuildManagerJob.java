@@ -26,7 +26,9 @@
  */
 package net.ossindex.eclipse.common.builder;
 
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.eclipse.core.resources.IFile;
 import org.eclipse.core.runtime.IProgressMonitor;
@@ -38,6 +40,10 @@ import org.eclipse.core.runtime.jobs.Job;
 /** Runs the concurrent build manager in a separate eclipse job. This will detach
  * it from the build.
  * 
+ * The job waits on the manager's completion future, so it wakes up as soon
+ * as the last file is done. Cancelling the job drops any files that have not
+ * started yet.
+ * 
  * @author Ken Duck
  *
  */
@@ -45,63 +51,64 @@ public class ConcurrentBuildManagerJob extends Job implements IBuildJobListener
 {
 
 	private ConcurrentBuildManager buildManager;
+
+	/**
+	 * Set once the job is running. Guarded by this.
+	 */
 	private SubMonitor progress;
 	private int size;
-	private int started = 0;
-	private int completed = 0;
+	private AtomicInteger started = new AtomicInteger();
+	private AtomicInteger completed = new AtomicInteger();
 
 	public ConcurrentBuildManagerJob(ConcurrentBuildManager manager)
 	{
 		super("Concurrent build manager");
 		this.buildManager = manager;
 		manager.addBuildJobListener(this);
+		this.size = manager.getSize();
 	}
 
-	/** Run each of the concurrent builds, showing progress as they complete.
+	/** Wait for the concurrent builds, showing progress as they complete.
 	 * 
 	 * @see org.eclipse.core.runtime.jobs.Job#run(org.eclipse.core.runtime.IProgressMonitor)
 	 */
 	@Override
 	protected IStatus run(IProgressMonitor monitor)
 	{
-		this.size = buildManager.getSize();
-		SubMonitor progress = SubMonitor.convert(monitor, size);
-		this.progress = progress;
-		
-		// Fun all the jobs.
-		//for(Future<ConcurrentBuildJob> future: buildManager)
-		while(!buildManager.done())
+		buildManager.setProgressMonitor(monitor);
+		synchronized(this)
 		{
-			System.err.println("Check completion...");
-			// Get out if cancelled
-			if(progress.isCanceled() || size == 0)
-			{
-				buildManager.shutdownNow();
-				break;
-			}
-			
-//			try
-//			{
-//				future.get();
-//			}
-//			catch (InterruptedException | ExecutionException e)
-//			{
-//				e.printStackTrace();
-//			}
+			progress = SubMonitor.convert(monitor, size);
+			// Some files may have finished before we started
+			progress.worked(completed.get());
 		}
-		
+
 		try
 		{
-			if(buildManager.isRunning())
-			{
-				buildManager.shutdown(false);
-			}
+			// No more files will be added
+			buildManager.shutdown(false);
+			buildManager.getCompletion().get();
+		}
+		catch (CancellationException e)
+		{
+			return Status.CANCEL_STATUS;
 		}
 		catch (InterruptedException | ExecutionException e)
 		{
 			e.printStackTrace();
 		}
-		return Status.OK_STATUS;
+		return monitor.isCanceled() ? Status.CANCEL_STATUS : Status.OK_STATUS;
+	}
+
+	/** Drop the files that have not started yet. The job finishes once the
+	 * running files are done.
+	 * 
+	 * @see org.eclipse.core.runtime.jobs.Job#canceling()
+	 */
+	@Override
+	protected void canceling()
+	{
+		buildManager.shutdownNow();
 	}
 
 	/*
@@ -110,7 +117,7 @@ public class ConcurrentBuildManagerJob extends Job implements IBuildJobListener
 	 */
 	@Override
 	public void buildStarted(IFile file) {
-		started++;
+		started.incrementAndGet();
 	}
 
 	/*
@@ -119,13 +126,14 @@ public class ConcurrentBuildManagerJob extends Job implements IBuildJobListener
 	 */
 	@Override
 	public void buildCompleted(IFile file) {
-		completed++;
-		progress.setTaskName("Concurrent build: [" + completed + "/" + size + "] " + file.getName());
-		System.err.println("COMPLETED: [" + completed + "/" + size + "] " + file.getName());
-		progress.worked(1);
-		if(completed >= size)
+		int completed = this.completed.incrementAndGet();
+		synchronized(this)
 		{
-			buildManager.shutdownNow();
+			if(progress != null)
+			{
+				progress.setTaskName("Concurrent build: [" + completed + "/" + size + "] " + file.getName());
+				progress.worked(1);
+			}
 		}
 	}
 
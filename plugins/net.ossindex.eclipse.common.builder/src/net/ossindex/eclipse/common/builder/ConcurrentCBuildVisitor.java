@@ -0,0 +1,227 @@
+/**
+ *	Copyright (c) 2015 Vr Security Inc.
+ *	All rights reserved.
+ *	
+ *	Redistribution and use in source and binary forms, with or without
+ *	modification, are permitted provided that the following conditions are met:
+ *	    * Redistributions of source code must retain the above copyright
+ *	      notice, this list of conditions and the following disclaimer.
+ *	    * Redistributions in binary form must reproduce the above copyright
+ *	      notice, this list of conditions and the following disclaimer in the
+ *	      documentation and/or other materials provided with the distribution.
+ *	    * Neither the name of the <organization> nor the
+ *	      names of its contributors may be used to endorse or promote products
+ *	      derived from this software without specific prior written permission.
+ *	
+ *	THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *	ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *	WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *	DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ *	DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *	(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *	LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *	ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *	(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *	SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ossindex.eclipse.common.builder;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.ossindex.eclipse.common.CSettings;
+
+import org.eclipse.core.resources.IContainer;
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IProgressMonitor;
+
+/** Base class for C/C++ build visitors that run concurrently.
+ * 
+ * CDT is only asked about a translation unit on the scheduling thread: the
+ * prepare hook decides whether the file is a translation unit and resolves
+ * its settings into an immutable CSettings snapshot. The build method then
+ * runs on the pool threads and must only use the settings accessors of this
+ * class, or be thread safe itself. Progress goes through a
+ * ProgressAggregator.
+ * 
+ * Files that are visited without being prepared are resolved on the
+ * visiting thread, one at a time.
+ * 
+ * @author Ken Duck
+ *
+ */
+public abstract class ConcurrentCBuildVisitor extends CBuildVisitor implements IConcurrentBuildVisitor
+{
+	/**
+	 * Marks a prepared file that is not a translation unit
+	 */
+	private static final CSettings REJECTED = new CSettings(new String[0], new String[0]);
+
+	/**
+	 * Serializes CDT lookups for files that were not prepared
+	 */
+	private static final Object CDT_LOCK = new Object();
+
+	/**
+	 * Settings of the prepared files that have not been visited yet
+	 */
+	private Map<IFile,CSettings> snapshot = new ConcurrentHashMap<IFile,CSettings>();
+
+	private volatile ProgressAggregator progress;
+
+	/**
+	 * 
+	 * @param builderId
+	 * @param monitor
+	 */
+	public ConcurrentCBuildVisitor(String builderId, IProgressMonitor monitor)
+	{
+		super(builderId, monitor);
+		progress = new ProgressAggregator(monitor);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see net.ossindex.eclipse.common.builder.CBuildVisitor#setProgressMonitor(org.eclipse.core.runtime.IProgressMonitor)
+	 */
+	@Override
+	public void setProgressMonitor(IProgressMonitor monitor)
+	{
+		super.setProgressMonitor(monitor);
+		progress = new ProgressAggregator(monitor);
+	}
+
+	/** Get the progress of the concurrent visits
+	 * 
+	 * @return
+	 */
+	protected ProgressAggregator getProgress()
+	{
+		return progress;
+	}
+
+	/** Resolve the settings of the file while still on the scheduling thread.
+	 * 
+	 * @see net.ossindex.eclipse.common.builder.CommonBuildVisitor#prepare(org.eclipse.core.resources.IFile)
+	 */
+	@Override
+	protected void prepare(IFile file)
+	{
+		snapshot.put(file, resolve(file));
+		progress.scheduled();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see net.ossindex.eclipse.common.builder.CBuildVisitor#visit(org.eclipse.core.resources.IResource)
+	 */
+	@Override
+	public boolean visit(IResource resource) throws CoreException
+	{
+		// Handle cancellation
+		if(progress.isCanceled()) return false;
+
+		// Do not descend into folders the builder is not interested in
+		if(resource instanceof IContainer) return acceptsContainer((IContainer)resource);
+
+		IFile file = (IFile)resource;
+		try
+		{
+			if(getSnapshot(file) != REJECTED && isDirty(file))
+			{
+				build(resource);
+				markBuilt(file);
+			}
+		}
+		finally
+		{
+			// Only prepared files were counted as scheduled
+			if(snapshot.remove(file) != null) progress.completed(file);
+		}
+		return true;
+	}
+
+	/** Get the settings of the file from the snapshot
+	 * 
+	 * @see net.ossindex.eclipse.common.builder.CBuildVisitor#getSettings(org.eclipse.core.resources.IResource)
+	 */
+	@Override
+	protected CSettings getSettings(IResource resource)
+	{
+		if(!(resource instanceof IFile)) return super.getSettings(resource);
+		CSettings settings = getSnapshot((IFile)resource);
+		return settings != REJECTED ? settings : CSettings.EMPTY;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see net.ossindex.eclipse.common.builder.CBuildVisitor#getIncludePaths(org.eclipse.core.resources.IResource)
+	 */
+	@Override
+	protected String[] getIncludePaths(IResource resource)
+	{
+		return getSettings(resource).getIncludePaths().clone();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see net.ossindex.eclipse.common.builder.CBuildVisitor#getMacros(org.eclipse.core.resources.IResource)
+	 */
+	@Override
+	protected String[] getMacros(IResource resource)
+	{
+		return getSettings(resource).getMacros().clone();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see net.ossindex.eclipse.common.builder.CBuildVisitor#setTaskName(java.lang.String)
+	 */
+	@Override
+	protected void setTaskName(String name)
+	{
+		progress.setTaskName(name);
+	}
+
+	/** Called once all files of the project are done. Subclasses that
+	 * override this should call it.
+	 * 
+	 * @see net.ossindex.eclipse.common.builder.IDelayedBuild#finish(org.eclipse.core.resources.IProject)
+	 */
+	@Override
+	public void finish(IProject project)
+	{
+		progress.flush();
+		// Files that were prepared but cancelled
+		snapshot.clear();
+	}
+
+	/**
+	 * 
+	 * @param file
+	 * @return The settings, or REJECTED
+	 */
+	private CSettings getSnapshot(IFile file)
+	{
+		CSettings settings = snapshot.get(file);
+		if(settings != null) return settings;
+		synchronized(CDT_LOCK)
+		{
+			return resolve(file);
+		}
+	}
+
+	/** Ask CDT about the file
+	 * 
+	 * @param file
+	 * @return The settings, or REJECTED if it is not a translation unit
+	 */
+	private CSettings resolve(IFile file)
+	{
+		if(!accepts(file)) return REJECTED;
+		return super.getSettings(file);
+	}
+}
@@ -0,0 +1,635 @@
+/**
+ *	Copyright (c) 2015 Vr Security Inc.
+ *	All rights reserved.
+ *	
+ *	Redistribution and use in source and binary forms, with or without
+ *	modification, are permitted provided that the following conditions are met:
+ *	    * Redistributions of source code must retain the above copyright
+ *	      notice, this list of conditions and the following disclaimer.
+ *	    * Redistributions in binary form must reproduce the above copyright
+ *	      notice, this list of conditions and the following disclaimer in the
+ *	      documentation and/or other materials provided with the distribution.
+ *	    * Neither the name of the <organization> nor the
+ *	      names of its contributors may be used to endorse or promote products
+ *	      derived from this software without specific prior written permission.
+ *	
+ *	THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *	ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *	WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *	DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ *	DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *	(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *	LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *	ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *	(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *	SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ossindex.eclipse.common.builder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.ossindex.eclipse.common.Activator;
+import net.ossindex.eclipse.common.builder.state.BuildStateIndex;
+
+import org.eclipse.core.resources.IContainer;
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.resources.IResourceChangeEvent;
+import org.eclipse.core.resources.IResourceChangeListener;
+import org.eclipse.core.resources.IResourceDelta;
+import org.eclipse.core.resources.IResourceDeltaVisitor;
+import org.eclipse.core.resources.ISaveContext;
+import org.eclipse.core.resources.ISaveParticipant;
+import org.eclipse.core.resources.ISavedState;
+import org.eclipse.core.resources.IWorkspace;
+import org.eclipse.core.resources.IWorkspaceRoot;
+import org.eclipse.core.resources.ResourcesPlugin;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IPath;
+import org.eclipse.core.runtime.Path;
+
+/** Keeps a live set of dirty candidate files per project for a builder, fed
+ * by workspace resource change events. This allows "is anything dirty?" to
+ * be answered without walking the project tree, and lets full builds visit
+ * only the files that changed.
+ * 
+ * The candidate set may contain files that turn out to be clean (for example
+ * a file that was touched but not changed). Candidates are checked against
+ * the build state when queried and dropped if they are clean.
+ * 
+ * A project is only tracked after it has been scanned once. Callers that
+ * ask while the scan is running wait for it. The candidate sets are written
+ * out when the workspace is saved and restored on the next start, along with
+ * the changes the workspace recorded in the meantime. If the snapshot does
+ * not match the saved workspace state, or the builder's build state had to
+ * be rebuilt, it is discarded and the projects are scanned again.
+ * 
+ * Changes are filtered by the visitor last used for each project.
+ * 
+ * @author Ken Duck
+ *
+ */
+public class DirtyTracker
+{
+	private static final int MAGIC = 0x0551D1F7;
+	private static final int VERSION = 1;
+	private static final String SNAPSHOT_SUFFIX = ".dirty";
+
+	private static Map<String,DirtyTracker> trackers = new ConcurrentHashMap<String,DirtyTracker>();
+
+	private static IResourceChangeListener listener;
+
+	private String builderId;
+
+	/**
+	 * Candidate sets for the projects that are being tracked, by project name
+	 */
+	private Map<String,Set<String>> projects = new ConcurrentHashMap<String,Set<String>>();
+
+	/**
+	 * Candidate sets of the projects being scanned. Changes are recorded in
+	 * them during the scan, but they are only published once it completes.
+	 */
+	private Map<String,Set<String>> scanning = new ConcurrentHashMap<String,Set<String>>();
+
+	/**
+	 * Visitors used to filter the changes, by project name. Until a visitor
+	 * is known for a project all its changes are recorded as candidates.
+	 */
+	private Map<String,CommonBuildVisitor> filters = new ConcurrentHashMap<String,CommonBuildVisitor>();
+
+	/**
+	 * 
+	 * @param builderId
+	 */
+	private DirtyTracker(String builderId)
+	{
+		this.builderId = builderId;
+	}
+
+	/** Get the tracker for the specified builder
+	 * 
+	 * @param builderId
+	 * @return
+	 */
+	public static DirtyTracker getTracker(String builderId)
+	{
+		DirtyTracker tracker = trackers.get(builderId);
+		if(tracker == null)
+		{
+			synchronized(trackers)
+			{
+				tracker = trackers.get(builderId);
+				if(tracker == null)
+				{
+					tracker = new DirtyTracker(builderId);
+					trackers.put(builderId, tracker);
+				}
+			}
+		}
+		return tracker;
+	}
+
+	/** Start listening to the workspace. Any snapshots from the previous
+	 * session are restored and brought up to date.
+	 * 
+	 * @throws CoreException
+	 */
+	public static synchronized void startup() throws CoreException
+	{
+		if(listener != null) return;
+
+		IWorkspace workspace = ResourcesPlugin.getWorkspace();
+		listener = new IResourceChangeListener()
+		{
+			@Override
+			public void resourceChanged(IResourceChangeEvent event)
+			{
+				IResourceDelta delta = event.getDelta();
+				if(delta != null)
+				{
+					for(DirtyTracker tracker: trackers.values())
+					{
+						tracker.changed(delta);
+					}
+				}
+			}
+		};
+
+		ISavedState state = workspace.addSaveParticipant(Activator.PLUGIN_ID, new SaveParticipant());
+		if(state != null)
+		{
+			loadSnapshots(state.getSaveNumber());
+			// Replay what changed since the snapshot was taken
+			state.processResourceChangeEvents(listener);
+		}
+		workspace.addResourceChangeListener(listener, IResourceChangeEvent.POST_CHANGE);
+	}
+
+	/**
+	 * Stop listening to the workspace
+	 */
+	public static synchronized void shutdown()
+	{
+		if(listener != null)
+		{
+			ResourcesPlugin.getWorkspace().removeResourceChangeListener(listener);
+			listener = null;
+		}
+	}
+
+	/** Returns true if the project has been scanned and is being tracked.
+	 * 
+	 * @param project
+	 * @return
+	 */
+	public boolean isTracking(IProject project)
+	{
+		return projects.containsKey(project.getName());
+	}
+
+	/** Identify whether any files in the project are dirty. The first call for
+	 * a project scans it, after that only the candidates are checked.
+	 * 
+	 * @param project
+	 * @param visitor
+	 * @return
+	 */
+	public boolean areFilesDirty(IProject project, CommonBuildVisitor visitor)
+	{
+		filters.put(project.getName(), visitor);
+		Set<String> candidates = getCandidates(project, visitor);
+
+		IWorkspaceRoot root = project.getWorkspace().getRoot();
+		for(Iterator<String> it = candidates.iterator(); it.hasNext();)
+		{
+			// Remove before checking, so a change recorded meanwhile re-adds
+			// the key rather than being lost
+			String key = it.next();
+			it.remove();
+			if(isDirty(root.getFile(new Path(key)), visitor))
+			{
+				candidates.add(key);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** Get all dirty files in the project.
+	 * 
+	 * @param project
+	 * @param visitor
+	 * @return
+	 */
+	public List<IFile> getDirtyFiles(IProject project, CommonBuildVisitor visitor)
+	{
+		filters.put(project.getName(), visitor);
+		Set<String> candidates = getCandidates(project, visitor);
+
+		List<IFile> results = new ArrayList<IFile>();
+		IWorkspaceRoot root = project.getWorkspace().getRoot();
+		List<String> dirty = new ArrayList<String>();
+		for(Iterator<String> it = candidates.iterator(); it.hasNext();)
+		{
+			// Remove before checking, so a change recorded meanwhile re-adds
+			// the key rather than being lost
+			String key = it.next();
+			it.remove();
+			IFile file = root.getFile(new Path(key));
+			if(isDirty(file, visitor))
+			{
+				results.add(file);
+				dirty.add(key);
+			}
+		}
+		// Put the dirty files back once we are done iterating
+		candidates.addAll(dirty);
+		return results;
+	}
+
+	/** Get the number of candidates for the project. This is an upper bound
+	 * on the number of dirty files.
+	 * 
+	 * @param project
+	 * @return The count, or -1 if the project is not tracked
+	 */
+	public int getDirtyCount(IProject project)
+	{
+		Set<String> candidates = projects.get(project.getName());
+		return candidates != null ? candidates.size() : -1;
+	}
+
+	/** Record that the file should be considered dirty. Used when the build
+	 * state is cleared, which does not cause a resource change.
+	 * 
+	 * @param file
+	 */
+	public void dirty(IFile file)
+	{
+		Set<String> candidates = getTracked(file.getProject().getName());
+		if(candidates != null)
+		{
+			candidates.add(BuildStateIndex.getKey(file));
+		}
+	}
+
+	/** Forget what we know about the project. It will be scanned again the
+	 * next time it is queried.
+	 * 
+	 * @param project
+	 */
+	public void invalidate(IProject project)
+	{
+		projects.remove(project.getName());
+	}
+
+	/**
+	 * Forget what we know about all projects.
+	 */
+	public void invalidateAll()
+	{
+		projects.clear();
+	}
+
+	/** Get the candidates for the project, scanning the project if it is not
+	 * yet tracked. Only one scan runs at a time, other callers wait for it so
+	 * they never see a partial set.
+	 * 
+	 * @param project
+	 * @param visitor
+	 * @return
+	 */
+	private Set<String> getCandidates(IProject project, final CommonBuildVisitor visitor)
+	{
+		String name = project.getName();
+		Set<String> candidates = projects.get(name);
+		if(candidates != null) return candidates;
+
+		synchronized(this)
+		{
+			candidates = projects.get(name);
+			if(candidates != null) return candidates;
+
+			// Record changes made while we scan so they are not lost
+			final Set<String> found = Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+			scanning.put(name, found);
+			try
+			{
+				ResourceTreeWalker.walk(project, new IResourceWalkVisitor()
+				{
+					@Override
+					public boolean visitContainer(IContainer container)
+					{
+						return visitor.acceptsContainer(container);
+					}
+
+					@Override
+					public boolean visitFile(IFile file)
+					{
+						if(isDirty(file, visitor)) found.add(BuildStateIndex.getKey(file));
+						return true;
+					}
+				});
+				projects.put(name, found);
+			}
+			finally
+			{
+				scanning.remove(name);
+			}
+			return found;
+		}
+	}
+
+	/** Get the candidates that changes to the project are recorded in,
+	 * including those of a scan that is still running.
+	 * 
+	 * @param name Project name
+	 * @return The candidates, or null if the project is not tracked
+	 */
+	private Set<String> getTracked(String name)
+	{
+		Set<String> candidates = projects.get(name);
+		return candidates != null ? candidates : scanning.get(name);
+	}
+
+	/**
+	 * 
+	 * @param file
+	 * @param visitor
+	 * @return
+	 */
+	private boolean isDirty(IFile file, CommonBuildVisitor visitor)
+	{
+		return file.exists() && visitor.acceptsSource(file) && visitor.isDirty(file);
+	}
+
+	/** Update the candidates from a resource delta
+	 * 
+	 * @param delta
+	 */
+	private void changed(IResourceDelta delta)
+	{
+		if(projects.isEmpty() && scanning.isEmpty()) return;
+		try
+		{
+			delta.accept(new IResourceDeltaVisitor()
+			{
+				@Override
+				public boolean visit(IResourceDelta delta) throws CoreException
+				{
+					IResource resource = delta.getResource();
+					switch(resource.getType())
+					{
+					case IResource.ROOT:
+						return true;
+					case IResource.PROJECT:
+					{
+						if(getTracked(resource.getName()) == null) return false;
+						if(delta.getKind() == IResourceDelta.REMOVED || !((IProject)resource).isOpen())
+						{
+							projects.remove(resource.getName());
+							filters.remove(resource.getName());
+							return false;
+						}
+						return true;
+					}
+					case IResource.FOLDER:
+					{
+						CommonBuildVisitor visitor = filters.get(resource.getProject().getName());
+						return visitor == null || visitor.acceptsContainer((IContainer)resource);
+					}
+					case IResource.FILE:
+					{
+						Set<String> candidates = getTracked(resource.getProject().getName());
+						if(candidates == null) return false;
+						CommonBuildVisitor visitor = filters.get(resource.getProject().getName());
+						String key = BuildStateIndex.getKey(resource);
+						if(delta.getKind() == IResourceDelta.REMOVED)
+						{
+							candidates.remove(key);
+						}
+						else if(delta.getKind() == IResourceDelta.ADDED
+								|| (delta.getFlags() & (IResourceDelta.CONTENT | IResourceDelta.REPLACED)) != 0)
+						{
+							if(visitor == null || visitor.acceptsSource((IFile)resource))
+							{
+								candidates.add(key);
+							}
+						}
+						return false;
+					}
+					}
+					return true;
+				}
+			});
+		}
+		catch (CoreException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/** Location of the snapshot files
+	 * 
+	 * @return
+	 */
+	private static File getSnapshotDir()
+	{
+		Activator plugin = Activator.getDefault();
+		if(plugin == null) return null;
+		IPath location = plugin.getStateLocation().append("dirty");
+		return location.toFile();
+	}
+
+	/** Write the candidate sets of all trackers.
+	 * 
+	 * @param saveNumber
+	 */
+	private static void saveSnapshots(int saveNumber)
+	{
+		File dir = getSnapshotDir();
+		if(dir == null) return;
+		if(!dir.exists()) dir.mkdirs();
+
+		for(DirtyTracker tracker: trackers.values())
+		{
+			File file = new File(dir, tracker.builderId + SNAPSHOT_SUFFIX);
+			try
+			{
+				tracker.write(file, saveNumber);
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+				file.delete();
+			}
+		}
+	}
+
+	/** Read the snapshots that match the saved workspace state. Anything
+	 * else is stale and discarded.
+	 * 
+	 * @param saveNumber
+	 */
+	private static void loadSnapshots(int saveNumber)
+	{
+		File dir = getSnapshotDir();
+		if(dir == null || !dir.exists()) return;
+
+		File[] files = dir.listFiles();
+		if(files == null) return;
+		for(File file: files)
+		{
+			String name = file.getName();
+			if(!name.endsWith(SNAPSHOT_SUFFIX)) continue;
+			String builderId = name.substring(0, name.length() - SNAPSHOT_SUFFIX.length());
+			try
+			{
+				getTracker(builderId).read(file, saveNumber);
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+				getTracker(builderId).invalidateAll();
+			}
+		}
+	}
+
+	/**
+	 * 
+	 * @param file
+	 * @param saveNumber
+	 * @throws IOException
+	 */
+	private void write(File file, int saveNumber) throws IOException
+	{
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try
+		{
+			// Take a copy so the count matches what we write out
+			List<Map.Entry<String,Set<String>>> entries = new ArrayList<Map.Entry<String,Set<String>>>(projects.entrySet());
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(saveNumber);
+			out.writeInt(entries.size());
+			for(Map.Entry<String,Set<String>> entry: entries)
+			{
+				List<String> candidates = new ArrayList<String>(entry.getValue());
+				out.writeUTF(entry.getKey());
+				out.writeInt(candidates.size());
+				for(String candidate: candidates)
+				{
+					out.writeUTF(candidate);
+				}
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	/**
+	 * 
+	 * @param file
+	 * @param saveNumber
+	 * @throws IOException
+	 */
+	private void read(File file, int saveNumber) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try
+		{
+			if(in.readInt() != MAGIC || in.readInt() != VERSION) return;
+			// A snapshot from another save does not match the recorded changes
+			if(in.readInt() != saveNumber) return;
+			// The snapshot only lists files that changed since they were
+			// built, which means nothing if the build state was lost
+			if(!BuildStateIndex.getIndex(builderId).getStore().isRestored()) return;
+
+			int count = in.readInt();
+			for(int i = 0; i < count; i++)
+			{
+				String project = in.readUTF();
+				int size = in.readInt();
+				Set<String> candidates = Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+				for(int j = 0; j < size; j++)
+				{
+					candidates.add(in.readUTF());
+				}
+				projects.put(project, candidates);
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	/** Writes the snapshots whenever the workspace is saved, so the recorded
+	 * workspace changes line up with the snapshot.
+	 */
+	private static class SaveParticipant implements ISaveParticipant
+	{
+		/*
+		 * (non-Javadoc)
+		 * @see org.eclipse.core.resources.ISaveParticipant#prepareToSave(org.eclipse.core.resources.ISaveContext)
+		 */
+		@Override
+		public void prepareToSave(ISaveContext context) throws CoreException
+		{
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * @see org.eclipse.core.resources.ISaveParticipant#saving(org.eclipse.core.resources.ISaveContext)
+		 */
+		@Override
+		public void saving(ISaveContext context) throws CoreException
+		{
+			if(context.getKind() == ISaveContext.FULL_SAVE)
+			{
+				// The snapshot is only valid alongside the build state it
+				// was checked against.
+				BuildStateIndex.saveAll();
+				saveSnapshots(context.getSaveNumber());
+				context.needSaveNumber();
+				context.needDelta();
+			}
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * @see org.eclipse.core.resources.ISaveParticipant#doneSaving(org.eclipse.core.resources.ISaveContext)
+		 */
+		@Override
+		public void doneSaving(ISaveContext context)
+		{
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * @see org.eclipse.core.resources.ISaveParticipant#rollback(org.eclipse.core.resources.ISaveContext)
+		 */
+		@Override
+		public void rollback(ISaveContext context)
+		{
+		}
+	}
+}
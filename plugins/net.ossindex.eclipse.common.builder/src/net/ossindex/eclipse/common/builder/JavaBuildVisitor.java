@@ -26,8 +26,12 @@
  */
 package net.ossindex.eclipse.common.builder;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import net.ossindex.eclipse.common.IJavaUtils;
 import net.ossindex.eclipse.common.Utils;
@@ -37,6 +41,7 @@ import org.eclipse.core.resources.IFile;
 import org.eclipse.core.resources.IProject;
 import org.eclipse.core.resources.IResource;
 import org.eclipse.core.resources.IResourceDeltaVisitor;
+import org.eclipse.core.resources.IResourceProxy;
 import org.eclipse.core.resources.IResourceVisitor;
 import org.eclipse.core.runtime.CoreException;
 import org.eclipse.core.runtime.IProgressMonitor;
@@ -59,14 +64,11 @@ public abstract class JavaBuildVisitor extends CommonBuildVisitor implements IRe
 	private SubMonitor progress;
 
 	/**
-	 * 
+	 * Sources whose class files are being built, or without timestamps have
+	 * been built, in this build. Makes sure concurrent visits of the class
+	 * files of one source build it only once.
 	 */
-	private IJavaUtils utils = Utils.getJavaUtils();
-
-	/**
-	 * Map for project specific utils
-	 */
-	private Map<IProject,IJavaUtils> utilMap;
+	private Set<IFile> units = Collections.newSetFromMap(new ConcurrentHashMap<IFile,Boolean>());
 
 	/**
 	 * 
@@ -76,7 +78,6 @@ public abstract class JavaBuildVisitor extends CommonBuildVisitor implements IRe
 	public JavaBuildVisitor(String builderId, IProgressMonitor monitor)
 	{
 		super(builderId);
-		utilMap = new HashMap<IProject,IJavaUtils>();
 		progress = SubMonitor.convert(monitor);
 	}
 	
@@ -89,6 +90,16 @@ public abstract class JavaBuildVisitor extends CommonBuildVisitor implements IRe
 		progress = SubMonitor.convert(monitor);
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * @see net.ossindex.eclipse.common.builder.CommonBuildVisitor#getProgressMonitor()
+	 */
+	@Override
+	protected IProgressMonitor getProgressMonitor()
+	{
+		return progress;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * @see org.eclipse.core.resources.IResourceVisitor#visit(org.eclipse.core.resources.IResource)
@@ -98,14 +109,11 @@ public abstract class JavaBuildVisitor extends CommonBuildVisitor implements IRe
 	{
 		// Handle cancellation
 		if(progress.isCanceled()) return false;
+
+		// Do not descend into folders the builder is not interested in
+		if(resource instanceof IContainer) return acceptsContainer((IContainer)resource);
 		
-		IJavaUtils utils = null;
-		IProject project = resource.getProject();
-		synchronized(this)
-		{
-			if(!utilMap.containsKey(project)) utilMap.put(project, Utils.getJavaUtils(project));
-			utils = utilMap.get(project);
-		}
+		IJavaUtils utils = Utils.getJavaUtils(resource.getProject());
 		
 		// Handle cancellation
 		if(progress.isCanceled()) return false;
@@ -130,11 +138,11 @@ public abstract class JavaBuildVisitor extends CommonBuildVisitor implements IRe
 			{
 				//System.out.println("  Class VISIT: " + resource);
 
+				// Class files without a source have nothing to build
 				IFile sourceFile = utils.getSourceFile((IFile)resource);
-				if(isDirty(sourceFile))
+				if(sourceFile != null && isDirty(sourceFile))
 				{
-					buildClass(resource);
-					markBuilt(sourceFile);
+					buildUnit(utils, sourceFile, (IFile)resource);
 				}
 			}
 		}
@@ -163,6 +171,63 @@ public abstract class JavaBuildVisitor extends CommonBuildVisitor implements IRe
 	 */
 	protected abstract void buildClass(IResource resource);
 
+	/** Perform any build operations that require the class files of a
+	 * source. This is called once per source with all of its class files,
+	 * top level class first. By default each class is passed to buildClass.
+	 * 
+	 * @param source The source file, or the class file if there is none
+	 * @param classes
+	 */
+	protected void buildClasses(IFile source, List<IFile> classes)
+	{
+		for(IFile classFile: classes)
+		{
+			buildClass(classFile);
+		}
+	}
+
+	/** Forget the sources built by the last build
+	 * 
+	 * @see net.ossindex.eclipse.common.builder.CommonBuildVisitor#startBuild()
+	 */
+	@Override
+	protected void startBuild()
+	{
+		units.clear();
+	}
+
+	/** Build all class files of the source together, then mark the source
+	 * as built. Visits of the other class files then find the source clean.
+	 * 
+	 * When timestamps are not used the source is remembered until the next
+	 * build starts instead, so it is still only built once.
+	 * 
+	 * @param utils
+	 * @param source
+	 * @param classFile The class file being visited
+	 */
+	private void buildUnit(IJavaUtils utils, IFile source, IFile classFile)
+	{
+		// Another visit is building this source
+		if(!units.add(source)) return;
+		try
+		{
+			// Built while we were waiting
+			if(!isDirty(source)) return;
+
+			List<IFile> classes = new ArrayList<IFile>();
+			if(!source.equals(classFile)) classes.addAll(utils.getClassFiles(source));
+			// The index may not know about a file written in this build cycle
+			if(!classes.contains(classFile)) classes.add(classFile);
+			buildClasses(source, classes);
+			markBuilt(source);
+		}
+		finally
+		{
+			if(useTimestamp()) units.remove(source);
+		}
+	}
+
 	/**
 	 * 
 	 * @param resource
@@ -201,7 +266,27 @@ public abstract class JavaBuildVisitor extends CommonBuildVisitor implements IRe
 	@Override
 	protected boolean accepts(IFile resource)
 	{
-		return isClassFile(resource);
+		return isClassFile(resource) && isIncluded(resource);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see net.ossindex.eclipse.common.builder.CommonBuildVisitor#acceptsProxy(org.eclipse.core.resources.IProject, org.eclipse.core.resources.IResourceProxy)
+	 */
+	@Override
+	protected boolean acceptsProxy(IProject project, IResourceProxy proxy)
+	{
+		return proxy.getName().endsWith(".class") && super.acceptsProxy(project, proxy);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see net.ossindex.eclipse.common.builder.CommonBuildVisitor#acceptsSourceProxy(org.eclipse.core.resources.IProject, org.eclipse.core.resources.IResourceProxy)
+	 */
+	@Override
+	protected boolean acceptsSourceProxy(IProject project, IResourceProxy proxy)
+	{
+		return proxy.getName().endsWith(".java") && super.acceptsProxy(project, proxy);
 	}
 	
 	/*
@@ -211,7 +296,7 @@ public abstract class JavaBuildVisitor extends CommonBuildVisitor implements IRe
 	@Override
 	protected boolean acceptsSource(IFile resource)
 	{
-		return isJavaFile(resource);
+		return isJavaFile(resource) && isIncluded(resource);
 	}
 
 
@@ -222,7 +307,7 @@ public abstract class JavaBuildVisitor extends CommonBuildVisitor implements IRe
 	 */
 	protected String[] getSourcePaths(IResource resource)
 	{
-		return utils.getSourcePaths(resource);
+		return Utils.getJavaUtils(resource.getProject()).getSourcePaths(resource);
 	}
 
 	/** Get the class paths for the project
@@ -231,7 +316,7 @@ public abstract class JavaBuildVisitor extends CommonBuildVisitor implements IRe
 	 */
 	protected String[] getClassPaths(IResource resource)
 	{
-		return utils.getClassPaths(resource);
+		return Utils.getJavaUtils(resource.getProject()).getClassPaths(resource);
 	}
 
 	/**
@@ -241,7 +326,7 @@ public abstract class JavaBuildVisitor extends CommonBuildVisitor implements IRe
 	 */
 	protected String[] getTargetPaths(IResource resource)
 	{
-		return utils.getTargetPaths(resource);
+		return Utils.getJavaUtils(resource.getProject()).getTargetPaths(resource);
 	}
 
 	/** Override the task name for the progress monitor
@@ -253,6 +338,42 @@ public abstract class JavaBuildVisitor extends CommonBuildVisitor implements IRe
 		progress.setTaskName(name);
 	}
 	
+	/** When building classes the class file is visited rather than the
+	 * dirty source. Only one class file is returned, since visiting it
+	 * builds all class files of the source.
+	 * 
+	 * @see net.ossindex.eclipse.common.builder.CommonBuildVisitor#getFilesFor(org.eclipse.core.resources.IFile)
+	 */
+	@Override
+	protected Collection<IFile> getFilesFor(IFile source)
+	{
+		if(!buildsClass()) return super.getFilesFor(source);
+
+		IJavaUtils utils = Utils.getJavaUtils(source.getProject());
+		for(IFile classFile: utils.getClassFiles(source))
+		{
+			if(classFile.exists()) return Collections.singletonList(classFile);
+		}
+
+		// A new source whose class file the index has not seen yet
+		IFile classFile = utils.getClassFile(source);
+		if(classFile != null && classFile.exists()) return Collections.singletonList(classFile);
+		return Collections.emptyList();
+	}
+
+	/** When building classes all class files of a source are one unit,
+	 * identified by the source.
+	 * 
+	 * @see net.ossindex.eclipse.common.builder.CommonBuildVisitor#getBuildUnit(org.eclipse.core.resources.IFile)
+	 */
+	@Override
+	protected Object getBuildUnit(IFile file)
+	{
+		if(!buildsClass() || !isClassFile(file)) return file;
+		IFile source = Utils.getJavaUtils(file.getProject()).getSourceFile(file);
+		return source != null ? source : file;
+	}
+
 	/** Un-mark the files as being built.
 	 * 
 	 * @param project
@@ -267,7 +388,7 @@ public abstract class JavaBuildVisitor extends CommonBuildVisitor implements IRe
 			{
 				if(isJavaFile(resource))
 				{
-					IFile classFile = utils.getClassFile((IFile)resource);
+					IFile classFile = Utils.getJavaUtils(resource.getProject()).getClassFile((IFile)resource);
 					super.clean(classFile);
 				}
 			}
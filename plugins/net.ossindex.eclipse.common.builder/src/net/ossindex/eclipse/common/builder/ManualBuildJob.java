@@ -32,8 +32,6 @@ import java.util.List;
 import java.util.Map;
 
 import org.eclipse.core.resources.ICommand;
-import org.eclipse.core.resources.IContainer;
-import org.eclipse.core.resources.IFile;
 import org.eclipse.core.resources.IProject;
 import org.eclipse.core.resources.IProjectDescription;
 import org.eclipse.core.resources.IResource;
@@ -46,8 +44,6 @@ import org.eclipse.core.runtime.SubMonitor;
 import org.eclipse.core.runtime.jobs.Job;
 import org.eclipse.ui.PlatformUI;
 
-import net.ossindex.eclipse.common.IJavaUtils;
-import net.ossindex.eclipse.common.Utils;
 import net.ossindex.eclipse.common.builder.service.ICommonBuildService;
 
 /** Provide a "manual build" which is separate from the standard Eclipse build
@@ -61,7 +57,6 @@ public class ManualBuildJob extends Job
 	public static final String MANUAL_BUILD = "MANUAL_BUILD";
 	public static final String MANUAL_BUILD_ALL = "MANUAL_BUILD_ALL";
 	public List<IResource> resources;
-	private IJavaUtils jutils = Utils.getJavaUtils();
 
 	public ManualBuildJob(List<IResource> resources)
 	{
@@ -115,7 +110,7 @@ public class ManualBuildJob extends Job
 		System.err.println("Start manual build... ");
 
 		SubMonitor progress = SubMonitor.convert(monitor);
-		jutils.setProject(project);
+		ManualBuildRequest request = null;
 
 		try
 		{
@@ -137,13 +132,11 @@ public class ManualBuildJob extends Job
 
 			if(resources != null)
 			{
-				// For a build of selected resources, ensure the resources
-				// are added to a lookup table.
+				// For a build of selected resources the builders look the
+				// resources up using the request ID.
 				args.put("type", MANUAL_BUILD);
-				for(IResource resource: resources)
-				{
-					addFiles(args, resource);
-				}
+				request = ManualBuildRequest.register(resources);
+				args.put(ManualBuildRequest.REQUEST_ID, request.getId());
 			}
 			else
 			{
@@ -168,40 +161,13 @@ public class ManualBuildJob extends Job
 		{
 			e.printStackTrace();
 		}
+		finally
+		{
+			if(request != null) request.unregister();
+		}
 
 		System.err.println("Manual build complete");
 		return Status.OK_STATUS;
 	}
 
-	/** Recursively add all files to the lookup map
-	 * 
-	 * @param map
-	 * @param resource
-	 */
-	private void addFiles(Map<String, String> map, IResource resource)
-	{
-		if(resource instanceof IFile)
-		{
-			map.put(resource.getLocation().toString(), "BUILD");
-			IFile classFile = jutils.getClassFile((IFile)resource);
-			if(classFile != null) map.put(classFile.getLocation().toString(), "BUILD");
-		}
-		else if(resource instanceof IContainer)
-		{
-			try
-			{
-				IResource[] children = ((IContainer)resource).members();
-				for (IResource child : children)
-				{
-					addFiles(map, child);
-				}
-			}
-			catch (CoreException e)
-			{
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-		}
-	}
-
 }
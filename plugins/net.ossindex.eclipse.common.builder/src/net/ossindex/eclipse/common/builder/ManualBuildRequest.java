@@ -0,0 +1,122 @@
+/**
+ *	Copyright (c) 2015 Vr Security Inc.
+ *	All rights reserved.
+ *	
+ *	Redistribution and use in source and binary forms, with or without
+ *	modification, are permitted provided that the following conditions are met:
+ *	    * Redistributions of source code must retain the above copyright
+ *	      notice, this list of conditions and the following disclaimer.
+ *	    * Redistributions in binary form must reproduce the above copyright
+ *	      notice, this list of conditions and the following disclaimer in the
+ *	      documentation and/or other materials provided with the distribution.
+ *	    * Neither the name of the <organization> nor the
+ *	      names of its contributors may be used to endorse or promote products
+ *	      derived from this software without specific prior written permission.
+ *	
+ *	THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *	ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *	WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *	DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ *	DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *	(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *	LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *	ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *	(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *	SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ossindex.eclipse.common.builder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.core.resources.IResource;
+
+/** The resources selected for a manual build. The request is registered
+ * while the build runs and only its ID is passed to the builders in the
+ * build arguments, so the builders can look up the selected resources
+ * directly instead of searching the project for them.
+ * 
+ * @author Ken Duck
+ *
+ */
+public class ManualBuildRequest
+{
+	/**
+	 * Build argument holding the request ID
+	 */
+	public static final String REQUEST_ID = "REQUEST_ID";
+
+	private static Map<String,ManualBuildRequest> requests = new ConcurrentHashMap<String,ManualBuildRequest>();
+
+	private static AtomicLong nextId = new AtomicLong();
+
+	private String id;
+
+	private List<IResource> resources;
+
+	/**
+	 * 
+	 * @param id
+	 * @param resources
+	 */
+	private ManualBuildRequest(String id, List<IResource> resources)
+	{
+		this.id = id;
+		this.resources = Collections.unmodifiableList(new ArrayList<IResource>(resources));
+	}
+
+	/** Register a request for the provided resources. The request must be
+	 * unregistered once the build is complete.
+	 * 
+	 * @param resources
+	 * @return
+	 */
+	public static ManualBuildRequest register(List<IResource> resources)
+	{
+		String id = Long.toString(nextId.incrementAndGet());
+		ManualBuildRequest request = new ManualBuildRequest(id, resources);
+		requests.put(id, request);
+		return request;
+	}
+
+	/** Get the request with the provided ID.
+	 * 
+	 * @param id
+	 * @return The request, or null if there is no such request
+	 */
+	public static ManualBuildRequest get(String id)
+	{
+		if(id == null) return null;
+		return requests.get(id);
+	}
+
+	/**
+	 * Forget the request
+	 */
+	public void unregister()
+	{
+		requests.remove(id);
+	}
+
+	/** ID to pass in the build arguments
+	 * 
+	 * @return
+	 */
+	public String getId()
+	{
+		return id;
+	}
+
+	/** The selected resources
+	 * 
+	 * @return
+	 */
+	public List<IResource> getResources()
+	{
+		return resources;
+	}
+}
@@ -0,0 +1,243 @@
+/**
+ *	Copyright (c) 2015 Vr Security Inc.
+ *	All rights reserved.
+ *	
+ *	Redistribution and use in source and binary forms, with or without
+ *	modification, are permitted provided that the following conditions are met:
+ *	    * Redistributions of source code must retain the above copyright
+ *	      notice, this list of conditions and the following disclaimer.
+ *	    * Redistributions in binary form must reproduce the above copyright
+ *	      notice, this list of conditions and the following disclaimer in the
+ *	      documentation and/or other materials provided with the distribution.
+ *	    * Neither the name of the <organization> nor the
+ *	      names of its contributors may be used to endorse or promote products
+ *	      derived from this software without specific prior written permission.
+ *	
+ *	THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *	ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *	WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *	DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ *	DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *	(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *	LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *	ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *	(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *	SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ossindex.eclipse.common.builder;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.NullProgressMonitor;
+
+/** Collects progress from the threads of a concurrent build and passes it
+ * on to a progress monitor, which is not thread safe.
+ * 
+ * Counting is lock free. Only one thread at a time talks to the monitor,
+ * and at most every REPORT_INTERVAL; a thread that finds the monitor busy
+ * simply skips its report, the next one includes its count. The
+ * cancellation state is sampled the same way and remembered once seen.
+ * 
+ * When the monitor belongs to a thread that polls anyway, the aggregator
+ * can be created so that only flush talks to the monitor. The other threads
+ * then only leave their message and read the remembered cancellation.
+ * 
+ * @author Ken Duck
+ *
+ */
+public class ProgressAggregator
+{
+	private static final long REPORT_INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+
+	private IProgressMonitor monitor;
+
+	private ReentrantLock lock = new ReentrantLock();
+
+	private AtomicInteger scheduled = new AtomicInteger();
+
+	private AtomicInteger completed = new AtomicInteger();
+
+	private volatile boolean canceled = false;
+
+	/**
+	 * True if only flush may talk to the monitor
+	 */
+	private boolean ownerOnly;
+
+	/**
+	 * Last message left for the owner thread
+	 */
+	private volatile String pending;
+
+	/**
+	 * Time of the last report, only accessed while holding the lock
+	 */
+	private long lastReport;
+
+	/**
+	 * 
+	 * @param monitor May be null
+	 */
+	public ProgressAggregator(IProgressMonitor monitor)
+	{
+		this(monitor, false);
+	}
+
+	/**
+	 * 
+	 * @param monitor May be null
+	 * @param ownerOnly If true only flush talks to the monitor, and it must
+	 *        be called regularly by the thread that owns the monitor
+	 */
+	public ProgressAggregator(IProgressMonitor monitor, boolean ownerOnly)
+	{
+		this.monitor = monitor != null ? monitor : new NullProgressMonitor();
+		this.ownerOnly = ownerOnly;
+		lastReport = System.nanoTime() - REPORT_INTERVAL;
+	}
+
+	/** Get a progress monitor view of the aggregator that may be used by any
+	 * thread. Task names become coalesced messages, work is ignored since the
+	 * aggregator counts files instead.
+	 * 
+	 * @return
+	 */
+	public IProgressMonitor asMonitor()
+	{
+		return new NullProgressMonitor()
+		{
+			@Override
+			public boolean isCanceled()
+			{
+				return ProgressAggregator.this.isCanceled();
+			}
+
+			@Override
+			public void setCanceled(boolean value)
+			{
+				if(value) canceled = true;
+			}
+
+			@Override
+			public void setTaskName(String name)
+			{
+				ProgressAggregator.this.setTaskName(name);
+			}
+
+			@Override
+			public void subTask(String name)
+			{
+				ProgressAggregator.this.setTaskName(name);
+			}
+		};
+	}
+
+	/** Count a file that was handed to the build
+	 */
+	public void scheduled()
+	{
+		scheduled.incrementAndGet();
+	}
+
+	/** Count a file that is done, and report if it is time to.
+	 * 
+	 * @param resource
+	 */
+	public void completed(IResource resource)
+	{
+		completed.incrementAndGet();
+		report(resource.getName(), false);
+	}
+
+	/** Show a message. Messages from several threads are coalesced, so it
+	 * may not be shown.
+	 * 
+	 * @param name
+	 */
+	public void setTaskName(String name)
+	{
+		report(name, false);
+	}
+
+	/** Returns true once the build was cancelled
+	 * 
+	 * @return
+	 */
+	public boolean isCanceled()
+	{
+		if(canceled || ownerOnly) return canceled;
+		if(lock.tryLock())
+		{
+			try
+			{
+				if(monitor.isCanceled()) canceled = true;
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+		return canceled;
+	}
+
+	/**
+	 * Report the counts and the last message, waiting for the monitor if
+	 * needed.
+	 */
+	public void flush()
+	{
+		report(pending, true);
+	}
+
+	/**
+	 * 
+	 * @return Number of files handed to the build
+	 */
+	public int getScheduled()
+	{
+		return scheduled.get();
+	}
+
+	/**
+	 * 
+	 * @return Number of files done
+	 */
+	public int getCompleted()
+	{
+		return completed.get();
+	}
+
+	/**
+	 * 
+	 * @param name File name or message, may be null
+	 * @param force Report even if the last report was recent
+	 */
+	private void report(String name, boolean force)
+	{
+		if(ownerOnly && !force)
+		{
+			pending = name;
+			return;
+		}
+		if(force) lock.lock();
+		else if(!lock.tryLock()) return;
+		try
+		{
+			long now = System.nanoTime();
+			if(!force && now - lastReport < REPORT_INTERVAL) return;
+			lastReport = now;
+			String message = "[" + completed.get() + "/" + scheduled.get() + "]";
+			if(name != null) message += " " + name;
+			monitor.subTask(message);
+			if(monitor.isCanceled()) canceled = true;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+}
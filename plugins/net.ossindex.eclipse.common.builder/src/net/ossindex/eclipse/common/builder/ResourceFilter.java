@@ -0,0 +1,433 @@
+/**
+ *	Copyright (c) 2015 Vr Security Inc.
+ *	All rights reserved.
+ *	
+ *	Redistribution and use in source and binary forms, with or without
+ *	modification, are permitted provided that the following conditions are met:
+ *	    * Redistributions of source code must retain the above copyright
+ *	      notice, this list of conditions and the following disclaimer.
+ *	    * Redistributions in binary form must reproduce the above copyright
+ *	      notice, this list of conditions and the following disclaimer in the
+ *	      documentation and/or other materials provided with the distribution.
+ *	    * Neither the name of the <organization> nor the
+ *	      names of its contributors may be used to endorse or promote products
+ *	      derived from this software without specific prior written permission.
+ *	
+ *	THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *	ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *	WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *	DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ *	DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *	(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *	LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *	ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *	(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *	SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ossindex.eclipse.common.builder;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.eclipse.core.resources.IContainer;
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.runtime.IPath;
+
+/** Declarative include/exclude rules for the resources a builder looks at.
+ * 
+ * Patterns are compiled as they are added:
+ * 
+ *   "*.java"          An extension, kept in a hash set
+ *   "bin", "src/gen"  A project relative path prefix, kept in a path trie
+ *   ".*", "Test*"     A glob without a '/', matched against each name in the path
+ *   "src/**", "a/*.c" A glob with a '/', matched against the project relative path
+ * 
+ * Globs support '*' (within a name), '**' (across names) and '?'.
+ * 
+ * A container is rejected if it lies beneath an excluded path, if its name
+ * matches an excluded glob, or if include paths were given and it is
+ * neither beneath nor above one of them. Rejected containers are never
+ * descended. A file must also pass the extension and name rules: it must
+ * not match an excluded extension or glob, and if any include extensions or
+ * globs were given it must match one of them. Where include and exclude
+ * paths nest, the deepest one wins, so "src" can be included while
+ * "src/gen" is excluded.
+ * 
+ * For example a builder that never wants to look at output or team folders:
+ * 
+ *   new ResourceFilter().include("*.c").exclude("bin").exclude("target").exclude(".*")
+ * 
+ * Configure the filter before the build starts, it may then be used from
+ * several threads.
+ * 
+ * @author Ken Duck
+ *
+ */
+public class ResourceFilter
+{
+	private static final int NONE = 0;
+	private static final int INCLUDE = 1;
+	private static final int EXCLUDE = 2;
+
+	/**
+	 * Root of the path trie
+	 */
+	private PathNode paths = new PathNode();
+
+	private boolean hasIncludePaths = false;
+
+	private Set<String> includeExtensions = new HashSet<String>();
+	private Set<String> excludeExtensions = new HashSet<String>();
+
+	/**
+	 * Globs matched against a single name
+	 */
+	private List<Pattern> includeNames = new ArrayList<Pattern>();
+	private List<Pattern> excludeNames = new ArrayList<Pattern>();
+
+	/**
+	 * Globs matched against the project relative path
+	 */
+	private List<Pattern> includePaths = new ArrayList<Pattern>();
+	private List<Pattern> excludePaths = new ArrayList<Pattern>();
+
+	/** Include resources matching the pattern.
+	 * 
+	 * @param pattern
+	 * @return This filter, so calls can be chained
+	 */
+	public ResourceFilter include(String pattern)
+	{
+		add(pattern, INCLUDE);
+		return this;
+	}
+
+	/** Exclude resources matching the pattern.
+	 * 
+	 * @param pattern
+	 * @return This filter, so calls can be chained
+	 */
+	public ResourceFilter exclude(String pattern)
+	{
+		add(pattern, EXCLUDE);
+		return this;
+	}
+
+	/** Returns true if the builder should descend into the container.
+	 * 
+	 * @param container
+	 * @return
+	 */
+	public boolean acceptsContainer(IContainer container)
+	{
+		if(container.getType() != IResource.FOLDER) return true;
+		return acceptsContainer(container.getProjectRelativePath());
+	}
+
+	/** Returns true if the builder should descend into the folder with the
+	 * provided project relative path.
+	 * 
+	 * @param path
+	 * @return
+	 */
+	public boolean acceptsContainer(IPath path)
+	{
+		if(path.isEmpty()) return true;
+		if(!excludeNames.isEmpty() && matchesName(excludeNames, path.lastSegment())) return false;
+		if(matchesPath(excludePaths, path)) return false;
+
+		// Walk the trie. Running off the end of the path while still inside
+		// the trie means the folder is above an include or exclude path.
+		PathNode node = paths;
+		int mark = NONE;
+		for(int i = 0; i < path.segmentCount(); i++)
+		{
+			node = node.get(path.segment(i));
+			if(node == null) break;
+			if(node.mark != NONE) mark = node.mark;
+		}
+		if(mark != NONE) return mark == INCLUDE;
+		return node != null || !hasIncludePaths;
+	}
+
+	/** Returns true if the builder should look at the file.
+	 * 
+	 * @param file
+	 * @return
+	 */
+	public boolean accepts(IFile file)
+	{
+		return accepts(file.getProjectRelativePath());
+	}
+
+	/** Returns true if the builder should look at the file with the
+	 * provided project relative path.
+	 * 
+	 * @param path
+	 * @return
+	 */
+	public boolean accepts(IPath path)
+	{
+		int count = path.segmentCount();
+		if(count == 0) return false;
+		if(!acceptsName(path.lastSegment())) return false;
+
+		// Any excluded name on the way down rejects the file
+		if(!excludeNames.isEmpty())
+		{
+			for(int i = 0; i < count - 1; i++)
+			{
+				if(matchesName(excludeNames, path.segment(i))) return false;
+			}
+		}
+		if(matchesPath(excludePaths, path)) return false;
+
+		// The deepest marked folder decides
+		PathNode node = paths;
+		int mark = NONE;
+		for(int i = 0; i < count - 1; i++)
+		{
+			node = node.get(path.segment(i));
+			if(node == null) break;
+			if(node.mark != NONE) mark = node.mark;
+		}
+		if(mark == EXCLUDE) return false;
+		if(mark == NONE && hasIncludePaths) return false;
+
+		if(!includePaths.isEmpty() && !matchesPath(includePaths, path))
+		{
+			return hasIncludeNames() && matchesIncludeName(path.lastSegment());
+		}
+		return true;
+	}
+
+	/** Check only the name of a file. This is cheap enough to run before a
+	 * handle is created for the file. A false return means the file is never
+	 * accepted, a true return still needs to be checked using accepts.
+	 * 
+	 * @param name
+	 * @return
+	 */
+	public boolean acceptsName(String name)
+	{
+		String extension = getExtension(name);
+		if(extension != null && excludeExtensions.contains(extension)) return false;
+		if(!excludeNames.isEmpty() && matchesName(excludeNames, name)) return false;
+
+		// If path globs may still include the file we cannot tell yet
+		if(hasIncludeNames() && includePaths.isEmpty())
+		{
+			return matchesIncludeName(name);
+		}
+		return true;
+	}
+
+	/**
+	 * 
+	 * @return
+	 */
+	private boolean hasIncludeNames()
+	{
+		return !includeExtensions.isEmpty() || !includeNames.isEmpty();
+	}
+
+	/**
+	 * 
+	 * @param name
+	 * @return
+	 */
+	private boolean matchesIncludeName(String name)
+	{
+		String extension = getExtension(name);
+		if(extension != null && includeExtensions.contains(extension)) return true;
+		return matchesName(includeNames, name);
+	}
+
+	/** Classify the pattern and add it to the appropriate structure.
+	 * 
+	 * @param pattern
+	 * @param mark
+	 */
+	private void add(String pattern, int mark)
+	{
+		if(pattern == null) throw new IllegalArgumentException("Null pattern");
+		String trimmed = pattern.trim();
+		while(trimmed.startsWith("/")) trimmed = trimmed.substring(1);
+		while(trimmed.endsWith("/")) trimmed = trimmed.substring(0, trimmed.length() - 1);
+		if(trimmed.isEmpty()) throw new IllegalArgumentException("Empty pattern");
+
+		if(trimmed.startsWith("*.") && !hasWildcard(trimmed.substring(2))
+				&& trimmed.indexOf('/') < 0 && trimmed.indexOf('.', 2) < 0)
+		{
+			String extension = trimmed.substring(2);
+			(mark == INCLUDE ? includeExtensions : excludeExtensions).add(extension);
+		}
+		else if(!hasWildcard(trimmed))
+		{
+			PathNode node = paths;
+			for(String segment: trimmed.split("/"))
+			{
+				if(segment.isEmpty()) continue;
+				node = node.add(segment);
+			}
+			node.mark = mark;
+			if(mark == INCLUDE) hasIncludePaths = true;
+		}
+		else if(trimmed.indexOf('/') < 0)
+		{
+			(mark == INCLUDE ? includeNames : excludeNames).add(compile(trimmed));
+		}
+		else
+		{
+			(mark == INCLUDE ? includePaths : excludePaths).add(compile(trimmed));
+		}
+	}
+
+	/**
+	 * 
+	 * @param pattern
+	 * @return
+	 */
+	private static boolean hasWildcard(String pattern)
+	{
+		return pattern.indexOf('*') >= 0 || pattern.indexOf('?') >= 0;
+	}
+
+	/** Convert the glob into a regular expression
+	 * 
+	 * @param glob
+	 * @return
+	 */
+	private static Pattern compile(String glob)
+	{
+		StringBuilder sb = new StringBuilder();
+		StringBuilder literal = new StringBuilder();
+		for(int i = 0; i < glob.length(); i++)
+		{
+			char c = glob.charAt(i);
+			if(c != '*' && c != '?')
+			{
+				literal.append(c);
+				continue;
+			}
+			if(literal.length() > 0)
+			{
+				sb.append(Pattern.quote(literal.toString()));
+				literal.setLength(0);
+			}
+			if(c == '?')
+			{
+				sb.append("[^/]");
+			}
+			else if(i + 1 < glob.length() && glob.charAt(i + 1) == '*')
+			{
+				i++;
+				if(i + 1 < glob.length() && glob.charAt(i + 1) == '/')
+				{
+					// "**/" also matches no folders at all
+					i++;
+					sb.append("(?:.*/)?");
+				}
+				else
+				{
+					sb.append(".*");
+				}
+			}
+			else
+			{
+				sb.append("[^/]*");
+			}
+		}
+		if(literal.length() > 0) sb.append(Pattern.quote(literal.toString()));
+		return Pattern.compile(sb.toString());
+	}
+
+	/**
+	 * 
+	 * @param patterns
+	 * @param name
+	 * @return
+	 */
+	private static boolean matchesName(List<Pattern> patterns, String name)
+	{
+		for(Pattern pattern: patterns)
+		{
+			if(pattern.matcher(name).matches()) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * 
+	 * @param patterns
+	 * @param path
+	 * @return
+	 */
+	private static boolean matchesPath(List<Pattern> patterns, IPath path)
+	{
+		if(patterns.isEmpty()) return false;
+		String text = path.makeRelative().toString();
+		for(Pattern pattern: patterns)
+		{
+			if(pattern.matcher(text).matches()) return true;
+		}
+		return false;
+	}
+
+	/** Get the extension of the name, or null if there is none.
+	 * 
+	 * @param name
+	 * @return
+	 */
+	private static String getExtension(String name)
+	{
+		int index = name.lastIndexOf('.');
+		if(index < 0 || index == name.length() - 1) return null;
+		return name.substring(index + 1);
+	}
+
+	/** A node in the path trie, one per path segment.
+	 * 
+	 * @author Ken Duck
+	 *
+	 */
+	private static class PathNode
+	{
+		private Map<String,PathNode> children;
+
+		private int mark = NONE;
+
+		/**
+		 * 
+		 * @param segment
+		 * @return The child, or null if there is none
+		 */
+		public PathNode get(String segment)
+		{
+			return children != null ? children.get(segment) : null;
+		}
+
+		/**
+		 * 
+		 * @param segment
+		 * @return The existing or new child
+		 */
+		public PathNode add(String segment)
+		{
+			if(children == null) children = new HashMap<String,PathNode>();
+			PathNode child = children.get(segment);
+			if(child == null)
+			{
+				child = new PathNode();
+				children.put(segment, child);
+			}
+			return child;
+		}
+	}
+}
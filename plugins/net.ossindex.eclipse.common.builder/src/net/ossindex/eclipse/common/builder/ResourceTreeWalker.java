@@ -0,0 +1,208 @@
+/**
+ *	Copyright (c) 2015 Vr Security Inc.
+ *	All rights reserved.
+ *	
+ *	Redistribution and use in source and binary forms, with or without
+ *	modification, are permitted provided that the following conditions are met:
+ *	    * Redistributions of source code must retain the above copyright
+ *	      notice, this list of conditions and the following disclaimer.
+ *	    * Redistributions in binary form must reproduce the above copyright
+ *	      notice, this list of conditions and the following disclaimer in the
+ *	      documentation and/or other materials provided with the distribution.
+ *	    * Neither the name of the <organization> nor the
+ *	      names of its contributors may be used to endorse or promote products
+ *	      derived from this software without specific prior written permission.
+ *	
+ *	THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *	ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *	WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *	DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ *	DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *	(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *	LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *	ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *	(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *	SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ossindex.eclipse.common.builder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.eclipse.core.resources.IContainer;
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IProgressMonitor;
+
+/** Walks a resource tree using fork/join on the shared build executor pool,
+ * splitting container subtrees across the available cores. Files within a
+ * container are visited by the task handling that container, sub-containers
+ * are forked as new tasks.
+ * 
+ * The visitor is called from the pool threads, several at a time, so it
+ * must be thread safe.
+ * 
+ * Any visit may stop the walk, as does cancelling the optional monitor. The
+ * other workers notice and stop at the next resource they look at.
+ * 
+ * Only use this for read operations and operations that do not need the
+ * workspace lock, since the workers do not own the rule held by the thread
+ * that started the walk.
+ * 
+ * @author Ken Duck
+ *
+ */
+public class ResourceTreeWalker
+{
+	private IResourceWalkVisitor visitor;
+
+	private IProgressMonitor monitor;
+
+	private AtomicBoolean stopped = new AtomicBoolean(false);
+
+	/**
+	 * 
+	 * @param visitor
+	 */
+	public ResourceTreeWalker(IResourceWalkVisitor visitor)
+	{
+		this(visitor, null);
+	}
+
+	/**
+	 * 
+	 * @param visitor
+	 * @param monitor Checked for cancellation, may be null
+	 */
+	public ResourceTreeWalker(IResourceWalkVisitor visitor, IProgressMonitor monitor)
+	{
+		this.visitor = visitor;
+		this.monitor = monitor;
+	}
+
+	/** Walk the tree beneath the resource, blocking until the walk is complete.
+	 * 
+	 * @param resource
+	 * @return true if the walk completed, false if it was stopped or cancelled
+	 */
+	public boolean walk(IResource resource)
+	{
+		BuildExecutor.getDefault().getPool().invoke(new WalkTask(resource));
+		return !isStopped();
+	}
+
+	/**
+	 * Stop the walk as soon as possible.
+	 */
+	public void stop()
+	{
+		stopped.set(true);
+	}
+
+	/** Check for a stop request or cancellation of the monitor
+	 * 
+	 * @return
+	 */
+	private boolean isStopped()
+	{
+		if(stopped.get()) return true;
+		if(monitor != null && monitor.isCanceled())
+		{
+			stop();
+			return true;
+		}
+		return false;
+	}
+
+	/** Convenience method to walk a tree
+	 * 
+	 * @param resource
+	 * @param visitor
+	 * @return true if the walk completed, false if it was stopped
+	 */
+	public static boolean walk(IResource resource, IResourceWalkVisitor visitor)
+	{
+		return new ResourceTreeWalker(visitor).walk(resource);
+	}
+
+	/** Convenience method to walk a tree, stopping if the monitor is cancelled
+	 * 
+	 * @param resource
+	 * @param visitor
+	 * @param monitor
+	 * @return true if the walk completed, false if it was stopped or cancelled
+	 */
+	public static boolean walk(IResource resource, IResourceWalkVisitor visitor, IProgressMonitor monitor)
+	{
+		return new ResourceTreeWalker(visitor, monitor).walk(resource);
+	}
+
+	/** Visits a single resource, forking a new task for each sub-container.
+	 */
+	@SuppressWarnings("serial")
+	private class WalkTask extends RecursiveAction
+	{
+		private IResource resource;
+
+		public WalkTask(IResource resource)
+		{
+			this.resource = resource;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * @see java.util.concurrent.RecursiveAction#compute()
+		 */
+		@Override
+		protected void compute()
+		{
+			if(isStopped()) return;
+
+			if(resource instanceof IFile)
+			{
+				if(!visitor.visitFile((IFile)resource)) stop();
+			}
+			else if(resource instanceof IContainer)
+			{
+				IContainer container = (IContainer)resource;
+				if(!visitor.visitContainer(container)) return;
+
+				IResource[] members = null;
+				try
+				{
+					members = container.members();
+				}
+				catch (CoreException e)
+				{
+					e.printStackTrace();
+				}
+				if(members == null) return;
+
+				List<WalkTask> tasks = new ArrayList<WalkTask>();
+				for (IResource member : members)
+				{
+					if(isStopped()) return;
+					if(member instanceof IContainer)
+					{
+						tasks.add(new WalkTask(member));
+					}
+					else if(member instanceof IFile)
+					{
+						if(!visitor.visitFile((IFile)member))
+						{
+							stop();
+							return;
+						}
+					}
+				}
+				if(!tasks.isEmpty())
+				{
+					invokeAll(tasks);
+				}
+			}
+		}
+	}
+}
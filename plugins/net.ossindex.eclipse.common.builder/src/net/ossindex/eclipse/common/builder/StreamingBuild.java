@@ -0,0 +1,263 @@
+/**
+ *	Copyright (c) 2015 Vr Security Inc.
+ *	All rights reserved.
+ *	
+ *	Redistribution and use in source and binary forms, with or without
+ *	modification, are permitted provided that the following conditions are met:
+ *	    * Redistributions of source code must retain the above copyright
+ *	      notice, this list of conditions and the following disclaimer.
+ *	    * Redistributions in binary form must reproduce the above copyright
+ *	      notice, this list of conditions and the following disclaimer in the
+ *	      documentation and/or other materials provided with the distribution.
+ *	    * Neither the name of the <organization> nor the
+ *	      names of its contributors may be used to endorse or promote products
+ *	      derived from this software without specific prior written permission.
+ *	
+ *	THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *	ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *	WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *	DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ *	DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *	(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *	LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *	ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *	(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *	SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ossindex.eclipse.common.builder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.SubMonitor;
+import org.eclipse.core.runtime.jobs.Job;
+
+/** Builds files concurrently while they are still being found. The
+ * traversal hands each accepted file to add(), which passes it straight to
+ * a ConcurrentBuildManager. In blocking mode the manager only admits a
+ * bounded number of files, so a traversal that gets too far ahead waits
+ * for the workers.
+ * 
+ * If a batch estimate is given the files are held back until the
+ * traversal is done, since any file may tip the estimate towards a batch
+ * build. As soon as the estimate prefers a batch build the traversal is
+ * stopped and the caller should do a batch build instead.
+ * 
+ * Progress is indeterminate while the total is unknown and becomes
+ * determinate once the traversal is done.
+ * 
+ * @author Ken Duck
+ *
+ */
+public class StreamingBuild implements IBuildJobListener
+{
+	private CommonBuildVisitor visitor;
+
+	private boolean blocking;
+
+	/**
+	 * Created when the first file is dispatched
+	 */
+	private ConcurrentBuildManager manager;
+
+	/**
+	 * Batch estimate, or null if there are no batch builds
+	 */
+	private BuildCostModel.Estimate estimate;
+
+	/**
+	 * Files held back until we know whether this is a batch build
+	 */
+	private List<IFile> buffer = new ArrayList<IFile>();
+
+	/**
+	 * Number of files found so far
+	 */
+	private volatile int found = 0;
+
+	private boolean batch = false;
+
+	/**
+	 * Guarded by this
+	 */
+	private SubMonitor progress;
+
+	/**
+	 * Number of files completed. Guarded by this.
+	 */
+	private int completed = 0;
+
+	/**
+	 * Total number of files, or -1 while the traversal is running. Guarded
+	 * by this.
+	 */
+	private int total = -1;
+
+	/**
+	 * 
+	 * @param visitor Visitor that builds the files
+	 * @param estimate Decides whether a batch build should be done instead,
+	 *                 or null for no batch builds
+	 * @param blocking Whether the concurrent build blocks the builder
+	 * @param monitor
+	 */
+	public StreamingBuild(CommonBuildVisitor visitor, BuildCostModel.Estimate estimate, boolean blocking, IProgressMonitor monitor)
+	{
+		this.visitor = visitor;
+		this.estimate = estimate;
+		this.blocking = blocking;
+		this.progress = SubMonitor.convert(monitor);
+	}
+
+	/** Add a file found by the traversal.
+	 * 
+	 * @param file
+	 * @return false if the traversal should stop
+	 */
+	public boolean add(IFile file)
+	{
+		if(isCanceled()) return false;
+
+		found++;
+		if(estimate != null)
+		{
+			if(estimate.add(file))
+			{
+				batch = true;
+				buffer.clear();
+				return false;
+			}
+			buffer.add(file);
+			return true;
+		}
+		dispatch(file);
+		return true;
+	}
+
+	/** Returns true if the estimate preferred a batch build, which should be
+	 * done instead.
+	 * 
+	 * @return
+	 */
+	public boolean isBatch()
+	{
+		return batch;
+	}
+
+	/** Number of files found
+	 * 
+	 * @return
+	 */
+	public int getCount()
+	{
+		return found;
+	}
+
+	/** Called when the traversal is done. Dispatches any files that were held
+	 * back and, when blocking, waits for the build to complete.
+	 * 
+	 * @return In non-blocking mode the completion of the files, which are
+	 *         still being built. Otherwise null.
+	 */
+	public BuildFuture<Void> finish()
+	{
+		if(batch) return null;
+
+		for(IFile file: buffer)
+		{
+			if(isCanceled()) break;
+			dispatch(file);
+		}
+		buffer.clear();
+
+		synchronized(this)
+		{
+			total = found;
+			progress.setWorkRemaining(total - completed);
+		}
+
+		if(manager == null) return null;
+
+		if(!blocking)
+		{
+			Job job = new ConcurrentBuildManagerJob(manager);
+			job.setPriority(Job.BUILD);
+			job.schedule();
+		}
+		try
+		{
+			manager.shutdown(blocking);
+		}
+		catch (InterruptedException | ExecutionException e)
+		{
+			e.printStackTrace();
+		}
+		return blocking ? null : manager.getCompletion();
+	}
+
+	/** Hand the file to the concurrent build
+	 * 
+	 * @param file
+	 */
+	private void dispatch(IFile file)
+	{
+		if(manager == null)
+		{
+			manager = new ConcurrentBuildManager(visitor, blocking);
+			manager.addBuildJobListener(this);
+			if(blocking) manager.setProgressMonitor(progress);
+		}
+		try
+		{
+			manager.schedule(file);
+		}
+		catch (CoreException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * 
+	 * @return
+	 */
+	private synchronized boolean isCanceled()
+	{
+		return progress.isCanceled();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see net.ossindex.eclipse.common.builder.IBuildJobListener#buildStarted(org.eclipse.core.resources.IFile)
+	 */
+	@Override
+	public void buildStarted(IFile file)
+	{
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see net.ossindex.eclipse.common.builder.IBuildJobListener#buildCompleted(org.eclipse.core.resources.IFile)
+	 */
+	@Override
+	public synchronized void buildCompleted(IFile file)
+	{
+		completed++;
+		if(total < 0)
+		{
+			// Total not known yet. Each step takes a fraction of what is
+			// left, so the bar keeps moving without ever filling up.
+			progress.setWorkRemaining(100);
+			progress.setTaskName("Building [" + completed + "/" + found + "+] " + file.getName());
+		}
+		else
+		{
+			progress.setTaskName("Building [" + completed + "/" + total + "] " + file.getName());
+		}
+		progress.worked(1);
+	}
+}
@@ -0,0 +1,228 @@
+/**
+ *	Copyright (c) 2015 Vr Security Inc.
+ *	All rights reserved.
+ *	
+ *	Redistribution and use in source and binary forms, with or without
+ *	modification, are permitted provided that the following conditions are met:
+ *	    * Redistributions of source code must retain the above copyright
+ *	      notice, this list of conditions and the following disclaimer.
+ *	    * Redistributions in binary form must reproduce the above copyright
+ *	      notice, this list of conditions and the following disclaimer in the
+ *	      documentation and/or other materials provided with the distribution.
+ *	    * Neither the name of the <organization> nor the
+ *	      names of its contributors may be used to endorse or promote products
+ *	      derived from this software without specific prior written permission.
+ *	
+ *	THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *	ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *	WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *	DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ *	DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *	(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *	LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *	ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *	(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *	SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ossindex.eclipse.common.builder.state;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/** Immutable record of the state a file was in when a builder last ran on it.
+ * 
+ * The stamp is the cheap check, the size and content hash are used to decide
+ * whether a file whose stamp changed actually has different content. The
+ * cost is how long the builder last took on the file, which is used to
+ * schedule expensive files first. The timeout count is the number of builds
+ * in a row that gave up on the file.
+ * 
+ * @author Ken Duck
+ *
+ */
+public final class BuildState
+{
+	/**
+	 * Digest used for content hashes. Digests are not thread safe, so keep
+	 * one per thread.
+	 */
+	private static final ThreadLocal<MessageDigest> digest = new ThreadLocal<MessageDigest>()
+	{
+		@Override
+		protected MessageDigest initialValue()
+		{
+			try
+			{
+				return MessageDigest.getInstance("SHA-1");
+			}
+			catch (NoSuchAlgorithmException e)
+			{
+				throw new IllegalStateException(e);
+			}
+		}
+	};
+
+	private final long stamp;
+	private final long size;
+	private final byte[] hash;
+	private final long cost;
+	private final int timeouts;
+
+	/**
+	 * 
+	 * @param stamp Local time stamp of the file
+	 * @param size Size of the file in bytes
+	 * @param hash Content hash, may be null if unknown
+	 */
+	public BuildState(long stamp, long size, byte[] hash)
+	{
+		this(stamp, size, hash, 0);
+	}
+
+	/**
+	 * 
+	 * @param stamp Local time stamp of the file
+	 * @param size Size of the file in bytes
+	 * @param hash Content hash, may be null if unknown
+	 * @param cost Nanoseconds the builder last spent on the file, 0 if unknown
+	 */
+	public BuildState(long stamp, long size, byte[] hash, long cost)
+	{
+		this(stamp, size, hash, cost, 0);
+	}
+
+	/**
+	 * 
+	 * @param stamp Local time stamp of the file
+	 * @param size Size of the file in bytes
+	 * @param hash Content hash, may be null if unknown
+	 * @param cost Nanoseconds the builder last spent on the file, 0 if unknown
+	 * @param timeouts Number of builds in a row that timed out on the file
+	 */
+	public BuildState(long stamp, long size, byte[] hash, long cost, int timeouts)
+	{
+		this.stamp = stamp;
+		this.size = size;
+		this.hash = hash;
+		this.cost = cost;
+		this.timeouts = timeouts;
+	}
+
+	/** Local time stamp of the file when it was built.
+	 * 
+	 * @return
+	 */
+	public long getStamp()
+	{
+		return stamp;
+	}
+
+	/** Size of the file when it was built.
+	 * 
+	 * @return
+	 */
+	public long getSize()
+	{
+		return size;
+	}
+
+	/** Content hash of the file when it was built. May be null.
+	 * 
+	 * @return
+	 */
+	public byte[] getHash()
+	{
+		return hash;
+	}
+
+	/** Nanoseconds the builder last spent on the file, or 0 if unknown.
+	 * 
+	 * @return
+	 */
+	public long getCost()
+	{
+		return cost;
+	}
+
+	/** Number of builds in a row that timed out on the file
+	 * 
+	 * @return
+	 */
+	public int getTimeouts()
+	{
+		return timeouts;
+	}
+
+	/** Returns true if the provided hash matches the recorded one.
+	 * 
+	 * @param other
+	 * @return
+	 */
+	public boolean hashEquals(byte[] other)
+	{
+		return hash != null && other != null && Arrays.equals(hash, other);
+	}
+
+	/** Get a copy of this state with a new stamp. Used when a file was touched
+	 * without its content changing.
+	 * 
+	 * @param stamp
+	 * @return
+	 */
+	public BuildState withStamp(long stamp)
+	{
+		return new BuildState(stamp, size, hash, cost, timeouts);
+	}
+
+	/** Get a copy of this state with a new cost.
+	 * 
+	 * @param cost
+	 * @return
+	 */
+	public BuildState withCost(long cost)
+	{
+		return new BuildState(stamp, size, hash, cost, timeouts);
+	}
+
+	/** Get a copy of this state with a new timeout count.
+	 * 
+	 * @param timeouts
+	 * @return
+	 */
+	public BuildState withTimeouts(int timeouts)
+	{
+		return new BuildState(stamp, size, hash, cost, timeouts);
+	}
+
+	/** Compute the content hash for the provided file.
+	 * 
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static byte[] hash(File file) throws IOException
+	{
+		MessageDigest md = digest.get();
+		md.reset();
+		byte[] buffer = new byte[8192];
+		InputStream in = new FileInputStream(file);
+		try
+		{
+			int count;
+			while((count = in.read(buffer)) > 0)
+			{
+				md.update(buffer, 0, count);
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+		return md.digest();
+	}
+}
@@ -0,0 +1,418 @@
+/**
+ *	Copyright (c) 2015 Vr Security Inc.
+ *	All rights reserved.
+ *	
+ *	Redistribution and use in source and binary forms, with or without
+ *	modification, are permitted provided that the following conditions are met:
+ *	    * Redistributions of source code must retain the above copyright
+ *	      notice, this list of conditions and the following disclaimer.
+ *	    * Redistributions in binary form must reproduce the above copyright
+ *	      notice, this list of conditions and the following disclaimer in the
+ *	      documentation and/or other materials provided with the distribution.
+ *	    * Neither the name of the <organization> nor the
+ *	      names of its contributors may be used to endorse or promote products
+ *	      derived from this software without specific prior written permission.
+ *	
+ *	THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *	ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *	WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *	DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ *	DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *	(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *	LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *	ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *	(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *	SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ossindex.eclipse.common.builder.state;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.ossindex.eclipse.common.Activator;
+
+import org.eclipse.core.resources.IContainer;
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.runtime.IPath;
+
+/** Tracks which files a builder has already run on, keyed by workspace path.
+ * 
+ * Dirty checks are tiered. The local time stamp is compared first, which
+ * requires no I/O. Only when the stamp differs do we look at the file size
+ * and then, if the size matches, the content hash. This means a file that is
+ * touched without being changed (git checkout, formatter run) is not rebuilt.
+ * 
+ * There is one index per builder ID. The backend defaults to a
+ * FileBuildStateStore in the plugin state location but can be replaced
+ * using setStore.
+ * 
+ * The index also records how long the builder took on each file. This is
+ * used to estimate the cost of a file so expensive files can be started
+ * first. Files without a recorded cost are estimated from their size using
+ * the average time per byte seen so far. The totals behind that average are
+ * saved with the store, so estimates are always in nanoseconds. Before any
+ * cost has been recorded the cost of such files is unknown.
+ * 
+ * @author Ken Duck
+ *
+ */
+public class BuildStateIndex
+{
+	private static Map<String,BuildStateIndex> indexes = new ConcurrentHashMap<String,BuildStateIndex>();
+
+	/**
+	 * Attributes holding the totals of the recorded costs, used for the time
+	 * per byte
+	 */
+	private static final String TOTAL_COST = "cost.nanos";
+	private static final String TOTAL_BYTES = "cost.bytes";
+
+	/**
+	 * Prefix of the attributes holding the batch build cost of a container
+	 */
+	private static final String BATCH_COST = "cost.batch:";
+
+	private IBuildStateStore store;
+
+	/**
+	 * 
+	 * @param store
+	 */
+	private BuildStateIndex(IBuildStateStore store)
+	{
+		this.store = store;
+	}
+
+	/** Get the index for the specified builder.
+	 * 
+	 * @param builderId
+	 * @return
+	 */
+	public static BuildStateIndex getIndex(String builderId)
+	{
+		BuildStateIndex index = indexes.get(builderId);
+		if(index == null)
+		{
+			synchronized(indexes)
+			{
+				index = indexes.get(builderId);
+				if(index == null)
+				{
+					index = new BuildStateIndex(createDefaultStore(builderId));
+					indexes.put(builderId, index);
+				}
+			}
+		}
+		return index;
+	}
+
+	/** Use a different backend for the specified builder. This should be called
+	 * before the builder first runs.
+	 * 
+	 * @param builderId
+	 * @param store
+	 */
+	public static void setStore(String builderId, IBuildStateStore store)
+	{
+		getIndex(builderId).store = store;
+	}
+
+	/**
+	 * Write all indexes to persistent storage.
+	 */
+	public static void saveAll()
+	{
+		for(BuildStateIndex index: indexes.values())
+		{
+			index.save();
+		}
+	}
+
+	/** Default store lives in the plugin state location. If the plugin is not
+	 * running (for example when used outside of OSGi) the store is in-memory.
+	 * 
+	 * @param builderId
+	 * @return
+	 */
+	private static IBuildStateStore createDefaultStore(String builderId)
+	{
+		File file = null;
+		Activator plugin = Activator.getDefault();
+		if(plugin != null)
+		{
+			IPath location = plugin.getStateLocation().append("buildstate").append(builderId + ".state");
+			file = location.toFile();
+		}
+		return new FileBuildStateStore(file);
+	}
+
+	/** Start collecting build state changes so they can be written in one
+	 * flush at the end of a build.
+	 * 
+	 * @return
+	 */
+	public BuildStateTransaction begin()
+	{
+		return new BuildStateTransaction(store);
+	}
+
+	/** Get a view of this index that records its changes in the provided
+	 * transaction rather than writing them to the backend directly.
+	 * 
+	 * @param transaction
+	 * @return
+	 */
+	public BuildStateIndex forTransaction(BuildStateTransaction transaction)
+	{
+		return new BuildStateIndex(transaction);
+	}
+
+	/** Get the backend
+	 * 
+	 * @return
+	 */
+	public IBuildStateStore getStore()
+	{
+		return store;
+	}
+
+	/** Returns true if the file has changed since it was last marked as built.
+	 * 
+	 * @param file
+	 * @return
+	 */
+	public boolean isDirty(IFile file)
+	{
+		BuildState state = store.get(getKey(file));
+		if(state == null) return true;
+
+		// Tier 1: No I/O, the workspace already knows the time stamp
+		long stamp = file.getLocalTimeStamp();
+		if(stamp == IResource.NULL_STAMP) return true;
+		if(stamp == state.getStamp()) return false;
+
+		// Tier 2: Different size means different content
+		IPath location = file.getLocation();
+		if(location == null) return true;
+		File jfile = location.toFile();
+		if(jfile.length() != state.getSize()) return true;
+
+		// Tier 3: Same size, compare the content
+		try
+		{
+			if(state.hashEquals(BuildState.hash(jfile)))
+			{
+				// The file was touched but not changed. Remember the new
+				// stamp so the next check is cheap again.
+				store.put(getKey(file), state.withStamp(stamp));
+				return false;
+			}
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+		return true;
+	}
+
+	/** Record the current state of the file. If the file has not changed
+	 * since the last time it was marked the previous hash is reused.
+	 * 
+	 * @param file
+	 */
+	public void markBuilt(IFile file)
+	{
+		BuildState state = getCurrentState(file);
+		if(state != null)
+		{
+			// The build got through, so forget about earlier timeouts
+			if(state.getTimeouts() > 0) state = state.withTimeouts(0);
+			store.put(getKey(file), state);
+		}
+	}
+
+	/** Get the current state of the provided file, reusing the previously
+	 * recorded hash if the stamp and size are unchanged.
+	 * 
+	 * @param file
+	 * @return The state, or null if the file is not available locally
+	 */
+	public BuildState getCurrentState(IFile file)
+	{
+		long stamp = file.getLocalTimeStamp();
+		IPath location = file.getLocation();
+		if(stamp == IResource.NULL_STAMP || location == null) return null;
+
+		File jfile = location.toFile();
+		long size = jfile.length();
+
+		BuildState previous = store.get(getKey(file));
+		if(previous != null && previous.getHash() != null
+				&& previous.getStamp() == stamp && previous.getSize() == size)
+		{
+			return previous;
+		}
+		long cost = previous != null ? previous.getCost() : 0;
+
+		byte[] hash = null;
+		try
+		{
+			hash = BuildState.hash(jfile);
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+		return new BuildState(stamp, size, hash, cost);
+	}
+
+	/** Record how long the builder took on the file. If the file has no
+	 * build state (for example an artifact whose source is what gets marked)
+	 * a state is recorded that never matches the file, so it stays dirty.
+	 * 
+	 * @param file
+	 * @param nanos
+	 */
+	public void recordCost(IFile file, long nanos)
+	{
+		if(nanos <= 0) return;
+		String key = getKey(file);
+		BuildState state = store.get(key);
+		if(state != null)
+		{
+			state = state.withCost(nanos);
+		}
+		else
+		{
+			state = new BuildState(IResource.NULL_STAMP, -1, null, nanos);
+		}
+		store.put(key, state);
+
+		IPath location = file.getLocation();
+		if(location != null)
+		{
+			long size = location.toFile().length();
+			if(size > 0)
+			{
+				store.addAttribute(TOTAL_COST, nanos);
+				store.addAttribute(TOTAL_BYTES, size);
+			}
+		}
+	}
+
+	/** Record that the builder gave up on the file because it took too long.
+	 * 
+	 * @param file
+	 */
+	public void recordTimeout(IFile file)
+	{
+		String key = getKey(file);
+		BuildState state = store.get(key);
+		if(state == null)
+		{
+			state = new BuildState(IResource.NULL_STAMP, -1, null, 0);
+		}
+		store.put(key, state.withTimeouts(state.getTimeouts() + 1));
+	}
+
+	/** Get the number of builds in a row that timed out on the file
+	 * 
+	 * @param file
+	 * @return
+	 */
+	public int getTimeouts(IFile file)
+	{
+		BuildState state = store.get(getKey(file));
+		return state != null ? state.getTimeouts() : 0;
+	}
+
+	/** Record how long a batch build of the container took. The time is kept
+	 * in a store attribute rather than a file state, cleaning the container
+	 * forgets it.
+	 * 
+	 * @param container
+	 * @param nanos
+	 */
+	public void recordBatchCost(IContainer container, long nanos)
+	{
+		if(nanos <= 0) return;
+		store.setAttribute(BATCH_COST + getKey(container), nanos);
+	}
+
+	/** Get the time the last batch build of the container took, in nanoseconds.
+	 * 
+	 * @param container
+	 * @return The time, or 0 if unknown
+	 */
+	public long getBatchCost(IContainer container)
+	{
+		return store.getAttribute(BATCH_COST + getKey(container));
+	}
+
+	/** Estimate how long the builder will take on the file, in nanoseconds.
+	 * The last recorded cost is used if there is one, otherwise the estimate
+	 * is based on the file size.
+	 * 
+	 * @param file
+	 * @return The cost, or -1 if no cost has been recorded to estimate from
+	 */
+	public long getExpectedCost(IFile file)
+	{
+		BuildState state = store.get(getKey(file));
+		if(state != null && state.getCost() > 0) return state.getCost();
+
+		long bytes = store.getAttribute(TOTAL_BYTES);
+		long nanos = store.getAttribute(TOTAL_COST);
+		if(bytes <= 0 || nanos <= 0) return -1;
+		IPath location = file.getLocation();
+		if(location == null) return -1;
+		long size = location.toFile().length();
+		return (long)(size * ((double)nanos / bytes));
+	}
+
+	/** Forget the build state of the resource. For containers this includes
+	 * everything beneath them.
+	 * 
+	 * @param resource
+	 */
+	public void clean(IResource resource)
+	{
+		if(resource instanceof IContainer)
+		{
+			store.removeAll(getKey(resource));
+			store.setAttribute(BATCH_COST + getKey(resource), 0);
+		}
+		else
+		{
+			store.remove(getKey(resource));
+		}
+	}
+
+	/**
+	 * Persist the index
+	 */
+	public void save()
+	{
+		try
+		{
+			store.save();
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/** Get the key used to identify the resource
+	 * 
+	 * @param resource
+	 * @return
+	 */
+	public static String getKey(IResource resource)
+	{
+		return resource.getFullPath().toString();
+	}
+}
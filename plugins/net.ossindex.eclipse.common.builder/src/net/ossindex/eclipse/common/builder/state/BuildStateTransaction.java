@@ -0,0 +1,336 @@
+/**
+ *	Copyright (c) 2015 Vr Security Inc.
+ *	All rights reserved.
+ *	
+ *	Redistribution and use in source and binary forms, with or without
+ *	modification, are permitted provided that the following conditions are met:
+ *	    * Redistributions of source code must retain the above copyright
+ *	      notice, this list of conditions and the following disclaimer.
+ *	    * Redistributions in binary form must reproduce the above copyright
+ *	      notice, this list of conditions and the following disclaimer in the
+ *	      documentation and/or other materials provided with the distribution.
+ *	    * Neither the name of the <organization> nor the
+ *	      names of its contributors may be used to endorse or promote products
+ *	      derived from this software without specific prior written permission.
+ *	
+ *	THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *	ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *	WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *	DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ *	DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *	(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *	LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *	ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *	(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *	SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ossindex.eclipse.common.builder.state;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/** Collects build state changes made during a build so they can be written
+ * to the backing store in a single flush when the build completes, or thrown
+ * away if the build is cancelled.
+ * 
+ * Reads see the pending changes first, so a file marked during the build is
+ * not considered dirty by later checks in the same build.
+ * 
+ * Once the transaction is committed or rolled back it passes everything
+ * straight through to the backing store. This covers concurrent build jobs
+ * that complete after the build itself has returned.
+ * 
+ * @author Ken Duck
+ *
+ */
+public class BuildStateTransaction implements IBuildStateStore
+{
+	/**
+	 * Marker for pending removals
+	 */
+	private static final BuildState REMOVED = new BuildState(-1, -1, null);
+
+	private IBuildStateStore store;
+
+	/**
+	 * Pending marks and clears
+	 */
+	private Map<String,BuildState> pending = new ConcurrentHashMap<String,BuildState>();
+
+	/**
+	 * Containers that have been cleaned in this transaction
+	 */
+	private List<String> removedTrees = new CopyOnWriteArrayList<String>();
+
+	/**
+	 * True if everything has been cleared in this transaction
+	 */
+	private volatile boolean cleared = false;
+
+	private volatile boolean open = true;
+
+	/**
+	 * Changes to the pending state share the read lock, commit and rollback
+	 * take the write lock so no change can slip in while they run.
+	 */
+	private ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * 
+	 * @param store Backing store
+	 */
+	BuildStateTransaction(IBuildStateStore store)
+	{
+		this.store = store;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see net.ossindex.eclipse.common.builder.state.IBuildStateStore#get(java.lang.String)
+	 */
+	@Override
+	public BuildState get(String path)
+	{
+		if(!open) return store.get(path);
+
+		BuildState state = pending.get(path);
+		if(state != null)
+		{
+			return state == REMOVED ? null : state;
+		}
+		if(cleared) return null;
+		for(String tree: removedTrees)
+		{
+			if(isBeneath(path, tree)) return null;
+		}
+		return store.get(path);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see net.ossindex.eclipse.common.builder.state.IBuildStateStore#put(java.lang.String, net.ossindex.eclipse.common.builder.state.BuildState)
+	 */
+	@Override
+	public void put(String path, BuildState state)
+	{
+		lock.readLock().lock();
+		try
+		{
+			if(!open) store.put(path, state);
+			else pending.put(path, state);
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see net.ossindex.eclipse.common.builder.state.IBuildStateStore#remove(java.lang.String)
+	 */
+	@Override
+	public void remove(String path)
+	{
+		lock.readLock().lock();
+		try
+		{
+			if(!open) store.remove(path);
+			else pending.put(path, REMOVED);
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see net.ossindex.eclipse.common.builder.state.IBuildStateStore#removeAll(java.lang.String)
+	 */
+	@Override
+	public void removeAll(String path)
+	{
+		lock.readLock().lock();
+		try
+		{
+			if(!open)
+			{
+				store.removeAll(path);
+				return;
+			}
+			// Anything pending beneath the container is superseded
+			for(Iterator<String> it = pending.keySet().iterator(); it.hasNext();)
+			{
+				if(isBeneath(it.next(), path)) it.remove();
+			}
+			removedTrees.add(path);
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see net.ossindex.eclipse.common.builder.state.IBuildStateStore#clear()
+	 */
+	@Override
+	public void clear()
+	{
+		lock.readLock().lock();
+		try
+		{
+			if(!open)
+			{
+				store.clear();
+				return;
+			}
+			pending.clear();
+			removedTrees.clear();
+			cleared = true;
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	/** Attributes are not part of the transaction, they go straight to the
+	 * backing store.
+	 * 
+	 * @see net.ossindex.eclipse.common.builder.state.IBuildStateStore#getAttribute(java.lang.String)
+	 */
+	@Override
+	public long getAttribute(String name)
+	{
+		return store.getAttribute(name);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see net.ossindex.eclipse.common.builder.state.IBuildStateStore#setAttribute(java.lang.String, long)
+	 */
+	@Override
+	public void setAttribute(String name, long value)
+	{
+		store.setAttribute(name, value);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see net.ossindex.eclipse.common.builder.state.IBuildStateStore#addAttribute(java.lang.String, long)
+	 */
+	@Override
+	public long addAttribute(String name, long delta)
+	{
+		return store.addAttribute(name, delta);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see net.ossindex.eclipse.common.builder.state.IBuildStateStore#isRestored()
+	 */
+	@Override
+	public boolean isRestored()
+	{
+		return store.isRestored();
+	}
+
+	/** Changes only reach the backing store on commit.
+	 * 
+	 * @see net.ossindex.eclipse.common.builder.state.IBuildStateStore#save()
+	 */
+	@Override
+	public void save() throws IOException
+	{
+	}
+
+	/** Apply all pending changes to the backing store and write it out.
+	 * 
+	 * @throws IOException
+	 */
+	public void commit() throws IOException
+	{
+		lock.writeLock().lock();
+		try
+		{
+			if(!open) return;
+
+			// Readers keep seeing the pending changes until they have all
+			// reached the store.
+			if(cleared) store.clear();
+			for(String tree: removedTrees)
+			{
+				store.removeAll(tree);
+			}
+			for(Map.Entry<String,BuildState> entry: pending.entrySet())
+			{
+				if(entry.getValue() == REMOVED)
+				{
+					store.remove(entry.getKey());
+				}
+				else
+				{
+					store.put(entry.getKey(), entry.getValue());
+				}
+			}
+			open = false;
+			pending.clear();
+			removedTrees.clear();
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+		store.save();
+	}
+
+	/**
+	 * Discard all pending changes.
+	 */
+	public void rollback()
+	{
+		lock.writeLock().lock();
+		try
+		{
+			open = false;
+			pending.clear();
+			removedTrees.clear();
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+	/** Returns true until the transaction is committed or rolled back.
+	 * 
+	 * @return
+	 */
+	public boolean isOpen()
+	{
+		return open;
+	}
+
+	/** Returns true if the path is the container path or beneath it.
+	 * 
+	 * @param path
+	 * @param container
+	 * @return
+	 */
+	private static boolean isBeneath(String path, String container)
+	{
+		if(!path.startsWith(container)) return false;
+		return path.length() == container.length()
+				|| container.endsWith("/")
+				|| path.charAt(container.length()) == '/';
+	}
+}
@@ -0,0 +1,358 @@
+/**
+ *	Copyright (c) 2015 Vr Security Inc.
+ *	All rights reserved.
+ *	
+ *	Redistribution and use in source and binary forms, with or without
+ *	modification, are permitted provided that the following conditions are met:
+ *	    * Redistributions of source code must retain the above copyright
+ *	      notice, this list of conditions and the following disclaimer.
+ *	    * Redistributions in binary form must reproduce the above copyright
+ *	      notice, this list of conditions and the following disclaimer in the
+ *	      documentation and/or other materials provided with the distribution.
+ *	    * Neither the name of the <organization> nor the
+ *	      names of its contributors may be used to endorse or promote products
+ *	      derived from this software without specific prior written permission.
+ *	
+ *	THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *	ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *	WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *	DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ *	DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *	(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *	LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *	ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *	(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *	SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ossindex.eclipse.common.builder.state;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Default build state backend. The state is held in memory and written to a
+ * single file (one per builder) in the plugin state location. The file is
+ * loaded lazily the first time the store is used.
+ * 
+ * If no file is provided the store is purely in-memory.
+ * 
+ * @author Ken Duck
+ *
+ */
+public class FileBuildStateStore implements IBuildStateStore
+{
+	private static final int MAGIC = 0x0551B5D0;
+	private static final int VERSION = 4;
+
+	/**
+	 * File the state is persisted to. May be null.
+	 */
+	private File file;
+
+	private Map<String,BuildState> states = new ConcurrentHashMap<String,BuildState>();
+
+	/**
+	 * Store wide values, written in the header
+	 */
+	private Map<String,Long> attributes = new ConcurrentHashMap<String,Long>();
+
+	/**
+	 * True once the persisted state has been read
+	 */
+	private volatile boolean loaded = false;
+
+	/**
+	 * True if the persisted state was read successfully
+	 */
+	private volatile boolean restored = false;
+
+	/**
+	 * Counts the changes, so a save knows whether changes were made while it
+	 * was writing.
+	 */
+	private AtomicLong changes = new AtomicLong();
+
+	/**
+	 * Value of the change count at the last successful save
+	 */
+	private long saved = 0;
+
+	/**
+	 * 
+	 * @param file File to persist to, or null for an in-memory store
+	 */
+	public FileBuildStateStore(File file)
+	{
+		this.file = file;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see net.ossindex.eclipse.common.builder.state.IBuildStateStore#get(java.lang.String)
+	 */
+	@Override
+	public BuildState get(String path)
+	{
+		load();
+		return states.get(path);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see net.ossindex.eclipse.common.builder.state.IBuildStateStore#put(java.lang.String, net.ossindex.eclipse.common.builder.state.BuildState)
+	 */
+	@Override
+	public void put(String path, BuildState state)
+	{
+		load();
+		states.put(path, state);
+		changes.incrementAndGet();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see net.ossindex.eclipse.common.builder.state.IBuildStateStore#remove(java.lang.String)
+	 */
+	@Override
+	public void remove(String path)
+	{
+		load();
+		if(states.remove(path) != null) changes.incrementAndGet();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see net.ossindex.eclipse.common.builder.state.IBuildStateStore#removeAll(java.lang.String)
+	 */
+	@Override
+	public void removeAll(String path)
+	{
+		load();
+		String prefix = path.endsWith("/") ? path : path + "/";
+		for(Iterator<String> it = states.keySet().iterator(); it.hasNext();)
+		{
+			String key = it.next();
+			if(key.equals(path) || key.startsWith(prefix))
+			{
+				it.remove();
+				changes.incrementAndGet();
+			}
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see net.ossindex.eclipse.common.builder.state.IBuildStateStore#clear()
+	 */
+	@Override
+	public void clear()
+	{
+		load();
+		if(!states.isEmpty()) changes.incrementAndGet();
+		states.clear();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see net.ossindex.eclipse.common.builder.state.IBuildStateStore#getAttribute(java.lang.String)
+	 */
+	@Override
+	public long getAttribute(String name)
+	{
+		load();
+		Long value = attributes.get(name);
+		return value != null ? value : 0;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see net.ossindex.eclipse.common.builder.state.IBuildStateStore#setAttribute(java.lang.String, long)
+	 */
+	@Override
+	public synchronized void setAttribute(String name, long value)
+	{
+		load();
+		if(value == 0) attributes.remove(name);
+		else attributes.put(name, value);
+		changes.incrementAndGet();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see net.ossindex.eclipse.common.builder.state.IBuildStateStore#addAttribute(java.lang.String, long)
+	 */
+	@Override
+	public synchronized long addAttribute(String name, long delta)
+	{
+		long value = getAttribute(name) + delta;
+		setAttribute(name, value);
+		return value;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see net.ossindex.eclipse.common.builder.state.IBuildStateStore#isRestored()
+	 */
+	@Override
+	public boolean isRestored()
+	{
+		load();
+		return restored;
+	}
+
+	/** Read the persisted state, if there is any.
+	 */
+	private void load()
+	{
+		if(loaded) return;
+		synchronized(this)
+		{
+			if(loaded) return;
+			if(file != null && file.exists())
+			{
+				try
+				{
+					read();
+				}
+				catch (IOException e)
+				{
+					// A corrupt state file simply means everything gets rebuilt
+					e.printStackTrace();
+					states.clear();
+					attributes.clear();
+				}
+			}
+			loaded = true;
+		}
+	}
+
+	/**
+	 * 
+	 * @throws IOException
+	 */
+	private void read() throws IOException
+	{
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try
+		{
+			if(in.readInt() != MAGIC)
+			{
+				// Unknown format, start from scratch
+				return;
+			}
+			// Version 1 did not record the cost, version 2 not the timeouts,
+			// version 3 had no attributes
+			int version = in.readInt();
+			if(version < 1 || version > VERSION) return;
+			if(version >= 4)
+			{
+				int attributeCount = in.readInt();
+				for(int i = 0; i < attributeCount; i++)
+				{
+					String name = in.readUTF();
+					attributes.put(name, in.readLong());
+				}
+			}
+			int count = in.readInt();
+			for(int i = 0; i < count; i++)
+			{
+				String path = in.readUTF();
+				long stamp = in.readLong();
+				long size = in.readLong();
+				byte[] hash = null;
+				int length = in.readShort();
+				if(length > 0)
+				{
+					hash = new byte[length];
+					in.readFully(hash);
+				}
+				long cost = version >= 2 ? in.readLong() : 0;
+				int timeouts = version >= 3 ? in.readInt() : 0;
+				states.put(path, new BuildState(stamp, size, hash, cost, timeouts));
+			}
+			restored = true;
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see net.ossindex.eclipse.common.builder.state.IBuildStateStore#save()
+	 */
+	@Override
+	public synchronized void save() throws IOException
+	{
+		// Changes made after this point are picked up by the next save
+		long current = changes.get();
+		if(file == null || current == saved) return;
+
+		File parent = file.getParentFile();
+		if(parent != null && !parent.exists()) parent.mkdirs();
+
+		// Write to a temporary file first so a crash never leaves a half
+		// written state behind.
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try
+		{
+			// Take a copy so the count matches what we write out
+			Map<String,BuildState> copy = new HashMap<String,BuildState>(states);
+			Map<String,Long> attributeCopy = new HashMap<String,Long>(attributes);
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(attributeCopy.size());
+			for(Map.Entry<String,Long> entry: attributeCopy.entrySet())
+			{
+				out.writeUTF(entry.getKey());
+				out.writeLong(entry.getValue());
+			}
+			out.writeInt(copy.size());
+			for(Map.Entry<String,BuildState> entry: copy.entrySet())
+			{
+				BuildState state = entry.getValue();
+				out.writeUTF(entry.getKey());
+				out.writeLong(state.getStamp());
+				out.writeLong(state.getSize());
+				byte[] hash = state.getHash();
+				if(hash != null)
+				{
+					out.writeShort(hash.length);
+					out.write(hash);
+				}
+				else
+				{
+					out.writeShort(0);
+				}
+				out.writeLong(state.getCost());
+				out.writeInt(state.getTimeouts());
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+
+		if(file.exists() && !file.delete())
+		{
+			throw new IOException("Could not replace " + file);
+		}
+		if(!tmp.renameTo(file))
+		{
+			throw new IOException("Could not rename " + tmp + " to " + file);
+		}
+		saved = current;
+	}
+}
@@ -0,0 +1,107 @@
+/**
+ *	Copyright (c) 2015 Vr Security Inc.
+ *	All rights reserved.
+ *	
+ *	Redistribution and use in source and binary forms, with or without
+ *	modification, are permitted provided that the following conditions are met:
+ *	    * Redistributions of source code must retain the above copyright
+ *	      notice, this list of conditions and the following disclaimer.
+ *	    * Redistributions in binary form must reproduce the above copyright
+ *	      notice, this list of conditions and the following disclaimer in the
+ *	      documentation and/or other materials provided with the distribution.
+ *	    * Neither the name of the <organization> nor the
+ *	      names of its contributors may be used to endorse or promote products
+ *	      derived from this software without specific prior written permission.
+ *	
+ *	THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *	ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *	WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *	DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ *	DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *	(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *	LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *	ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *	(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *	SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ossindex.eclipse.common.builder.state;
+
+import java.io.IOException;
+
+/** Backend for the build state of a single builder. Entries are keyed by the
+ * workspace relative path of the file. Implementations must be thread safe
+ * since concurrent builders will read and write from several threads.
+ * 
+ * @author Ken Duck
+ *
+ */
+public interface IBuildStateStore
+{
+	/** Get the recorded state for the path, or null if the file was never built.
+	 * 
+	 * @param path Workspace relative path
+	 * @return
+	 */
+	public BuildState get(String path);
+
+	/** Record the state for the path.
+	 * 
+	 * @param path Workspace relative path
+	 * @param state
+	 */
+	public void put(String path, BuildState state);
+
+	/** Forget the state for the path.
+	 * 
+	 * @param path Workspace relative path
+	 */
+	public void remove(String path);
+
+	/** Forget the state for the path and everything beneath it.
+	 * 
+	 * @param path Workspace relative path of a container
+	 */
+	public void removeAll(String path);
+
+	/**
+	 * Forget the state of every file. Attributes are kept.
+	 */
+	public void clear();
+
+	/** Get a store wide value, such as a cost total. Attributes are kept
+	 * apart from the file states, so they never show up as a file.
+	 * 
+	 * @param name
+	 * @return The value, or 0 if it is not set
+	 */
+	public long getAttribute(String name);
+
+	/** Set a store wide value. Setting 0 removes it.
+	 * 
+	 * @param name
+	 * @param value
+	 */
+	public void setAttribute(String name, long value);
+
+	/** Atomically add to a store wide value.
+	 * 
+	 * @param name
+	 * @param delta
+	 * @return The new value
+	 */
+	public long addAttribute(String name, long delta);
+
+	/** Returns true if the store holds state read back from persistent
+	 * storage. A new store, or one whose persisted state was missing or could
+	 * not be read, starts out empty and returns false.
+	 * 
+	 * @return
+	 */
+	public boolean isRestored();
+
+	/** Write any outstanding changes to persistent storage.
+	 * 
+	 * @throws IOException
+	 */
+	public void save() throws IOException;
+}
@@ -0,0 +1,313 @@
+/**
+ *	Copyright (c) 2015 Vr Security Inc.
+ *	All rights reserved.
+ *	
+ *	Redistribution and use in source and binary forms, with or without
+ *	modification, are permitted provided that the following conditions are met:
+ *	    * Redistributions of source code must retain the above copyright
+ *	      notice, this list of conditions and the following disclaimer.
+ *	    * Redistributions in binary form must reproduce the above copyright
+ *	      notice, this list of conditions and the following disclaimer in the
+ *	      documentation and/or other materials provided with the distribution.
+ *	    * Neither the name of the <organization> nor the
+ *	      names of its contributors may be used to endorse or promote products
+ *	      derived from this software without specific prior written permission.
+ *	
+ *	THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *	ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *	WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *	DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ *	DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *	(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *	LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *	ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *	(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *	SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ossindex.eclipse.common.impl;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.ossindex.eclipse.common.CSettings;
+
+import org.eclipse.cdt.core.model.CModelException;
+import org.eclipse.cdt.core.model.CoreModel;
+import org.eclipse.cdt.core.model.IIncludeEntry;
+import org.eclipse.cdt.core.model.IMacroEntry;
+import org.eclipse.cdt.core.settings.model.CProjectDescriptionEvent;
+import org.eclipse.cdt.core.settings.model.ICConfigurationDescription;
+import org.eclipse.cdt.core.settings.model.ICFileDescription;
+import org.eclipse.cdt.core.settings.model.ICFolderDescription;
+import org.eclipse.cdt.core.settings.model.ICLanguageSetting;
+import org.eclipse.cdt.core.settings.model.ICProjectDescription;
+import org.eclipse.cdt.core.settings.model.ICProjectDescriptionListener;
+import org.eclipse.cdt.core.settings.model.ICResourceDescription;
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.resources.IResourceChangeEvent;
+import org.eclipse.core.resources.IResourceChangeListener;
+import org.eclipse.core.resources.ResourcesPlugin;
+import org.eclipse.core.runtime.IPath;
+
+/** Per-project cache of the include paths and macros of translation units.
+ * 
+ * Most translation units do not have settings of their own, they inherit
+ * those of a folder or the project. Settings are therefore cached by scope:
+ * the active configuration, the nearest resource description and the
+ * language of the file. Only the first translation unit of a scope asks CDT.
+ * Files without a CDT description ask CDT every time.
+ * Equal settings are interned, so all scopes with the same settings share
+ * one CSettings instance.
+ * 
+ * The cache of a project is dropped when its CDT project description is
+ * applied, and when the project is closed or deleted.
+ * 
+ * @author Ken Duck
+ *
+ */
+public class CSettingsCache
+{
+	private static ConcurrentHashMap<String,CSettingsCache> caches = new ConcurrentHashMap<String,CSettingsCache>();
+
+	/**
+	 * Settings by fingerprint, shared across projects
+	 */
+	private static ConcurrentHashMap<String,CSettings> interned = new ConcurrentHashMap<String,CSettings>();
+
+	private static ICProjectDescriptionListener descriptionListener;
+
+	private static IResourceChangeListener resourceListener;
+
+	private IProject project;
+
+	/**
+	 * Active configuration, looked up the first time it is needed. Null if
+	 * the project has no CDT description.
+	 */
+	private volatile ICConfigurationDescription configuration;
+	private volatile boolean configured = false;
+
+	/**
+	 * Scope to settings
+	 */
+	private Map<String,CSettings> settings = new ConcurrentHashMap<String,CSettings>();
+
+	/**
+	 * 
+	 * @param project
+	 */
+	private CSettingsCache(IProject project)
+	{
+		this.project = project;
+	}
+
+	/** Get the cache for the project
+	 * 
+	 * @param project
+	 * @return
+	 */
+	public static CSettingsCache getCache(IProject project)
+	{
+		startup();
+		CSettingsCache cache = caches.get(project.getName());
+		if(cache == null)
+		{
+			cache = new CSettingsCache(project);
+			CSettingsCache existing = caches.putIfAbsent(project.getName(), cache);
+			if(existing != null) cache = existing;
+		}
+		return cache;
+	}
+
+	/** Forget the settings of the project. Interned settings that no other
+	 * project uses are dropped as well.
+	 * 
+	 * @param project
+	 */
+	public static void invalidate(IProject project)
+	{
+		if(caches.remove(project.getName()) == null) return;
+
+		Set<String> used = new HashSet<String>();
+		for(CSettingsCache cache: caches.values())
+		{
+			for(CSettings setting: cache.settings.values())
+			{
+				used.add(setting.getFingerprint());
+			}
+		}
+		// Settings being interned right now may be dropped too, which only
+		// means equal settings loaded later are not shared with them.
+		interned.keySet().retainAll(used);
+	}
+
+	/**
+	 * Start listening to CDT and the workspace, if we are not already.
+	 */
+	private static synchronized void startup()
+	{
+		if(descriptionListener != null) return;
+		descriptionListener = new ICProjectDescriptionListener()
+		{
+			@Override
+			public void handleEvent(CProjectDescriptionEvent event)
+			{
+				if(event.getProject() != null) invalidate(event.getProject());
+			}
+		};
+		CoreModel.getDefault().addCProjectDescriptionListener(descriptionListener,
+				CProjectDescriptionEvent.APPLIED | CProjectDescriptionEvent.DATA_APPLIED);
+
+		resourceListener = new IResourceChangeListener()
+		{
+			@Override
+			public void resourceChanged(IResourceChangeEvent event)
+			{
+				if(event.getResource() instanceof IProject) invalidate((IProject)event.getResource());
+			}
+		};
+		ResourcesPlugin.getWorkspace().addResourceChangeListener(resourceListener,
+				IResourceChangeEvent.PRE_CLOSE | IResourceChangeEvent.PRE_DELETE);
+	}
+
+	/**
+	 * Stop listening and forget all settings.
+	 */
+	public static synchronized void shutdown()
+	{
+		if(descriptionListener != null)
+		{
+			CoreModel.getDefault().removeCProjectDescriptionListener(descriptionListener);
+			descriptionListener = null;
+		}
+		if(resourceListener != null)
+		{
+			ResourcesPlugin.getWorkspace().removeResourceChangeListener(resourceListener);
+			resourceListener = null;
+		}
+		caches.clear();
+		interned.clear();
+	}
+
+	/** Get the settings of the translation unit. Settings loaded while the
+	 * cache is being invalidated are returned but not kept.
+	 * 
+	 * @param resource
+	 * @return
+	 */
+	public CSettings getSettings(IResource resource)
+	{
+		String scope = getScope(resource);
+		if(scope == null) return load(resource);
+		CSettings result = settings.get(scope);
+		if(result == null)
+		{
+			result = intern(load(resource));
+			if(caches.get(project.getName()) == this) settings.put(scope, result);
+		}
+		return result;
+	}
+
+	/** Get the key of the settings scope of the resource.
+	 * 
+	 * @param resource
+	 * @return The scope, or null if there is no CDT description for the
+	 *         resource, in which case the settings are not cached
+	 */
+	private String getScope(IResource resource)
+	{
+		ICConfigurationDescription config = getConfiguration();
+		if(config == null) return null;
+		ICResourceDescription description = config.getResourceDescription(resource.getProjectRelativePath(), false);
+		if(description == null) return null;
+
+		// Files of different languages in one folder have different settings
+		ICLanguageSetting language = null;
+		if(description instanceof ICFileDescription)
+		{
+			language = ((ICFileDescription)description).getLanguageSetting();
+		}
+		else if(description instanceof ICFolderDescription)
+		{
+			language = ((ICFolderDescription)description).getLanguageSettingForFile(resource.getName());
+		}
+		String languageId = language != null ? language.getLanguageId() : null;
+		return config.getId() + "|" + description.getPath() + "|" + languageId;
+	}
+
+	/**
+	 * 
+	 * @return The active configuration, or null if there is none
+	 */
+	private ICConfigurationDescription getConfiguration()
+	{
+		if(!configured)
+		{
+			ICProjectDescription description = CoreModel.getDefault().getProjectDescription(project, false);
+			configuration = description != null ? description.getActiveConfiguration() : null;
+			configured = true;
+		}
+		return configuration;
+	}
+
+	/** Ask CDT for the settings of the resource
+	 * 
+	 * @param resource
+	 * @return
+	 */
+	private static CSettings load(IResource resource)
+	{
+		IPath path = resource.getLocation();
+		List<String> includePaths = new ArrayList<String>();
+		List<String> macros = new ArrayList<String>();
+		try
+		{
+			IIncludeEntry[] includes = CoreModel.getIncludeEntries(path);
+			if(includes != null)
+			{
+				for (IIncludeEntry include : includes)
+				{
+					includePaths.add(include.getFullIncludePath().toString());
+				}
+			}
+			IMacroEntry[] entries = CoreModel.getMacroEntries(path);
+			if(entries != null)
+			{
+				for (IMacroEntry macro : entries)
+				{
+					String name = macro.getMacroName();
+					String value = macro.getMacroValue();
+					if(value != null && !value.isEmpty())
+					{
+						macros.add(name + "=" + value);
+					}
+					else
+					{
+						macros.add(name);
+					}
+				}
+			}
+		}
+		catch (CModelException e)
+		{
+			e.printStackTrace();
+		}
+		return new CSettings(includePaths.toArray(new String[includePaths.size()]), macros.toArray(new String[macros.size()]));
+	}
+
+	/** Get the shared instance of the settings
+	 * 
+	 * @param settings
+	 * @return
+	 */
+	private static CSettings intern(CSettings settings)
+	{
+		CSettings existing = interned.putIfAbsent(settings.getFingerprint(), settings);
+		return existing != null ? existing : settings;
+	}
+}
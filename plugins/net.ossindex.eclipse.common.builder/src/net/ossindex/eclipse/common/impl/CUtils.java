@@ -26,16 +26,13 @@
  */
 package net.ossindex.eclipse.common.impl;
 
-import java.util.LinkedList;
 import java.util.List;
 
+import net.ossindex.eclipse.common.CSettings;
 import net.ossindex.eclipse.common.ICUtils;
 
-import org.eclipse.cdt.core.model.CModelException;
 import org.eclipse.cdt.core.model.CoreModel;
 import org.eclipse.cdt.core.model.ICElement;
-import org.eclipse.cdt.core.model.IIncludeEntry;
-import org.eclipse.cdt.core.model.IMacroEntry;
 import org.eclipse.cdt.core.settings.model.ICConfigurationDescription;
 import org.eclipse.cdt.core.settings.model.ICFolderDescription;
 import org.eclipse.cdt.core.settings.model.ICLanguageSetting;
@@ -45,7 +42,6 @@ import org.eclipse.cdt.core.settings.model.ICSettingEntry;
 import org.eclipse.core.resources.IFile;
 import org.eclipse.core.resources.IProject;
 import org.eclipse.core.resources.IResource;
-import org.eclipse.core.runtime.IPath;
 
 /**
  * 
@@ -63,13 +59,20 @@ public class CUtils extends CommonUtils implements ICUtils
 	{
 		if(resource instanceof IFile)
 		{
-			IProject project = resource.getProject();
-			String name = resource.getName();
-			return CoreModel.isValidCXXSourceUnitName(project, name) ||
-					CoreModel.isValidCSourceUnitName(project, name);
+			return isCppCompilationUnitName(resource.getProject(), resource.getName());
 		}
 		return false;
 	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see net.ossindex.eclipse.common.ICUtils#isCppCompilationUnitName(org.eclipse.core.resources.IProject, java.lang.String)
+	 */
+	public boolean isCppCompilationUnitName(IProject project, String name)
+	{
+		return CoreModel.isValidCXXSourceUnitName(project, name) ||
+				CoreModel.isValidCSourceUnitName(project, name);
+	}
 	
 
 	/**
@@ -77,26 +80,7 @@ public class CUtils extends CommonUtils implements ICUtils
 	 */
 	public String[] getIncludePaths(IResource resource)
 	{
-		IPath path = resource.getLocation();
-		List<String> results = new LinkedList<String>();
-		
-		try
-		{
-			IIncludeEntry[] includes = CoreModel.getIncludeEntries(path);
-			if(includes != null)
-			{
-				for (IIncludeEntry include : includes)
-				{
-					results.add(include.getFullIncludePath().toString());
-				}
-			}
-		}
-		catch (CModelException e)
-		{
-			e.printStackTrace();
-		}
-		
-		return results.toArray(new String[results.size()]);
+		return getSettings(resource).getIncludePaths().clone();
 	}
 
 	/**
@@ -104,34 +88,17 @@ public class CUtils extends CommonUtils implements ICUtils
 	 */
 	public String[] getMacros(IResource resource)
 	{
-		IPath path = resource.getLocation();
-		List<String> results = new LinkedList<String>();
-		
-		try
-		{
-			IMacroEntry[] macros = CoreModel.getMacroEntries(path);
-			if(macros != null)
-			{
-				for (IMacroEntry macro : macros)
-				{
-					String name = macro.getMacroName();
-					String value = macro.getMacroValue();
-					if(value != null && !value.isEmpty())
-					{
-						results.add(name + "=" + value);
-					}
-					else
-					{
-						results.add(name);
-					}
-				}
-			}
-		}
-		catch (CModelException e)
-		{
-			e.printStackTrace();
-		}
-		return results.toArray(new String[results.size()]);
+		return getSettings(resource).getMacros().clone();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see net.ossindex.eclipse.common.ICUtils#getSettings(org.eclipse.core.resources.IResource)
+	 */
+	@Override
+	public CSettings getSettings(IResource resource)
+	{
+		return CSettingsCache.getCache(resource.getProject()).getSettings(resource);
 	}
 
 	/** Get the project level include settings.
@@ -29,6 +29,7 @@ package net.ossindex.eclipse.common.impl;
 import org.eclipse.core.resources.IProject;
 import org.eclipse.core.resources.IResource;
 
+import net.ossindex.eclipse.common.CSettings;
 import net.ossindex.eclipse.common.ICUtils;
 
 /** Stub utilities
@@ -47,6 +48,11 @@ public class CUtilsStub implements ICUtils {
 		return false;
 	}
 
+	@Override
+	public boolean isCppCompilationUnitName(IProject project, String name) {
+		return false;
+	}
+
 	@Override
 	public String[] getIncludePaths(IResource resource) {
 		return new String[0];
@@ -57,6 +63,11 @@ public class CUtilsStub implements ICUtils {
 		return new String[0];
 	}
 
+	@Override
+	public CSettings getSettings(IResource resource) {
+		return CSettings.EMPTY;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * @see net.ossindex.eclipse.common.ICUtils#isAvailable()
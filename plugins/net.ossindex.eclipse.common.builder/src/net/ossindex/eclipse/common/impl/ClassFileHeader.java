@@ -0,0 +1,388 @@
+/**
+ *	Copyright (c) 2015 Vr Security Inc.
+ *	All rights reserved.
+ *	
+ *	Redistribution and use in source and binary forms, with or without
+ *	modification, are permitted provided that the following conditions are met:
+ *	    * Redistributions of source code must retain the above copyright
+ *	      notice, this list of conditions and the following disclaimer.
+ *	    * Redistributions in binary form must reproduce the above copyright
+ *	      notice, this list of conditions and the following disclaimer in the
+ *	      documentation and/or other materials provided with the distribution.
+ *	    * Neither the name of the <organization> nor the
+ *	      names of its contributors may be used to endorse or promote products
+ *	      derived from this software without specific prior written permission.
+ *	
+ *	THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *	ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *	WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *	DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ *	DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *	(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *	LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *	ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *	(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *	SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ossindex.eclipse.common.impl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/** Reads the name and SourceFile attribute of a class file without loading
+ * the JDT model. Only the structure needed to reach the class attributes is
+ * walked: constant pool entries are located but only the two strings we want
+ * are decoded, and fields and methods are skipped over.
+ * 
+ * The file is read into a buffer that is reused by the calling thread.
+ * 
+ * @author Ken Duck
+ *
+ */
+public final class ClassFileHeader
+{
+	private static final int MAGIC = 0xCAFEBABE;
+
+	private static final byte[] SOURCE_FILE = {'S', 'o', 'u', 'r', 'c', 'e', 'F', 'i', 'l', 'e'};
+
+	/**
+	 * Buffer the class file is read into, one per thread
+	 */
+	private static final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>()
+	{
+		@Override
+		protected ByteBuffer initialValue()
+		{
+			return ByteBuffer.allocate(16 * 1024);
+		}
+	};
+
+	/**
+	 * Offsets of the constant pool entries, one array per thread
+	 */
+	private static final ThreadLocal<int[]> offsets = new ThreadLocal<int[]>()
+	{
+		@Override
+		protected int[] initialValue()
+		{
+			return new int[1024];
+		}
+	};
+
+	private final String className;
+	private final String sourceFile;
+
+	/**
+	 * 
+	 * @param className
+	 * @param sourceFile
+	 */
+	private ClassFileHeader(String className, String sourceFile)
+	{
+		this.className = className;
+		this.sourceFile = sourceFile;
+	}
+
+	/** Read the header of a class file
+	 * 
+	 * @param file
+	 * @return
+	 * @throws IOException If the file cannot be read or is not a class file
+	 */
+	public static ClassFileHeader read(File file) throws IOException
+	{
+		FileInputStream in = new FileInputStream(file);
+		try
+		{
+			FileChannel channel = in.getChannel();
+			long size = channel.size();
+			if(size > Integer.MAX_VALUE) throw new IOException("Class file too large: " + file);
+			ByteBuffer buffer = buffers.get();
+			if(buffer.capacity() < size)
+			{
+				buffer = ByteBuffer.allocate((int)size);
+				buffers.set(buffer);
+			}
+			buffer.clear();
+			buffer.limit((int)size);
+			while(buffer.hasRemaining())
+			{
+				if(channel.read(buffer) < 0) break;
+			}
+			buffer.flip();
+			return read(buffer);
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	/** Read the header of a class file held in the buffer, starting at its
+	 * current position. The position is moved past the class attributes.
+	 * 
+	 * @param buffer
+	 * @return
+	 * @throws IOException If the buffer does not hold a class file
+	 */
+	public static ClassFileHeader read(ByteBuffer buffer) throws IOException
+	{
+		try
+		{
+			if(buffer.getInt() != MAGIC) throw new IOException("Not a class file");
+			// Minor and major version
+			buffer.getInt();
+
+			int count = buffer.getShort() & 0xFFFF;
+			int[] pool = offsets.get();
+			if(pool.length < count)
+			{
+				pool = new int[count];
+				offsets.set(pool);
+			}
+			for(int i = 1; i < count; i++)
+			{
+				pool[i] = buffer.position();
+				int tag = buffer.get();
+				switch(tag)
+				{
+				case 1: // Utf8
+					skip(buffer, buffer.getShort() & 0xFFFF);
+					break;
+				case 7: // Class
+				case 8: // String
+				case 16: // MethodType
+				case 19: // Module
+				case 20: // Package
+					skip(buffer, 2);
+					break;
+				case 15: // MethodHandle
+					skip(buffer, 3);
+					break;
+				case 3: // Integer
+				case 4: // Float
+				case 9: // Fieldref
+				case 10: // Methodref
+				case 11: // InterfaceMethodref
+				case 12: // NameAndType
+				case 17: // Dynamic
+				case 18: // InvokeDynamic
+					skip(buffer, 4);
+					break;
+				case 5: // Long
+				case 6: // Double
+					// Eight byte constants take up two entries
+					skip(buffer, 8);
+					i++;
+					break;
+				default:
+					throw new IOException("Unknown constant pool tag " + tag);
+				}
+			}
+
+			// Access flags
+			buffer.getShort();
+			int thisClass = buffer.getShort() & 0xFFFF;
+			// Super class
+			buffer.getShort();
+			skip(buffer, 2 * (buffer.getShort() & 0xFFFF));
+			skipMembers(buffer);
+			skipMembers(buffer);
+
+			String sourceFile = null;
+			int attributes = buffer.getShort() & 0xFFFF;
+			for(int i = 0; i < attributes; i++)
+			{
+				int name = buffer.getShort() & 0xFFFF;
+				int length = buffer.getInt();
+				if(sourceFile == null && length == 2 && utf8Equals(buffer, pool, count, name, SOURCE_FILE))
+				{
+					sourceFile = getUtf8(buffer, pool, count, buffer.getShort() & 0xFFFF);
+				}
+				else
+				{
+					skip(buffer, length);
+				}
+			}
+
+			String className = getUtf8(buffer, pool, count, getClassIndex(buffer, pool, count, thisClass));
+			return new ClassFileHeader(className, sourceFile);
+		}
+		catch (BufferUnderflowException | IndexOutOfBoundsException e)
+		{
+			throw new IOException("Truncated class file", e);
+		}
+	}
+
+	/** Skip the fields or methods table
+	 * 
+	 * @param buffer
+	 */
+	private static void skipMembers(ByteBuffer buffer)
+	{
+		int members = buffer.getShort() & 0xFFFF;
+		for(int i = 0; i < members; i++)
+		{
+			// Access flags, name and descriptor
+			skip(buffer, 6);
+			int attributes = buffer.getShort() & 0xFFFF;
+			for(int j = 0; j < attributes; j++)
+			{
+				// Name
+				buffer.getShort();
+				skip(buffer, buffer.getInt());
+			}
+		}
+	}
+
+	/**
+	 * 
+	 * @param buffer
+	 * @param length
+	 */
+	private static void skip(ByteBuffer buffer, int length)
+	{
+		if(length < 0 || length > buffer.remaining()) throw new BufferUnderflowException();
+		buffer.position(buffer.position() + length);
+	}
+
+	/** Get the name index of a Class constant
+	 * 
+	 * @param buffer
+	 * @param pool
+	 * @param count
+	 * @param index
+	 * @return
+	 * @throws IOException
+	 */
+	private static int getClassIndex(ByteBuffer buffer, int[] pool, int count, int index) throws IOException
+	{
+		int offset = getOffset(pool, count, index);
+		if(buffer.get(offset) != 7) throw new IOException("Constant " + index + " is not a class");
+		return buffer.getShort(offset + 1) & 0xFFFF;
+	}
+
+	/** Compare a Utf8 constant to an ASCII string without decoding it
+	 * 
+	 * @param buffer
+	 * @param pool
+	 * @param count
+	 * @param index
+	 * @param expected
+	 * @return
+	 * @throws IOException
+	 */
+	private static boolean utf8Equals(ByteBuffer buffer, int[] pool, int count, int index, byte[] expected) throws IOException
+	{
+		int offset = getOffset(pool, count, index);
+		if(buffer.get(offset) != 1) return false;
+		int length = buffer.getShort(offset + 1) & 0xFFFF;
+		if(length != expected.length) return false;
+		for(int i = 0; i < length; i++)
+		{
+			if(buffer.get(offset + 3 + i) != expected[i]) return false;
+		}
+		return true;
+	}
+
+	/** Decode a Utf8 constant. Class files use modified UTF-8, which differs
+	 * from standard UTF-8 only in how NUL and supplementary characters are
+	 * written, so the decoding is done by hand.
+	 * 
+	 * @param buffer
+	 * @param pool
+	 * @param count
+	 * @param index
+	 * @return
+	 * @throws IOException
+	 */
+	private static String getUtf8(ByteBuffer buffer, int[] pool, int count, int index) throws IOException
+	{
+		int offset = getOffset(pool, count, index);
+		if(buffer.get(offset) != 1) throw new IOException("Constant " + index + " is not a string");
+		int length = buffer.getShort(offset + 1) & 0xFFFF;
+		char[] chars = new char[length];
+		int size = 0;
+		int i = offset + 3;
+		int end = i + length;
+		while(i < end)
+		{
+			int b = buffer.get(i++) & 0xFF;
+			if(b < 0x80)
+			{
+				chars[size++] = (char)b;
+			}
+			else if((b & 0xE0) == 0xC0)
+			{
+				chars[size++] = (char)(((b & 0x1F) << 6) | (buffer.get(i++) & 0x3F));
+			}
+			else
+			{
+				int b2 = buffer.get(i++) & 0x3F;
+				int b3 = buffer.get(i++) & 0x3F;
+				chars[size++] = (char)(((b & 0x0F) << 12) | (b2 << 6) | b3);
+			}
+		}
+		return new String(chars, 0, size);
+	}
+
+	/**
+	 * 
+	 * @param pool
+	 * @param count
+	 * @param index
+	 * @return
+	 * @throws IOException
+	 */
+	private static int getOffset(int[] pool, int count, int index) throws IOException
+	{
+		if(index <= 0 || index >= count) throw new IOException("Bad constant pool index " + index);
+		return pool[index];
+	}
+
+	/** Get the binary name of the class in internal form, for example
+	 * "a/b/C$D".
+	 * 
+	 * @return
+	 */
+	public String getClassName()
+	{
+		return className;
+	}
+
+	/** Get the name of the source file recorded by the compiler, for example
+	 * "C.java". There is no directory information.
+	 * 
+	 * @return The name, or null if the class was compiled without it
+	 */
+	public String getSourceFile()
+	{
+		return sourceFile;
+	}
+
+	/** Get the package of the class as a path, for example "a/b".
+	 * 
+	 * @return The path, or an empty string for the default package
+	 */
+	public String getPackagePath()
+	{
+		int slash = className.lastIndexOf('/');
+		return slash >= 0 ? className.substring(0, slash) : "";
+	}
+
+	/** Get the path of the source file relative to its source folder, for
+	 * example "a/b/C.java".
+	 * 
+	 * @return The path, or null if the source file is not recorded
+	 */
+	public String getSourcePath()
+	{
+		if(sourceFile == null) return null;
+		String pkg = getPackagePath();
+		return pkg.isEmpty() ? sourceFile : pkg + "/" + sourceFile;
+	}
+}
@@ -0,0 +1,651 @@
+/**
+ *	Copyright (c) 2015 Vr Security Inc.
+ *	All rights reserved.
+ *	
+ *	Redistribution and use in source and binary forms, with or without
+ *	modification, are permitted provided that the following conditions are met:
+ *	    * Redistributions of source code must retain the above copyright
+ *	      notice, this list of conditions and the following disclaimer.
+ *	    * Redistributions in binary form must reproduce the above copyright
+ *	      notice, this list of conditions and the following disclaimer in the
+ *	      documentation and/or other materials provided with the distribution.
+ *	    * Neither the name of the <organization> nor the
+ *	      names of its contributors may be used to endorse or promote products
+ *	      derived from this software without specific prior written permission.
+ *	
+ *	THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *	ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *	WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *	DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ *	DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *	(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *	LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *	ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *	(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *	SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ossindex.eclipse.common.impl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.eclipse.core.resources.IContainer;
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.resources.IResourceChangeEvent;
+import org.eclipse.core.resources.IResourceChangeListener;
+import org.eclipse.core.resources.IResourceDelta;
+import org.eclipse.core.resources.IResourceDeltaVisitor;
+import org.eclipse.core.resources.IResourceProxy;
+import org.eclipse.core.resources.IResourceProxyVisitor;
+import org.eclipse.core.resources.IWorkspaceRoot;
+import org.eclipse.core.resources.ResourcesPlugin;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IPath;
+
+/** Per-project index between Java source files and the class files built
+ * from them, including nested ($) classes.
+ * 
+ * Sources and classes are matched by their type path relative to their root
+ * ("a/b/C" for both a/b/C.java and a/b/C$1.class), so a lookup is a hash
+ * hit. Class files are grouped by their full output path ("/p/bin/a/b/C"),
+ * so the same type in two output folders is kept apart. The index is built
+ * the first time it is used by walking the source and output folders, and
+ * then kept up to date from workspace deltas.
+ * 
+ * Secondary top level types (a class Foo declared in Bar.java) cannot be
+ * matched by name, so the SourceFile attribute of any class without a
+ * matching source is read and the class is recorded as an alias of its
+ * source.
+ * 
+ * Class files written by the Java builder in the current build cycle are
+ * only reported once the cycle is over, so callers should fall back to
+ * probing on a miss and record what they find.
+ * 
+ * @author Ken Duck
+ *
+ */
+public class ClassFileIndex
+{
+	private static Map<String,ClassFileIndex> indexes = new ConcurrentHashMap<String,ClassFileIndex>();
+
+	private static IResourceChangeListener listener;
+
+	private IProject project;
+
+	private List<IPath> sourcePaths;
+
+	private List<IPath> targetPaths;
+
+	/**
+	 * Type path to source file
+	 */
+	private ConcurrentMap<String,IPath> sources = new ConcurrentHashMap<String,IPath>();
+
+	/**
+	 * Source file to the type paths declared in it, including secondary
+	 * types. The reverse of sources, so removing a source is cheap.
+	 */
+	private Map<IPath,Set<String>> sourceTypes = new ConcurrentHashMap<IPath,Set<String>>();
+
+	/**
+	 * Type path to the output keys of its class files, one for each output
+	 * folder that holds the type
+	 */
+	private Map<String,Set<String>> outputs = new ConcurrentHashMap<String,Set<String>>();
+
+	/**
+	 * Output key to class files, top level class first. The lists are never
+	 * modified, they are replaced.
+	 */
+	private Map<String,List<IPath>> classes = new ConcurrentHashMap<String,List<IPath>>();
+
+	private volatile boolean loaded = false;
+
+	/**
+	 * 
+	 * @param project
+	 * @param sourcePaths
+	 * @param targetPaths
+	 */
+	private ClassFileIndex(IProject project, List<IPath> sourcePaths, List<IPath> targetPaths)
+	{
+		this.project = project;
+		this.sourcePaths = new ArrayList<IPath>(sourcePaths);
+		this.targetPaths = new ArrayList<IPath>(targetPaths);
+	}
+
+	/** Get the index for the project. If the source or output folders of the
+	 * project changed a new index is created.
+	 * 
+	 * @param project
+	 * @param sourcePaths Workspace paths of the source folders
+	 * @param targetPaths Workspace paths of the output folders
+	 * @return
+	 */
+	public static ClassFileIndex getIndex(IProject project, List<IPath> sourcePaths, List<IPath> targetPaths)
+	{
+		startup();
+		String key = project.getName();
+		ClassFileIndex index = indexes.get(key);
+		if(index == null || !index.sourcePaths.equals(sourcePaths) || !index.targetPaths.equals(targetPaths))
+		{
+			synchronized(indexes)
+			{
+				index = indexes.get(key);
+				if(index == null || !index.sourcePaths.equals(sourcePaths) || !index.targetPaths.equals(targetPaths))
+				{
+					index = new ClassFileIndex(project, sourcePaths, targetPaths);
+					indexes.put(key, index);
+				}
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * Forget the index of the project.
+	 * 
+	 * @param project
+	 */
+	public static void invalidate(IProject project)
+	{
+		indexes.remove(project.getName());
+	}
+
+	/**
+	 * Start listening to the workspace, if we are not already.
+	 */
+	private static synchronized void startup()
+	{
+		if(listener != null) return;
+		listener = new IResourceChangeListener()
+		{
+			@Override
+			public void resourceChanged(IResourceChangeEvent event)
+			{
+				if(indexes.isEmpty() || event.getDelta() == null) return;
+				try
+				{
+					event.getDelta().accept(new IResourceDeltaVisitor()
+					{
+						@Override
+						public boolean visit(IResourceDelta delta)
+						{
+							IResource resource = delta.getResource();
+							switch(resource.getType())
+							{
+							case IResource.ROOT:
+								return true;
+							case IResource.PROJECT:
+							{
+								ClassFileIndex index = indexes.get(resource.getName());
+								if(index == null) return false;
+								if(delta.getKind() == IResourceDelta.REMOVED || !((IProject)resource).isOpen())
+								{
+									indexes.remove(resource.getName());
+									return false;
+								}
+								return index.loaded;
+							}
+							case IResource.FILE:
+							{
+								ClassFileIndex index = indexes.get(resource.getProject().getName());
+								if(index != null) index.changed(delta);
+								return false;
+							}
+							}
+							return true;
+						}
+					});
+				}
+				catch (CoreException e)
+				{
+					e.printStackTrace();
+				}
+			}
+		};
+		ResourcesPlugin.getWorkspace().addResourceChangeListener(listener, IResourceChangeEvent.POST_CHANGE);
+	}
+
+	/**
+	 * Stop listening to the workspace and forget all indexes.
+	 */
+	public static synchronized void shutdown()
+	{
+		if(listener != null)
+		{
+			ResourcesPlugin.getWorkspace().removeResourceChangeListener(listener);
+			listener = null;
+		}
+		indexes.clear();
+	}
+
+	/** Get the source file for the class file
+	 * 
+	 * @param classFile
+	 * @return The source file, or null if it is not known
+	 */
+	public IFile getSourceFile(IFile classFile)
+	{
+		load();
+		String type = getClassType(classFile.getFullPath());
+		if(type == null) return null;
+		IPath path = sources.get(type);
+		return path != null ? getRoot().getFile(path) : null;
+	}
+
+	/** Get the top level class file for the source file
+	 * 
+	 * @param sourceFile
+	 * @return The class file, or null if it is not known
+	 */
+	public IFile getClassFile(IFile sourceFile)
+	{
+		load();
+		String type = getSourceType(sourceFile.getFullPath());
+		if(type == null) return null;
+		Set<String> keys = outputs.get(type);
+		if(keys == null) return null;
+
+		// If several output folders hold the type the newest one wins, the
+		// others are left over from an earlier layout.
+		IFile best = null;
+		for(String key: keys)
+		{
+			List<IPath> paths = classes.get(key);
+			if(paths == null || paths.isEmpty()) continue;
+			IPath path = paths.get(0);
+			if(path.lastSegment().indexOf('$') >= 0) continue;
+			IFile file = getRoot().getFile(path);
+			if(best == null || file.getLocalTimeStamp() > best.getLocalTimeStamp()) best = file;
+		}
+		return best;
+	}
+
+	/** Get all class files built from the source file, including nested
+	 * classes and secondary top level types. The top level class comes first.
+	 * 
+	 * @param sourceFile
+	 * @return
+	 */
+	public List<IFile> getClassFiles(IFile sourceFile)
+	{
+		load();
+		String type = getSourceType(sourceFile.getFullPath());
+		if(type == null) return Collections.emptyList();
+		List<IFile> results = new ArrayList<IFile>();
+		IWorkspaceRoot root = getRoot();
+		addClassFiles(root, type, results);
+		Set<String> types = sourceTypes.get(sourceFile.getFullPath());
+		if(types != null)
+		{
+			for(String alias: types)
+			{
+				if(!alias.equals(type)) addClassFiles(root, alias, results);
+			}
+		}
+		return results;
+	}
+
+	/** Add the class files of the type from every output folder
+	 * 
+	 * @param root
+	 * @param type
+	 * @param results
+	 */
+	private void addClassFiles(IWorkspaceRoot root, String type, List<IFile> results)
+	{
+		Set<String> keys = outputs.get(type);
+		if(keys == null) return;
+		for(String key: keys)
+		{
+			List<IPath> paths = classes.get(key);
+			if(paths == null) continue;
+			for(IPath path: paths)
+			{
+				results.add(root.getFile(path));
+			}
+		}
+	}
+
+	/** Record a mapping found by other means, such as a class file the
+	 * workspace has not reported yet. If the class is a secondary type its
+	 * name is remembered as an alias for the source.
+	 * 
+	 * @param sourceFile
+	 * @param classFile
+	 */
+	public void put(IFile sourceFile, IFile classFile)
+	{
+		String type = getSourceType(sourceFile.getFullPath());
+		if(type != null) putSource(type, sourceFile.getFullPath());
+		if(classFile != null)
+		{
+			addClass(classFile.getFullPath());
+			String classType = getClassType(classFile.getFullPath());
+			if(classType != null) addAlias(classType, sourceFile.getFullPath());
+		}
+	}
+
+	/** Record that the class type is declared in a source file of another
+	 * name.
+	 * 
+	 * @param classType
+	 * @param sourcePath
+	 */
+	private void addAlias(String classType, IPath sourcePath)
+	{
+		String sourceType = getSourceType(sourcePath);
+		if(sourceType == null || sourceType.equals(classType)) return;
+		putSource(classType, sourcePath);
+	}
+
+	/** Record the type as declared in the source file
+	 * 
+	 * @param type
+	 * @param path
+	 */
+	private synchronized void putSource(String type, IPath path)
+	{
+		IPath previous = sources.put(type, path);
+		if(previous != null && !previous.equals(path))
+		{
+			Set<String> types = sourceTypes.get(previous);
+			if(types != null) types.remove(type);
+		}
+		Set<String> types = sourceTypes.get(path);
+		if(types == null)
+		{
+			types = Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+			sourceTypes.put(path, types);
+		}
+		types.add(type);
+	}
+
+	/** Forget the source file and every type declared in it
+	 * 
+	 * @param path
+	 */
+	private synchronized void removeSource(IPath path)
+	{
+		Set<String> types = sourceTypes.remove(path);
+		if(types == null) return;
+		for(String type: types)
+		{
+			sources.remove(type, path);
+		}
+	}
+
+	/** Find the source of a class whose name does not match any source file
+	 * by reading its SourceFile attribute.
+	 * 
+	 * @param path
+	 */
+	private void resolveSecondary(IPath path)
+	{
+		String type = getClassType(path);
+		if(type == null || sources.containsKey(type)) return;
+		IWorkspaceRoot root = getRoot();
+		IPath location = root.getFile(path).getLocation();
+		if(location == null) return;
+		String sourcePath;
+		try
+		{
+			sourcePath = ClassFileHeader.read(location.toFile()).getSourcePath();
+		}
+		catch (IOException e)
+		{
+			return;
+		}
+		if(sourcePath == null) return;
+		for(IPath sourceRoot: sourcePaths)
+		{
+			IPath candidate = sourceRoot.append(sourcePath);
+			if(root.getFile(candidate).exists())
+			{
+				addAlias(type, candidate);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Walk the source and output folders, the first time only.
+	 */
+	private void load()
+	{
+		if(loaded) return;
+		synchronized(this)
+		{
+			if(loaded) return;
+			IWorkspaceRoot root = getRoot();
+			for(IPath sourcePath: sourcePaths)
+			{
+				scan(root.findMember(sourcePath), ".java");
+			}
+			for(IPath targetPath: targetPaths)
+			{
+				scan(root.findMember(targetPath), ".class");
+			}
+			for(List<IPath> paths: classes.values())
+			{
+				resolveSecondary(paths.get(0));
+			}
+			loaded = true;
+		}
+	}
+
+	/**
+	 * 
+	 * @param resource
+	 * @param suffix
+	 */
+	private void scan(IResource resource, final String suffix)
+	{
+		if(!(resource instanceof IContainer)) return;
+		try
+		{
+			resource.accept(new IResourceProxyVisitor()
+			{
+				@Override
+				public boolean visit(IResourceProxy proxy)
+				{
+					if(proxy.getType() != IResource.FILE) return true;
+					if(proxy.getName().endsWith(suffix))
+					{
+						IPath path = proxy.requestFullPath();
+						if(".java".equals(suffix))
+						{
+							String type = getSourceType(path);
+							if(type != null) putSource(type, path);
+						}
+						else
+						{
+							addClass(path);
+						}
+					}
+					return false;
+				}
+			}, IContainer.NONE);
+		}
+		catch (CoreException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/** Update the index from a file delta
+	 * 
+	 * @param delta
+	 */
+	private void changed(IResourceDelta delta)
+	{
+		int kind = delta.getKind();
+		if(kind != IResourceDelta.ADDED && kind != IResourceDelta.REMOVED) return;
+		IPath path = delta.getFullPath();
+		String name = path.lastSegment();
+		if(name.endsWith(".java"))
+		{
+			String type = getSourceType(path);
+			if(type == null) return;
+			if(kind == IResourceDelta.ADDED) putSource(type, path);
+			// Drops aliases of secondary types as well
+			else removeSource(path);
+		}
+		else if(name.endsWith(".class"))
+		{
+			if(kind == IResourceDelta.ADDED)
+			{
+				addClass(path);
+				resolveSecondary(path);
+			}
+			else
+			{
+				removeClass(path);
+			}
+		}
+	}
+
+	/**
+	 * 
+	 * @param path
+	 */
+	private synchronized void addClass(IPath path)
+	{
+		String type = getClassType(path);
+		if(type == null) return;
+		String key = getOutputKey(path);
+		List<IPath> paths = classes.get(key);
+		if(paths != null && paths.contains(path)) return;
+		List<IPath> results = new ArrayList<IPath>();
+		if(paths != null) results.addAll(paths);
+
+		// Keep the top level class first
+		if(path.lastSegment().indexOf('$') < 0) results.add(0, path);
+		else results.add(path);
+		classes.put(key, Collections.unmodifiableList(results));
+
+		Set<String> keys = outputs.get(type);
+		if(keys == null)
+		{
+			keys = Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+			outputs.put(type, keys);
+		}
+		keys.add(key);
+	}
+
+	/**
+	 * 
+	 * @param path
+	 */
+	private synchronized void removeClass(IPath path)
+	{
+		String type = getClassType(path);
+		if(type == null) return;
+		String key = getOutputKey(path);
+		List<IPath> paths = classes.get(key);
+		if(paths == null || !paths.contains(path)) return;
+		List<IPath> results = new ArrayList<IPath>(paths);
+		results.remove(path);
+		if(!results.isEmpty())
+		{
+			classes.put(key, Collections.unmodifiableList(results));
+			return;
+		}
+		classes.remove(key);
+		Set<String> keys = outputs.get(type);
+		if(keys != null)
+		{
+			keys.remove(key);
+			if(keys.isEmpty()) outputs.remove(type);
+		}
+	}
+
+	/** Get the type path of a source file, "a/b/C" for src/a/b/C.java
+	 * 
+	 * @param path
+	 * @return The type, or null if the file is not in a source folder
+	 */
+	private String getSourceType(IPath path)
+	{
+		String name = path.lastSegment();
+		if(name == null || !name.endsWith(".java")) return null;
+		IPath relative = relativize(sourcePaths, path);
+		if(relative == null) return null;
+		String type = relative.toString();
+		return type.substring(0, type.length() - 5);
+	}
+
+	/** Get the type path of a class file, "a/b/C" for bin/a/b/C$1.class
+	 * 
+	 * @param path
+	 * @return The type, or null if the file is not in an output folder
+	 */
+	private String getClassType(IPath path)
+	{
+		String name = path.lastSegment();
+		if(name == null || !name.endsWith(".class")) return null;
+		IPath relative = relativize(targetPaths, path);
+		if(relative == null) return null;
+		String type = relative.toString();
+		type = type.substring(0, type.length() - 6);
+
+		// Nested classes belong to the source of their outermost class
+		int slash = type.lastIndexOf('/');
+		int dollar = type.indexOf('$', slash + 1);
+		if(dollar > slash + 1) type = type.substring(0, dollar);
+		return type;
+	}
+
+	/** Get the output key of a class file, "/p/bin/a/b/C" for
+	 * /p/bin/a/b/C$1.class
+	 * 
+	 * @param path
+	 * @return
+	 */
+	private static String getOutputKey(IPath path)
+	{
+		String key = path.removeFileExtension().toString();
+		int slash = key.lastIndexOf('/');
+		int dollar = key.indexOf('$', slash + 1);
+		if(dollar > slash + 1) key = key.substring(0, dollar);
+		return key;
+	}
+
+	/** Get the path relative to the longest root that contains it
+	 * 
+	 * @param roots
+	 * @param path
+	 * @return
+	 */
+	private static IPath relativize(List<IPath> roots, IPath path)
+	{
+		IPath best = null;
+		for(IPath root: roots)
+		{
+			if(root.isPrefixOf(path) && (best == null || root.segmentCount() > best.segmentCount()))
+			{
+				best = root;
+			}
+		}
+		if(best == null || best.segmentCount() == path.segmentCount()) return null;
+		return path.removeFirstSegments(best.segmentCount()).makeRelative();
+	}
+
+	/**
+	 * 
+	 * @return
+	 */
+	private IWorkspaceRoot getRoot()
+	{
+		return project.getWorkspace().getRoot();
+	}
+}
@@ -26,9 +26,16 @@
  */
 package net.ossindex.eclipse.common.impl;
 
+import java.io.IOException;
 import java.util.LinkedList;
 import java.util.List;
 
+import net.ossindex.eclipse.common.builder.DirtyTracker;
+import net.ossindex.eclipse.common.builder.IResourceWalkVisitor;
+import net.ossindex.eclipse.common.builder.ResourceTreeWalker;
+import net.ossindex.eclipse.common.builder.state.BuildStateIndex;
+import net.ossindex.eclipse.common.builder.state.BuildStateTransaction;
+
 import org.eclipse.core.resources.IContainer;
 import org.eclipse.core.resources.IFile;
 import org.eclipse.core.resources.IProject;
@@ -48,6 +55,12 @@ import org.eclipse.core.runtime.jobs.Job;
  */
 public abstract class CommonUtils
 {
+	/**
+	 * Prefix of the build state store attributes recording that the legacy
+	 * persistent property timestamps of a project have been removed.
+	 */
+	private static final String LEGACY_STAMPS_KEY = "legacy-stamps-cleared:";
+
 	protected IProject project;
 
 	/*
@@ -66,10 +79,16 @@ public abstract class CommonUtils
 	 */
 	public void clean(String[] builderIds)
 	{
-		// Clear the timestamp. This tells the builder it needs to run again.
+		// Clear the build state. This tells the builder it needs to run again.
+		// The changes are collected and written in one go at the end.
+		final List<BuildStateTransaction> transactions = new LinkedList<BuildStateTransaction>();
+		final List<DirtyTracker> trackers = new LinkedList<DirtyTracker>();
+		// Older versions stored timestamps as persistent properties
 		final List<QualifiedName> stamps = new LinkedList<QualifiedName>();
 		for(String builderId: builderIds)
 		{
+			transactions.add(BuildStateIndex.getIndex(builderId).begin());
+			trackers.add(DirtyTracker.getTracker(builderId));
 			stamps.add(new QualifiedName(builderId, ".TIMESTAMP"));
 		}
 
@@ -85,15 +104,43 @@ public abstract class CommonUtils
 				
 				for (IProject project : projects)
 				{
+					for(BuildStateTransaction transaction: transactions)
+					{
+						transaction.removeAll(BuildStateIndex.getKey(project));
+					}
 					if(project.isOpen())
 					{
-						for(QualifiedName timestampQualifier: stamps)
+						// The legacy properties only need to be removed once
+						String key = LEGACY_STAMPS_KEY + project.getName();
+						for(int i = 0; i < transactions.size(); i++)
 						{
-							clean(timestampQualifier, project);
+							BuildStateTransaction transaction = transactions.get(i);
+							if(transaction.getAttribute(key) != 0) continue;
+							clean(stamps.get(i), project);
+							transaction.setAttribute(key, 1);
 						}
 					}
 				}
 
+				for(BuildStateTransaction transaction: transactions)
+				{
+					try
+					{
+						transaction.commit();
+					}
+					catch (IOException e)
+					{
+						e.printStackTrace();
+					}
+				}
+				// Everything needs to be scanned again
+				for (IProject project : projects)
+				{
+					for(DirtyTracker tracker: trackers)
+					{
+						tracker.invalidate(project);
+					}
+				}
 				return Status.OK_STATUS;
 			}
 		};
@@ -103,41 +150,36 @@ public abstract class CommonUtils
 		job.schedule(); 
 	}
 
-	/** Recursively clear the resource
+	/** Recursively clear the legacy property from the resource. Subtrees are
+	 * cleared in parallel.
 	 * 
 	 * @param id
 	 * @param resource
 	 */
-	protected void clean(QualifiedName id, IResource resource)
+	protected void clean(final QualifiedName id, IResource resource)
 	{
-		if(resource instanceof IFile)
+		ResourceTreeWalker.walk(resource, new IResourceWalkVisitor()
 		{
-			try
-			{
-				((IFile)resource).setPersistentProperty(id, null);
-			}
-			catch (CoreException e)
+			@Override
+			public boolean visitContainer(IContainer container)
 			{
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+				return true;
 			}
-		}
-		else if(resource instanceof IContainer)
-		{
-			try
+
+			@Override
+			public boolean visitFile(IFile file)
 			{
-				IResource[] members = ((IContainer)resource).members();
-				for (IResource member : members)
+				try
 				{
-					clean(id, member);
+					file.setPersistentProperty(id, null);
 				}
+				catch (CoreException e)
+				{
+					e.printStackTrace();
+				}
+				return true;
 			}
-			catch (CoreException e)
-			{
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-		}
+		});
 	}
 
 }
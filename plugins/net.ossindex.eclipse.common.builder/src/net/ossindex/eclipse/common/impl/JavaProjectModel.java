@@ -0,0 +1,455 @@
+/**
+ *	Copyright (c) 2015 Vr Security Inc.
+ *	All rights reserved.
+ *	
+ *	Redistribution and use in source and binary forms, with or without
+ *	modification, are permitted provided that the following conditions are met:
+ *	    * Redistributions of source code must retain the above copyright
+ *	      notice, this list of conditions and the following disclaimer.
+ *	    * Redistributions in binary form must reproduce the above copyright
+ *	      notice, this list of conditions and the following disclaimer in the
+ *	      documentation and/or other materials provided with the distribution.
+ *	    * Neither the name of the <organization> nor the
+ *	      names of its contributors may be used to endorse or promote products
+ *	      derived from this software without specific prior written permission.
+ *	
+ *	THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *	ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *	WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *	DISCLAIMED. IN NO EVENT SHALL <COPYRIGHT HOLDER> BE LIABLE FOR ANY
+ *	DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *	(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *	LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *	ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *	(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *	SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.ossindex.eclipse.common.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.resources.IWorkspaceRoot;
+import org.eclipse.core.runtime.IPath;
+import org.eclipse.jdt.core.ElementChangedEvent;
+import org.eclipse.jdt.core.IClasspathEntry;
+import org.eclipse.jdt.core.IElementChangedListener;
+import org.eclipse.jdt.core.IJavaElement;
+import org.eclipse.jdt.core.IJavaElementDelta;
+import org.eclipse.jdt.core.IJavaProject;
+import org.eclipse.jdt.core.IPackageFragmentRoot;
+import org.eclipse.jdt.core.JavaCore;
+import org.eclipse.jdt.core.JavaModelException;
+
+/** Immutable snapshot of the Java model facts the builders need about a
+ * project: source roots, output folders and the resolved classpath.
+ * 
+ * The classpath locations are the absolute jar and folder locations of
+ * the resolved classpath, with containers and variables expanded. A
+ * required project contributes its output folders and the entries it
+ * exports, recursively.
+ * 
+ * Snapshots are cached per project, so the Java model is only asked once.
+ * A JDT element change listener drops the snapshot of a project when its
+ * classpath or output folders change, and the snapshots of the projects
+ * that depend on it. Since snapshots are never modified they can be shared
+ * by the threads of concurrent builds.
+ * 
+ * @author Ken Duck
+ *
+ */
+public class JavaProjectModel
+{
+	private static Map<String,JavaProjectModel> models = new ConcurrentHashMap<String,JavaProjectModel>();
+
+	private static IElementChangedListener listener;
+
+	/**
+	 * Incremented whenever snapshots are dropped, so a snapshot taken while
+	 * the classpath changed is not cached.
+	 */
+	private static AtomicLong generation = new AtomicLong();
+
+	/**
+	 * Classpath related changes that require a new snapshot
+	 */
+	private static final int CLASSPATH_FLAGS = IJavaElementDelta.F_CLASSPATH_CHANGED
+			| IJavaElementDelta.F_RESOLVED_CLASSPATH_CHANGED
+			| IJavaElementDelta.F_ADDED_TO_CLASSPATH
+			| IJavaElementDelta.F_REMOVED_FROM_CLASSPATH
+			| IJavaElementDelta.F_REORDER
+			| IJavaElementDelta.F_OPENED
+			| IJavaElementDelta.F_CLOSED;
+
+	/**
+	 * Workspace paths of the source roots
+	 */
+	private List<IPath> sourcePaths;
+
+	/**
+	 * Workspace paths of the output folders of the raw classpath entries
+	 */
+	private List<IPath> classPaths;
+
+	/**
+	 * Workspace paths of all output folders, default output first
+	 */
+	private List<IPath> targetPaths;
+
+	private String[] sourceLocations;
+	private String[] classLocations;
+	private String[] targetLocations;
+
+	private List<IClasspathEntry> resolvedClasspath;
+
+	/**
+	 * Projects whose changes affect this snapshot, including itself
+	 */
+	private Set<String> dependencies;
+
+	/**
+	 * 
+	 * @param javaProject
+	 * @throws JavaModelException
+	 */
+	private JavaProjectModel(IJavaProject javaProject) throws JavaModelException
+	{
+		IProject project = javaProject.getProject();
+		IWorkspaceRoot root = project.getWorkspace().getRoot();
+
+		// Source roots, including those of required projects
+		List<IPath> sources = new ArrayList<IPath>();
+		List<String> sourceStrings = new ArrayList<String>();
+		IPackageFragmentRoot[] roots = javaProject.getAllPackageFragmentRoots();
+		if(roots != null)
+		{
+			for (IPackageFragmentRoot fragmentRoot : roots)
+			{
+				if(fragmentRoot.getKind() == IPackageFragmentRoot.K_SOURCE)
+				{
+					sources.add(fragmentRoot.getPath());
+					sourceStrings.add(fragmentRoot.getPath().toFile().getAbsolutePath());
+				}
+			}
+		}
+
+		// Output folders, primed with the project output location
+		List<IPath> classes = new ArrayList<IPath>();
+		Set<IPath> targets = new LinkedHashSet<IPath>();
+		Set<String> targetStrings = new LinkedHashSet<String>();
+		IPath outputLocation = javaProject.getOutputLocation();
+		if(outputLocation != null)
+		{
+			targets.add(outputLocation);
+			addLocation(targetStrings, root.getFolder(outputLocation));
+		}
+		IClasspathEntry[] entries = javaProject.getRawClasspath();
+		if(entries != null)
+		{
+			for (IClasspathEntry entry : entries)
+			{
+				IPath classPath = entry.getOutputLocation();
+				if(classPath == null) continue;
+				classes.add(classPath);
+				targets.add(classPath);
+				if(entry.getContentKind() == IPackageFragmentRoot.K_SOURCE)
+				{
+					addLocation(targetStrings, root.getFolder(classPath));
+				}
+			}
+		}
+
+		IClasspathEntry[] resolved = javaProject.getResolvedClasspath(true);
+
+		// The projects we visit while resolving are the ones whose changes
+		// affect the classpath.
+		Set<String> classStrings = new LinkedHashSet<String>();
+		dependencies = new HashSet<String>();
+		dependencies.add(project.getName());
+		dependencies.addAll(Arrays.asList(javaProject.getRequiredProjectNames()));
+		Set<String> visited = new HashSet<String>();
+		visited.add(project.getName());
+		addClasspath(root, resolved, false, classStrings, visited);
+		dependencies.addAll(visited);
+
+		sourcePaths = Collections.unmodifiableList(sources);
+		classPaths = Collections.unmodifiableList(classes);
+		targetPaths = Collections.unmodifiableList(new ArrayList<IPath>(targets));
+		sourceLocations = sourceStrings.toArray(new String[sourceStrings.size()]);
+		classLocations = classStrings.toArray(new String[classStrings.size()]);
+		targetLocations = targetStrings.toArray(new String[targetStrings.size()]);
+		resolvedClasspath = Collections.unmodifiableList(Arrays.asList(resolved != null ? resolved : new IClasspathEntry[0]));
+	}
+
+	/** Add the locations of the classpath entries
+	 * 
+	 * @param root
+	 * @param entries Resolved classpath entries
+	 * @param exportedOnly True for required projects, which only contribute
+	 *        what they export
+	 * @param results
+	 * @param visited Names of the projects already added
+	 * @throws JavaModelException
+	 */
+	private static void addClasspath(IWorkspaceRoot root, IClasspathEntry[] entries, boolean exportedOnly, Set<String> results, Set<String> visited) throws JavaModelException
+	{
+		if(entries == null) return;
+		for (IClasspathEntry entry : entries)
+		{
+			if(exportedOnly && !entry.isExported()) continue;
+			switch(entry.getEntryKind())
+			{
+			case IClasspathEntry.CPE_LIBRARY:
+			{
+				// Libraries may be in the workspace or anywhere on disk
+				IResource member = root.findMember(entry.getPath());
+				if(member != null) addLocation(results, member);
+				else results.add(entry.getPath().toString());
+				break;
+			}
+			case IClasspathEntry.CPE_PROJECT:
+				addProject(root, entry.getPath().lastSegment(), results, visited);
+				break;
+			}
+		}
+	}
+
+	/** Add the output folders and exported entries of a required project
+	 * 
+	 * @param root
+	 * @param name
+	 * @param results
+	 * @param visited
+	 * @throws JavaModelException
+	 */
+	private static void addProject(IWorkspaceRoot root, String name, Set<String> results, Set<String> visited) throws JavaModelException
+	{
+		if(!visited.add(name)) return;
+		IProject project = root.getProject(name);
+		if(!project.isAccessible()) return;
+		IJavaProject javaProject = JavaCore.create(project);
+		if(javaProject == null || !javaProject.exists()) return;
+
+		IPath outputLocation = javaProject.getOutputLocation();
+		if(outputLocation != null) addLocation(results, root.getFolder(outputLocation));
+		IClasspathEntry[] entries = javaProject.getResolvedClasspath(true);
+		if(entries != null)
+		{
+			for (IClasspathEntry entry : entries)
+			{
+				if(entry.getEntryKind() == IClasspathEntry.CPE_SOURCE && entry.getOutputLocation() != null)
+				{
+					addLocation(results, root.getFolder(entry.getOutputLocation()));
+				}
+			}
+		}
+		addClasspath(root, entries, true, results, visited);
+	}
+
+	/**
+	 * 
+	 * @param results
+	 * @param resource
+	 */
+	private static void addLocation(Collection<String> results, IResource resource)
+	{
+		IPath location = resource.getLocation();
+		if(location != null) results.add(location.toString());
+	}
+
+	/** Get the snapshot for the project
+	 * 
+	 * @param project
+	 * @return The snapshot, or null if this is not a Java project
+	 */
+	public static JavaProjectModel getModel(IProject project)
+	{
+		JavaProjectModel model = models.get(project.getName());
+		if(model != null) return model;
+
+		startup();
+		IJavaProject javaProject = JavaCore.create(project);
+		if(javaProject == null || !javaProject.exists()) return null;
+		long current = generation.get();
+		try
+		{
+			model = new JavaProjectModel(javaProject);
+		}
+		catch (JavaModelException e)
+		{
+			e.printStackTrace();
+			return null;
+		}
+
+		// Another thread may have been quicker, both are equally valid
+		if(generation.get() == current) models.put(project.getName(), model);
+		return model;
+	}
+
+	/**
+	 * Forget all snapshots.
+	 */
+	public static void invalidateAll()
+	{
+		generation.incrementAndGet();
+		models.clear();
+	}
+
+	/**
+	 * Start listening to the Java model, if we are not already.
+	 */
+	private static synchronized void startup()
+	{
+		if(listener != null) return;
+		listener = new IElementChangedListener()
+		{
+			@Override
+			public void elementChanged(ElementChangedEvent event)
+			{
+				if(models.isEmpty()) return;
+				Set<String> changed = new HashSet<String>();
+				findChanges(event.getDelta(), changed);
+				if(changed.isEmpty()) return;
+				generation.incrementAndGet();
+				for(Map.Entry<String,JavaProjectModel> entry: models.entrySet())
+				{
+					if(!Collections.disjoint(entry.getValue().dependencies, changed))
+					{
+						models.remove(entry.getKey());
+					}
+				}
+			}
+		};
+		JavaCore.addElementChangedListener(listener, ElementChangedEvent.POST_CHANGE);
+	}
+
+	/**
+	 * Stop listening to the Java model and forget all snapshots.
+	 */
+	public static synchronized void shutdown()
+	{
+		if(listener != null)
+		{
+			JavaCore.removeElementChangedListener(listener);
+			listener = null;
+		}
+		models.clear();
+	}
+
+	/** Find the projects whose classpath changed. Only the model and
+	 * project levels of the delta are looked at.
+	 * 
+	 * @param delta
+	 * @param changed
+	 */
+	private static void findChanges(IJavaElementDelta delta, Set<String> changed)
+	{
+		IJavaElement element = delta.getElement();
+		switch(element.getElementType())
+		{
+		case IJavaElement.JAVA_MODEL:
+			for(IJavaElementDelta child: delta.getAffectedChildren())
+			{
+				findChanges(child, changed);
+			}
+			break;
+		case IJavaElement.JAVA_PROJECT:
+			if(delta.getKind() != IJavaElementDelta.CHANGED || (delta.getFlags() & CLASSPATH_FLAGS) != 0)
+			{
+				changed.add(element.getElementName());
+			}
+			else
+			{
+				// Roots added to or removed from the classpath are reported
+				// on the children.
+				for(IJavaElementDelta child: delta.getAffectedChildren())
+				{
+					if((child.getFlags() & CLASSPATH_FLAGS) != 0)
+					{
+						changed.add(element.getElementName());
+						break;
+					}
+				}
+			}
+			break;
+		}
+	}
+
+	/** Workspace paths of the source roots
+	 * 
+	 * @return
+	 */
+	public List<IPath> getSourcePaths()
+	{
+		return sourcePaths;
+	}
+
+	/** Workspace paths of the output folders of the raw classpath entries
+	 * 
+	 * @return
+	 */
+	public List<IPath> getClassPaths()
+	{
+		return classPaths;
+	}
+
+	/** Workspace paths of all output folders, default output first
+	 * 
+	 * @return
+	 */
+	public List<IPath> getTargetPaths()
+	{
+		return targetPaths;
+	}
+
+	/** File system paths of the source roots
+	 * 
+	 * @return A copy the caller may modify
+	 */
+	public String[] getSourceLocations()
+	{
+		return sourceLocations.clone();
+	}
+
+	/** File system paths of the resolved classpath: jars and class folders,
+	 * including those of required projects, without duplicates and in
+	 * classpath order. The project's own output folders are not included,
+	 * see getTargetLocations.
+	 * 
+	 * @return A copy the caller may modify
+	 */
+	public String[] getClassLocations()
+	{
+		return classLocations.clone();
+	}
+
+	/** File system paths of the output folders
+	 * 
+	 * @return A copy the caller may modify
+	 */
+	public String[] getTargetLocations()
+	{
+		return targetLocations.clone();
+	}
+
+	/** The resolved classpath of the project, with containers and variables
+	 * expanded.
+	 * 
+	 * @return
+	 */
+	public List<IClasspathEntry> getResolvedClasspath()
+	{
+		return resolvedClasspath;
+	}
+}
@@ -26,24 +26,23 @@
  */
 package net.ossindex.eclipse.common.impl;
 
-import java.io.File;
-import java.util.HashSet;
-import java.util.LinkedList;
+import java.io.IOException;
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
+import net.ossindex.eclipse.common.Activator;
 import net.ossindex.eclipse.common.IJavaUtils;
 
 import org.eclipse.core.resources.IFile;
 import org.eclipse.core.resources.IFolder;
 import org.eclipse.core.resources.IProject;
 import org.eclipse.core.resources.IResource;
+import org.eclipse.core.resources.IWorkspaceRoot;
 import org.eclipse.core.runtime.IPath;
-import org.eclipse.jdt.core.IClasspathEntry;
+import org.eclipse.core.runtime.IStatus;
 import org.eclipse.jdt.core.IJavaProject;
-import org.eclipse.jdt.core.IPackageFragmentRoot;
-import org.eclipse.jdt.core.JavaCore;
-import org.eclipse.jdt.core.JavaModelException;
 
 /** Java platform specific utilities
  * 
@@ -52,10 +51,11 @@ import org.eclipse.jdt.core.JavaModelException;
  */
 public class JavaUtils extends CommonUtils implements IJavaUtils
 {
-	private List<IPath> sourcePaths = new LinkedList<IPath>();
-	private List<IPath> classPaths = new LinkedList<IPath>();
-	private List<IPath> targetPaths = new LinkedList<IPath>();
-	
+	/**
+	 * Source files we failed to find, so each is only logged once
+	 */
+	private static Set<String> missing = Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+
 	public JavaUtils()
 	{
 	}
@@ -67,107 +67,28 @@ public class JavaUtils extends CommonUtils implements IJavaUtils
 	public void setProject(IProject project)
 	{
 		super.setProject(project);
-		IJavaProject javaProject = JavaCore.create(project);
-		if(javaProject.exists())
-		{
-			loadSourcePaths(javaProject);
-			loadClassPaths(javaProject);
-		}
 	}
-	
 
-	/** Load the source paths for the project
+	/** Get the cached Java model facts for the project. The snapshot is
+	 * looked up on every call so classpath changes are seen.
 	 * 
-	 * @param javaProject
+	 * @return The snapshot, or null if there is no Java project
 	 */
-	private void loadSourcePaths(IJavaProject javaProject)
+	private JavaProjectModel getModel()
 	{
-		try
-		{
-			if(javaProject.exists())
-			{
-				// Get source information specifically
-				IPackageFragmentRoot[] roots = javaProject.getAllPackageFragmentRoots();
-				if(roots != null)
-				{
-					for (IPackageFragmentRoot root : roots)
-					{
-						switch(root.getKind())
-						{
-						case IPackageFragmentRoot.K_SOURCE:
-						{
-							IPath sourcePath = root.getPath();
-							sourcePaths.add(sourcePath);
-							break;
-						}
-						case IPackageFragmentRoot.K_BINARY:
-						{
-							// This gives you a bunch of jar files only.
-							//						IPath classPath = root.getPath();
-							//						classPaths.add(classPath);
-							//						System.err.println("CLASS PATH: " + classPath);
-							//						break;
-						}
-						}
-					}
-				}
-			}
-		}
-		catch (JavaModelException e)
-		{
-			e.printStackTrace();
-		}
+		if(project == null) return null;
+		return JavaProjectModel.getModel(project);
 	}
 
-	/** Get the class paths for the project
+	/** Get the source to class file mapping for the project
 	 * 
-	 * @param javaProject
+	 * @return The index, or null if there is no Java project
 	 */
-	private void loadClassPaths(IJavaProject javaProject)
+	private ClassFileIndex getIndex()
 	{
-		try
-		{
-			// Prime with the java project output location
-			IPath outputLocation = javaProject.getOutputLocation();
-			if(outputLocation != null)
-			{
-				if(!targetPaths.contains(outputLocation))
-				{
-					targetPaths.add(outputLocation);
-				}
-			}
-			
-			
-			// Now look for extra configured classpaths
-			if(javaProject.exists())
-			{
-				IClasspathEntry[] classpathEntries = javaProject.getRawClasspath();
-				if(classpathEntries != null)
-				{
-					for (IClasspathEntry entry : classpathEntries)
-					{
-						// This technically works for finding source paths, but it
-						// also gets a few other strange package type definitions
-						// so to avoid confusion I use the above solution instead.
-						//					IPath sourcePath = entry.getPath();
-						//					sourcePaths.add(sourcePath);
-						IPath classPath = entry.getOutputLocation();
-						if(classPath != null)
-						{
-							classPaths.add(classPath);
-							if(!targetPaths.contains(classPath))
-							{
-								targetPaths.add(classPath);
-							}
-						}
-					}
-				}
-			}
-		}
-		catch (JavaModelException e)
-		{
-			e.printStackTrace();
-		}
+		JavaProjectModel model = getModel();
+		if(model == null) return null;
+		return ClassFileIndex.getIndex(project, model.getSourcePaths(), model.getTargetPaths());
 	}
 
 	/**
@@ -176,7 +97,8 @@ public class JavaUtils extends CommonUtils implements IJavaUtils
 	 */
 	public List<IPath> getSourcePaths()
 	{
-		return sourcePaths;
+		JavaProjectModel model = getModel();
+		return model != null ? model.getSourcePaths() : Collections.<IPath>emptyList();
 	}
 
 	/**
@@ -185,12 +107,14 @@ public class JavaUtils extends CommonUtils implements IJavaUtils
 	 */
 	public List<IPath> getClassPaths()
 	{
-		return classPaths;
+		JavaProjectModel model = getModel();
+		return model != null ? model.getClassPaths() : Collections.<IPath>emptyList();
 	}
 	
 	@Override
 	public List<IPath> getTargetPaths() {
-		return targetPaths;
+		JavaProjectModel model = getModel();
+		return model != null ? model.getTargetPaths() : Collections.<IPath>emptyList();
 	}
 
 
@@ -201,75 +125,19 @@ public class JavaUtils extends CommonUtils implements IJavaUtils
 	 */
 	public String[] getSourcePaths(IResource resource)
 	{
-		IJavaProject javaProject = JavaCore.create(resource.getProject());
-		List<String> results = new LinkedList<String>();
-		try
-		{
-			if(javaProject.exists())
-			{
-				IPackageFragmentRoot[] roots = javaProject.getAllPackageFragmentRoots();
-				if(roots != null)
-				{
-					for (IPackageFragmentRoot root : roots)
-					{
-						if(root.getKind() == IPackageFragmentRoot.K_SOURCE)
-						{
-							File file = root.getPath().toFile();
-							results.add(file.getAbsolutePath());
-						}
-					}
-				}
-			}
-		}
-		catch (JavaModelException e)
-		{
-			e.printStackTrace();
-		}
-
-		return results.toArray(new String[results.size()]);
+		JavaProjectModel model = JavaProjectModel.getModel(resource.getProject());
+		return model != null ? model.getSourceLocations() : new String[0];
 	}
 
-	/** Get the class paths for the project
+	/** Get the resolved class path locations for the project. The result is
+	 * cached until the classpath changes.
 	 * 
 	 * @param javaProject
 	 */
 	public String[] getClassPaths(IResource resource)
 	{
-		IProject project = resource.getProject();
-		IJavaProject javaProject = JavaCore.create(project);
-		List<String> results = new LinkedList<String>();
-		try
-		{
-			if(javaProject.exists())
-			{
-				IClasspathEntry[] classpathEntries = javaProject.getRawClasspath();
-				if(classpathEntries != null)
-				{
-					for (IClasspathEntry entry : classpathEntries)
-					{
-						// This technically works for finding source paths, but it
-						// also gets a few other strange package type definitions
-						// so to avoid confusion I use the above solution instead.
-						//					IPath sourcePath = entry.getPath();
-						//					sourcePaths.add(sourcePath);
-						if(entry.getEntryKind() == IClasspathEntry.CPE_LIBRARY)
-						{
-							IPath classPath = entry.getOutputLocation();
-							if(classPath != null)
-							{
-								IFile ifile = project.getWorkspace().getRoot().getFile(classPath);
-								results.add(ifile.getLocation().toString());
-							}
-						}
-					}
-				}
-			}
-		}
-		catch (JavaModelException e)
-		{
-			e.printStackTrace();
-		}
-		return results.toArray(new String[results.size()]);
+		JavaProjectModel model = JavaProjectModel.getModel(resource.getProject());
+		return model != null ? model.getClassLocations() : new String[0];
 	}
 
 	/*
@@ -279,57 +147,8 @@ public class JavaUtils extends CommonUtils implements IJavaUtils
 	@Override
 	public String[] getTargetPaths(IResource resource)
 	{
-		IProject project = resource.getProject();
-		IJavaProject javaProject = JavaCore.create(project);
-		List<String> results = new LinkedList<String>();
-		try
-		{
-			if(javaProject.exists())
-			{
-				Set<IResource> paths = new HashSet<IResource>();
-				
-				// Prime with the java project output location
-				IPath outputLocation = javaProject.getOutputLocation();
-				if(outputLocation != null)
-				{
-					IFolder ifile = project.getWorkspace().getRoot().getFolder(outputLocation);
-					if(!paths.contains(ifile))
-					{
-						results.add(ifile.getLocation().toString());
-						paths.add(ifile);
-					}
-				}
-				
-				// Now look for extra configured classpaths
-				IClasspathEntry[] classpathEntries = javaProject.getRawClasspath();
-				if(classpathEntries != null)
-				{
-					for (IClasspathEntry entry : classpathEntries)
-					{
-						// This first case works for "standard" Eclipse projects
-						if(entry.getContentKind() == IPackageFragmentRoot.K_SOURCE)
-						{
-							IPath classPath = entry.getOutputLocation();
-							if(classPath != null)
-							{
-								IFolder ifile = project.getWorkspace().getRoot().getFolder(classPath);
-								if(!paths.contains(ifile))
-								{
-									results.add(ifile.getLocation().toString());
-									paths.add(ifile);
-								}
-							}
-						}
-
-					}
-				}
-			}
-		}
-		catch (JavaModelException e)
-		{
-			e.printStackTrace();
-		}
-		return results.toArray(new String[results.size()]);
+		JavaProjectModel model = JavaProjectModel.getModel(resource.getProject());
+		return model != null ? model.getTargetLocations() : new String[0];
 	}
 
 	/*
@@ -361,12 +180,78 @@ public class JavaUtils extends CommonUtils implements IJavaUtils
 	 */
 	@Override
 	public IFile getSourceFile(IFile ifile)
+	{
+		ClassFileIndex index = getIndex();
+		if(index == null) return findSourceFile(ifile);
+
+		IFile source = index.getSourceFile(ifile);
+		if(source != null) return source;
+
+		// Not indexed yet, probably written during this build cycle
+		source = findSourceFile(ifile);
+		if(source != null) index.put(source, ifile);
+		return source;
+	}
+
+	/** Find the source file. The name recorded in the class file is tried
+	 * first, since it is exact, and then the source paths are probed using
+	 * the class file name.
+	 * 
+	 * @param ifile
+	 * @return The source file, or null if there is none
+	 */
+	private IFile findSourceFile(IFile ifile)
+	{
+		IFile source = readSourceFile(ifile);
+		if(source != null) return source;
+		return guessSourceFile(ifile);
+	}
+
+	/** Find the source file using the SourceFile attribute of the class. This
+	 * handles secondary top level types, whose name does not match their
+	 * source file.
+	 * 
+	 * @param ifile
+	 * @return The source file, or null if it cannot be found this way
+	 */
+	private IFile readSourceFile(IFile ifile)
+	{
+		IPath location = ifile.getLocation();
+		if(location == null) return null;
+		String sourcePath;
+		try
+		{
+			sourcePath = ClassFileHeader.read(location.toFile()).getSourcePath();
+		}
+		catch (IOException e)
+		{
+			// Missing or being written, fall back to the name
+			return null;
+		}
+		if(sourcePath == null) return null;
+
+		IWorkspaceRoot root = project.getWorkspace().getRoot();
+		for(IPath path: getSourcePaths())
+		{
+			IFile file = root.getFile(path.append(sourcePath));
+			if(file.exists()) return file;
+		}
+		return null;
+	}
+
+	/** Find the source file by probing the source paths. A miss is logged
+	 * once for each class.
+	 * 
+	 * @param ifile
+	 * @return The source file, or null if there is none
+	 */
+	private IFile guessSourceFile(IFile ifile)
 	{
 		// First find a matching source path to get the package hierarchy for the file
 		IPath filePath = ifile.getFullPath();
 		String filePathString = filePath.toString();
 		String packageString = null;
-		for(IPath classPath: targetPaths)
+		for(IPath classPath: getTargetPaths())
 		{
 			String classPathString = classPath.toString();
 			if(filePathString.startsWith(classPathString))
@@ -392,7 +277,7 @@ public class JavaUtils extends CommonUtils implements IJavaUtils
 			// the expected source package path exists. If we find one it must
 			// be the one we want, unless there is a collision in which case
 			// Eclipse should be complaining bitterly.
-			for(IPath sourcePath: sourcePaths)
+			for(IPath sourcePath: getSourcePaths())
 			{
 				// Make sure to remove the project path from the string
 				String sourcePathString = sourcePath.toString().substring(projectPathSize);
@@ -403,9 +288,12 @@ public class JavaUtils extends CommonUtils implements IJavaUtils
 				}
 			}
 
-			System.err.println("WARNING: Could not find java file matching " + filePathString);
+			if(missing.add(project.getName() + "/" + javaPath))
+			{
+				Activator.log(IStatus.WARNING, "Could not find java file matching " + filePathString, null);
+			}
 		}
-		return ifile;
+		return null;
 	}
 	
 	/*
@@ -416,13 +304,50 @@ public class JavaUtils extends CommonUtils implements IJavaUtils
 	public IFile getClassFile(IFile sourceFile)
 	{
 		if(sourceFile == null || !sourceFile.getName().endsWith(".java")) return null;
-		
+		ClassFileIndex index = getIndex();
+		if(index == null) return findClassFile(sourceFile);
+
+		IFile classFile = index.getClassFile(sourceFile);
+		if(classFile != null && classFile.exists()) return classFile;
+
+		// Not indexed yet, probably written during this build cycle
+		classFile = findClassFile(sourceFile);
+		if(classFile != null) index.put(sourceFile, classFile);
+		return classFile;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see net.ossindex.eclipse.common.IJavaUtils#getClassFiles(org.eclipse.core.resources.IFile)
+	 */
+	@Override
+	public List<IFile> getClassFiles(IFile sourceFile)
+	{
+		if(sourceFile == null || !sourceFile.getName().endsWith(".java")) return Collections.emptyList();
+		ClassFileIndex index = getIndex();
+		if(index != null)
+		{
+			List<IFile> classFiles = index.getClassFiles(sourceFile);
+			if(!classFiles.isEmpty()) return classFiles;
+		}
+		IFile classFile = getClassFile(sourceFile);
+		if(classFile != null) return Collections.singletonList(classFile);
+		return Collections.emptyList();
+	}
+
+	/** Find the class file by probing the output folders
+	 * 
+	 * @param sourceFile
+	 * @return The class file, or null if there is none
+	 */
+	private IFile findClassFile(IFile sourceFile)
+	{
 		String myPath = sourceFile.getFullPath().toString();
 		// Remove .java
 		myPath = myPath.substring(0, myPath.length() - 5);
 		
 		// Find matching source path
-		for(IPath path: sourcePaths)
+		for(IPath path: getSourcePaths())
 		{
 			String spath = path.toString();
 			
@@ -436,7 +361,7 @@ public class JavaUtils extends CommonUtils implements IJavaUtils
 		String myClass = myPath + ".class";
 		
 		// Find matching class path
-		for(IPath classPath: targetPaths)
+		for(IPath classPath: getTargetPaths())
 		{
 			classPath = classPath.removeFirstSegments(1);
 			IFolder cp = project.getFolder(classPath);
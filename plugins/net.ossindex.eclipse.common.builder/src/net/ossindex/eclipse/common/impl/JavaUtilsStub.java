@@ -26,6 +26,7 @@
  */
 package net.ossindex.eclipse.common.impl;
 
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -127,7 +128,7 @@ public class JavaUtilsStub implements IJavaUtils
 	 */
 	@Override
 	public IFile getSourceFile(IFile classFile) {
-		return classFile;
+		return null;
 	}
 
 	@Override
@@ -139,6 +140,11 @@ public class JavaUtilsStub implements IJavaUtils
 		return null;
 	}
 
+	@Override
+	public List<IFile> getClassFiles(IFile sourceFile) {
+		return Collections.emptyList();
+	}
+
 
 
 }